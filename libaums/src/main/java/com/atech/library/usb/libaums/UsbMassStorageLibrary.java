@@ -29,6 +29,21 @@ public class UsbMassStorageLibrary {
 
     public static boolean LOAD_PARTITIONS = true; // loading partitions by default
     public static boolean debugModeOnLowLevel = false;
+    public static boolean USE_ASYNC_TRANSFERS = false; // libusb async api with own event handling thread
+    public static boolean PIPELINED_SCSI_TRANSFERS = false; // submit CBW, data and CSW at once (needs async transfers)
+    public static int MAX_TRANSFER_LENGTH = 128 * 1024; // biggest single bulk transfer / SCSI command, sizes the buffer pool
+    public static boolean READ_VPD_PAGES = true; // read block limits VPD page to size transfers (SPC-2 devices only)
+    public static boolean CACHE_FAT = false; // keep FAT sectors in memory, changes are written on flush
+    public static boolean BUILD_FREE_CLUSTER_MAP = false; // scan FAT once at mount, allocate from in-memory free map
+    public static boolean BUILD_FREE_CLUSTER_MAP_IN_BACKGROUND = true; // scan FAT in own thread (mount returns at once)
+    public static boolean GROW_FILES_GEOMETRICALLY = false; // reserve growing chunks on appends, unused space is trimmed on close
+    public static boolean DEFER_FS_INFO_WRITES = false; // write FSInfo only on flush/close (FAT is rescanned after unclean unmount)
+    public static long FS_INFO_FLUSH_INTERVAL = 0; // with deferred FSInfo: write it every n ms (0 = only on flush/close)
+    public static int CHAIN_CACHE_SIZE = 64; // resolved cluster chains kept per file system, keyed by start cluster (0 = off)
+    public static int BLOCK_CACHE_SIZE = 0; // bytes of device blocks kept in a LRU page cache below the partitions (0 = off)
+    public static boolean BLOCK_CACHE_WRITE_BACK = false; // block cache keeps small writes as dirty pages until flush/close
+    public static long BLOCK_CACHE_FLUSH_INTERVAL = 0; // with write back: write dirty pages every n ms (0 = only on flush/close)
+    public static boolean READ_AHEAD = false; // read sequentially read files ahead in growing windows in a background thread
 
     @Getter
     public static boolean libraryInitialized = false;
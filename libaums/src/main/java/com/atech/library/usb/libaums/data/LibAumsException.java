@@ -16,6 +16,7 @@
  */
 package com.atech.library.usb.libaums.data;
 
+import org.usb4java.LibUsb;
 import org.usb4java.LibUsbException;
 
 import java.io.IOException;
@@ -41,4 +42,27 @@ public class LibAumsException extends Exception {
         return new LibAumsException(message, new IOException(message));
     }
 
+    /**
+     * Returns true if this exception was caused by an endpoint halted (stalled) by the device.
+     *
+     * @return true for a stall
+     */
+    public boolean isStall() {
+        return getCause() instanceof LibUsbException
+                && ((LibUsbException) getCause()).getErrorCode() == LibUsb.ERROR_PIPE;
+    }
+
+    /**
+     * Returns the cause if it is an IOException, otherwise a new IOException wrapping this exception. For
+     * places which can only throw IOException, like streams and channels.
+     *
+     * @return the IOException
+     */
+    public IOException asIOException() {
+        if (getCause() instanceof IOException) {
+            return (IOException) getCause();
+        }
+        return new IOException(getMessage(), this);
+    }
+
 }
@@ -0,0 +1,205 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.atech.library.usb.libaums.usb4java;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.AsyncUsbCommunication;
+import lombok.extern.slf4j.Slf4j;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One submitted asynchronous bulk transfer. The transfer is completed by the libusb event handling
+ * thread (see {@link Usb4JavaAsyncUsbDeviceCommunication}), while the submitting thread can continue
+ * and later collect the result with {@link #await()}.
+ */
+@Slf4j
+public class Usb4JavaAsyncTransfer implements TransferCallback, AsyncUsbCommunication.PendingTransfer {
+
+    /**
+     * How long (ms) we wait for libusb to complete a transfer after cancelling it.
+     */
+    private static final long CANCEL_TIMEOUT = 1000;
+
+    private final ByteBuffer buffer;
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private final long timeout;
+    private Transfer transfer;
+    private volatile int status = -1;
+    private volatile int actualLength;
+
+    /**
+     * @param buffer direct buffer, whole capacity is used for the transfer
+     * @param timeout transfer timeout in milliseconds
+     */
+    Usb4JavaAsyncTransfer(ByteBuffer buffer, long timeout) {
+        this.buffer = buffer;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Allocates the libusb transfer and submits it to the given endpoint.
+     */
+    synchronized void submit(DeviceHandle handle, byte endpoint) throws LibAumsException {
+        transfer = LibUsb.allocTransfer();
+        LibUsb.fillBulkTransfer(transfer, handle, endpoint, buffer, this, null, timeout);
+
+        int result = LibUsb.submitTransfer(transfer);
+        if (result != LibUsb.SUCCESS) {
+            LibUsb.freeTransfer(transfer);
+            transfer = null;
+            throw LibAumsException.createWithLibUsbException("Unable to submit transfer", result);
+        }
+    }
+
+    @Override
+    public void processTransfer(Transfer transfer) {
+        synchronized (this) {
+            this.status = transfer.status();
+            this.actualLength = transfer.actualLength();
+            LibUsb.freeTransfer(transfer);
+            this.transfer = null;
+        }
+        completed.countDown();
+    }
+
+    /**
+     * Waits until the transfer is finished. If it does not finish in time or the thread is interrupted,
+     * the transfer is cancelled and we wait (bounded) until libusb gave the buffer back, before throwing.
+     * If {@link #isDone()} is still false afterwards, libusb may write into the buffer later, so the buffer
+     * must not be reused.
+     *
+     * @return number of bytes actually transferred
+     * @throws LibAumsException if transfer did not complete successfully
+     */
+    @Override
+    public int await() throws LibAumsException {
+        try {
+            // libusb times out the transfer itself, we only guard against an event thread that died
+            if (!completed.await(timeout + 1000, TimeUnit.MILLISECONDS)) {
+                log.warn("await: transfer did not finish in time, cancelling it.");
+                if (!cancelAndWait()) {
+                    throw LibAumsException.createWithLibUsbException(
+                            "Transfer did not finish after it was cancelled", LibUsb.ERROR_TIMEOUT);
+                }
+            }
+        } catch (InterruptedException e) {
+            // libusb may still write into the buffer until the cancellation is completed
+            if (!cancelAndWait()) {
+                log.warn("await: cancelled transfer did not finish in {} ms.", CANCEL_TIMEOUT);
+            }
+            Thread.currentThread().interrupt();
+            throw LibAumsException.createWithLibUsbException("Interrupted while waiting for transfer",
+                    LibUsb.ERROR_INTERRUPTED);
+        }
+
+        if (status != LibUsb.TRANSFER_COMPLETED) {
+            throw LibAumsException.createWithLibUsbException("Transfer failed with status " + status,
+                    getErrorCode(status));
+        }
+
+        return actualLength;
+    }
+
+    /**
+     * Cancels the transfer if it is still pending. Transfer is completed (with status
+     * {@link LibUsb#TRANSFER_CANCELLED}) by the event handling thread.
+     */
+    @Override
+    public synchronized void cancel() {
+        if (transfer != null) {
+            int result = LibUsb.cancelTransfer(transfer);
+            if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_NOT_FOUND) {
+                log.warn("cancel: unable to cancel transfer: {}", LibUsb.strError(result));
+            }
+        }
+    }
+
+    /**
+     * Cancels the transfer and waits at most {@link #CANCEL_TIMEOUT} ms until it is completed. An interrupt
+     * during the wait is remembered, but does not end the wait.
+     *
+     * @return true if the transfer is completed
+     */
+    boolean cancelAndWait() {
+        cancel();
+
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CANCEL_TIMEOUT);
+        try {
+            while (true) {
+                try {
+                    return completed.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean isStalled() {
+        return status == LibUsb.TRANSFER_STALL;
+    }
+
+    public boolean isDone() {
+        return completed.getCount() == 0;
+    }
+
+    /**
+     * @return libusb transfer status (LibUsb.TRANSFER_*), or -1 if transfer is still pending
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public int getActualLength() {
+        return actualLength;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    private static int getErrorCode(int transferStatus) {
+        switch (transferStatus) {
+            case LibUsb.TRANSFER_TIMED_OUT:
+                return LibUsb.ERROR_TIMEOUT;
+            case LibUsb.TRANSFER_STALL:
+                return LibUsb.ERROR_PIPE;
+            case LibUsb.TRANSFER_NO_DEVICE:
+                return LibUsb.ERROR_NO_DEVICE;
+            case LibUsb.TRANSFER_OVERFLOW:
+                return LibUsb.ERROR_OVERFLOW;
+            case LibUsb.TRANSFER_CANCELLED:
+                return LibUsb.ERROR_INTERRUPTED;
+            default:
+                return LibUsb.ERROR_IO;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.atech.library.usb.libaums.usb4java;
+
+import com.atech.library.usb.libaums.UsbMassStorageLibrary;
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.atech.library.usb.libaums.data.UsbMassStorageDeviceConfig;
+import com.github.mjdev.libaums.AsyncUsbCommunication;
+import lombok.extern.slf4j.Slf4j;
+import org.usb4java.Context;
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UsbCommunication implementation which uses asynchronous libusb api (LibUsb.submitTransfer). Transfers
+ * are completed by dedicated event handling thread, which is started when device is opened and stopped
+ * when it is closed (see also org.usb4java.examples.AsyncBulkTransfer).
+ * <p>
+ * Blocking methods of {@link com.github.mjdev.libaums.UsbCommunication} are implemented as submit + await,
+ * but callers that want to keep the bus busy can use {@link #submitBulkOutTransfer(ByteBuffer)} and
+ * {@link #submitBulkInTransfer(ByteBuffer)} directly and post next transfer before previous one is
+ * finished.
+ */
+@Slf4j
+public class Usb4JavaAsyncUsbDeviceCommunication extends Usb4JavaUsbDeviceCommunication
+        implements AsyncUsbCommunication {
+
+    private EventHandlingThread eventHandlingThread;
+    /**
+     * Submitted transfers, which may not be finished yet. They are cancelled when device is closed.
+     */
+    private final Set<Usb4JavaAsyncTransfer> pendingTransfers = Collections
+            .newSetFromMap(new ConcurrentHashMap<Usb4JavaAsyncTransfer, Boolean>());
+
+    public Usb4JavaAsyncUsbDeviceCommunication(UsbMassStorageDeviceConfig usbMassStorageDeviceConfig) {
+        super(usbMassStorageDeviceConfig);
+    }
+
+    @Override
+    public void openDevice() throws LibAumsException {
+        super.openDevice();
+
+        if (eventHandlingThread == null) {
+            eventHandlingThread = new EventHandlingThread(UsbMassStorageLibrary.getContext(),
+                    deviceConfig.getReadableDeviceId());
+            eventHandlingThread.start();
+            log.debug("openDevice: event handling thread for {} started", deviceConfig.getReadableDeviceId());
+        }
+    }
+
+    /**
+     * Submits bulk out transfer of the whole remaining content of direct buffer. Position of buffer is not
+     * changed.
+     *
+     * @param buffer direct buffer with the data
+     * @return pending transfer
+     * @throws LibAumsException if transfer could not be submitted
+     */
+    @Override
+    public Usb4JavaAsyncTransfer submitBulkOutTransfer(ByteBuffer buffer) throws LibAumsException {
+        return submit(buffer, deviceConfig.getOutEndpointAddress());
+    }
+
+    /**
+     * Submits bulk in transfer for the remaining space of direct buffer. Position of buffer is not changed,
+     * received data starts at the current position.
+     *
+     * @param buffer direct buffer where data will be read into
+     * @return pending transfer
+     * @throws LibAumsException if transfer could not be submitted
+     */
+    @Override
+    public Usb4JavaAsyncTransfer submitBulkInTransfer(ByteBuffer buffer) throws LibAumsException {
+        return submit(buffer, deviceConfig.getInEndpointAddress());
+    }
+
+    private Usb4JavaAsyncTransfer submit(ByteBuffer buffer, byte endpoint) throws LibAumsException {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Asynchronous transfers need direct buffer");
+        }
+
+        // libusb transfer always covers the whole capacity, so we hand over only the remaining part
+        Usb4JavaAsyncTransfer transfer = new Usb4JavaAsyncTransfer(buffer.slice(), TRANSFER_TIMEOUT);
+        transfer.submit(deviceHandle, endpoint);
+
+        for (Iterator<Usb4JavaAsyncTransfer> it = pendingTransfers.iterator(); it.hasNext(); ) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        pendingTransfers.add(transfer);
+        return transfer;
+    }
+
+    @Override
+    public int bulkOutTransfer(byte[] data, int length) throws LibAumsException {
+        return bulkOutTransfer(data, 0, length);
+    }
+
+    @Override
+    public int bulkOutTransfer(byte[] data, int offset, int length) throws LibAumsException {
+        log.debug("bulkOutTransfer: (length={},offset={})", length, offset);
+
+        ByteBuffer buffer = bufferPool.acquire(length);
+        Usb4JavaAsyncTransfer transfer = null;
+        try {
+            buffer.put(data, offset, buffer.remaining());
+            buffer.flip();
+
+            transfer = submitBulkOutTransfer(buffer);
+            int transferredCount = transfer.await();
+            log.debug("bulkOutTransfer: {} bytes sent to device", transferredCount);
+
+            return transferredCount;
+        } finally {
+            releaseBuffer(buffer, transfer);
+        }
+    }
+
+    @Override
+    public int bulkInTransfer(byte[] data, int length) throws LibAumsException {
+        return bulkInTransfer(data, 0, length);
+    }
+
+    @Override
+    public int bulkInTransfer(byte[] data, int offset, int length) throws LibAumsException {
+        log.debug("bulkInTransfer: (dataLength={},requestLength={},offset={})", data.length, length, offset);
+
+        ByteBuffer buffer = bufferPool.acquire(length);
+        Usb4JavaAsyncTransfer transfer = null;
+        try {
+            transfer = submitBulkInTransfer(buffer);
+            int transferredCount = transfer.await();
+            log.debug("bulkInTransfer: {} bytes read from device", transferredCount);
+
+            buffer.get(data, offset, transferredCount);
+
+            return transferredCount;
+        } finally {
+            releaseBuffer(buffer, transfer);
+        }
+    }
+
+    /**
+     * Gives pooled buffer back, unless libusb may still use it (transfer could not be cancelled in time).
+     */
+    private void releaseBuffer(ByteBuffer buffer, Usb4JavaAsyncTransfer transfer) {
+        if (transfer != null && !transfer.isDone()) {
+            log.warn("releaseBuffer: transfer still pending, buffer is not reused");
+            return;
+        }
+        bufferPool.release(buffer);
+    }
+
+    @Override
+    public int bulkOutTransfer(ByteBuffer buffer) throws LibAumsException {
+        if (!buffer.isDirect()) {
+            return bulkOutTransferWithCopy(buffer);
+        }
+
+        int transferredCount = submitBulkOutTransfer(buffer).await();
+        log.debug("bulkOutTransfer(ByteBuffer): {} bytes sent to device", transferredCount);
+
+        buffer.position(buffer.position() + transferredCount);
+        return transferredCount;
+    }
+
+    @Override
+    public int bulkInTransfer(ByteBuffer buffer) throws LibAumsException {
+        if (!buffer.isDirect()) {
+            return bulkInTransferWithCopy(buffer);
+        }
+
+        int transferredCount = submitBulkInTransfer(buffer).await();
+        log.debug("bulkInTransfer(ByteBuffer): {} bytes read from device", transferredCount);
+
+        buffer.position(buffer.position() + transferredCount);
+        return transferredCount;
+    }
+
+    /**
+     * Cancels transfers that are still pending and waits for them (event handling thread has to run for
+     * that), then stops the event handling thread and only then releases and closes the device handle.
+     */
+    @Override
+    public void closeDevice() throws LibAumsException {
+        for (Usb4JavaAsyncTransfer transfer : pendingTransfers) {
+            if (!transfer.isDone() && !transfer.cancelAndWait()) {
+                log.warn("closeDevice: pending transfer could not be cancelled");
+            }
+        }
+        pendingTransfers.clear();
+
+        if (eventHandlingThread != null) {
+            eventHandlingThread.abort();
+            try {
+                eventHandlingThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            eventHandlingThread = null;
+            log.debug("closeDevice: event handling thread for {} stopped", deviceConfig.getReadableDeviceId());
+        }
+
+        super.closeDevice();
+    }
+
+    /**
+     * This is the event handling thread. libusb doesn't start threads by its own so it is our own
+     * responsibility to give libusb time to handle the events (and call our transfer callbacks).
+     */
+    static class EventHandlingThread extends Thread {
+
+        private final Context context;
+        private volatile boolean abort;
+
+        EventHandlingThread(Context context, String deviceId) {
+            super("libaums-usb-events-" + deviceId);
+            this.context = context;
+            setDaemon(true);
+        }
+
+        public void abort() {
+            this.abort = true;
+        }
+
+        @Override
+        public void run() {
+            while (!this.abort) {
+                // blocks until events have been handled or 0.5 seconds (specified in microseconds) passed
+                int result = LibUsb.handleEventsTimeout(context, 500000);
+                if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_INTERRUPTED) {
+                    log.error("Unable to handle events: {}", LibUsb.strError(result));
+                }
+            }
+        }
+    }
+}
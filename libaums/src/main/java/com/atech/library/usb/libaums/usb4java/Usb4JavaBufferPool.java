@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.atech.library.usb.libaums.usb4java;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.usb4java.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of reusable direct buffers for one device. Buffers are handed out in fixed size classes (powers of two,
+ * from {@link #MIN_BUFFER_SIZE} up to the maximum transfer length of the device), so after the first few
+ * transfers no more direct memory is allocated.
+ * <p>
+ * Requests bigger than the maximum transfer length get the biggest buffer, with limit set to its capacity, and
+ * caller has to transfer the data in more steps.
+ */
+@Slf4j
+public class Usb4JavaBufferPool {
+
+    /**
+     * Smallest size class, one sector.
+     */
+    public static final int MIN_BUFFER_SIZE = 512;
+
+    /**
+     * How many free buffers we keep per size class, everything above that is left to GC.
+     */
+    private static final int MAX_FREE_BUFFERS_PER_CLASS = 4;
+
+    @Getter
+    private final int maxBufferSize;
+    private final List<ArrayDeque<ByteBuffer>> freeBuffers;
+
+    /**
+     * @param maxTransferLength maximum transfer length of device, it is rounded up to power of two
+     */
+    public Usb4JavaBufferPool(int maxTransferLength) {
+        this.maxBufferSize = roundUpToSizeClass(Math.max(maxTransferLength, MIN_BUFFER_SIZE));
+        int classes = getSizeClass(maxBufferSize) + 1;
+        this.freeBuffers = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            freeBuffers.add(new ArrayDeque<ByteBuffer>(MAX_FREE_BUFFERS_PER_CLASS));
+        }
+    }
+
+    /**
+     * Returns a cleared direct buffer (little endian) with limit set to requested size, or to its capacity if
+     * requested size is bigger than {@link #getMaxBufferSize()}.
+     *
+     * @param size requested size
+     * @return direct buffer, it has to be given back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int size) {
+        int bufferSize = roundUpToSizeClass(Math.min(Math.max(size, MIN_BUFFER_SIZE), maxBufferSize));
+
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = freeBuffers.get(getSizeClass(bufferSize)).pollFirst();
+        }
+
+        if (buffer == null) {
+            log.trace("acquire: allocating new direct buffer of size {}", bufferSize);
+            buffer = BufferUtils.allocateByteBuffer(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        buffer.clear();
+        buffer.limit(Math.min(size, bufferSize));
+        return buffer;
+    }
+
+    /**
+     * Returns buffer, previously acquired with {@link #acquire(int)}, back to the pool.
+     *
+     * @param buffer buffer
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > maxBufferSize || Integer.bitCount(capacity) != 1 || capacity < MIN_BUFFER_SIZE) {
+            return;
+        }
+
+        synchronized (this) {
+            ArrayDeque<ByteBuffer> free = freeBuffers.get(getSizeClass(capacity));
+            if (free.size() < MAX_FREE_BUFFERS_PER_CLASS) {
+                free.addFirst(buffer);
+            }
+        }
+    }
+
+    private static int roundUpToSizeClass(int size) {
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+
+    private static int getSizeClass(int bufferSize) {
+        return Integer.numberOfTrailingZeros(bufferSize) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+}
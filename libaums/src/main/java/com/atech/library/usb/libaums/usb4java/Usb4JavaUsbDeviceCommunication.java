@@ -26,7 +26,6 @@ import lombok.extern.slf4j.Slf4j;
 import org.usb4java.*;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 
 /**
@@ -35,14 +34,34 @@ import java.nio.IntBuffer;
 @Slf4j
 public class Usb4JavaUsbDeviceCommunication implements UsbCommunication {
 
-    private static final int TRANSFER_TIMEOUT = 5000; // 21000
+    protected static final int TRANSFER_TIMEOUT = 5000; // 21000
+    private static final byte MASS_STORAGE_RESET_REQUEST_TYPE = 0x21; // class request to interface
+    private static final byte MASS_STORAGE_RESET_REQUEST = (byte) 0xFF;
     DeviceHandle deviceHandle;
     @Getter
     UsbMassStorageDeviceConfig deviceConfig;
     boolean deviceIsOpenAndClaimed = false;
+    @Getter
+    volatile Usb4JavaBufferPool bufferPool;
+    private final IntBuffer transferred = BufferUtils.allocateIntBuffer();
 
     public Usb4JavaUsbDeviceCommunication(UsbMassStorageDeviceConfig usbMassStorageDeviceConfig) {
         this.deviceConfig = usbMassStorageDeviceConfig;
+        this.bufferPool = new Usb4JavaBufferPool(UsbMassStorageLibrary.MAX_TRANSFER_LENGTH);
+    }
+
+    /**
+     * Sizes the buffer pool for the maximum transfer length of the device (it is created with
+     * {@link UsbMassStorageLibrary#MAX_TRANSFER_LENGTH}). Buffers of the old pool are left to GC.
+     */
+    @Override
+    public void setMaxTransferLength(int maxTransferLength) {
+        Usb4JavaBufferPool pool = new Usb4JavaBufferPool(maxTransferLength);
+        if (pool.getMaxBufferSize() != bufferPool.getMaxBufferSize()) {
+            log.debug("setMaxTransferLength: buffer pool of {} sized for {} bytes",
+                    deviceConfig.getReadableDeviceId(), pool.getMaxBufferSize());
+            bufferPool = pool;
+        }
     }
 
     public void openDevice() throws LibAumsException {
@@ -97,116 +116,196 @@ public class Usb4JavaUsbDeviceCommunication implements UsbCommunication {
 
     @Override
     public int bulkOutTransfer(byte[] data, int length) throws LibAumsException {
+        return bulkOutTransfer(data, 0, length);
+    }
 
-        log.debug("bulkOutTransfer (data={},length={})", getAsHex(data), length);
+    @Override
+    public synchronized int bulkOutTransfer(byte[] data, int offset, int length)  throws LibAumsException{
 
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(data.length);
-        buffer.put(data);
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
-        int result = LibUsb.bulkTransfer(deviceHandle,  deviceConfig.getOutEndpointAddress(),
-                buffer,
-                transferred, TRANSFER_TIMEOUT);
-        if (result != LibUsb.SUCCESS) {
-            throw LibAumsException.createWithLibUsbException("Unable to send data: " + result, result);
+        if (log.isTraceEnabled()) {
+            log.trace("bulkOutTransfer: (data={},length={},offset={})", getAsHex(data), length, offset);
         }
 
-        int transferredCount = transferred.get();
-        log.debug("bulkOutTransfer: {} bytes sent to device", transferredCount);
+        ByteBuffer buffer = bufferPool.acquire(length);
+        try {
+            buffer.put(data, offset, buffer.remaining());
+            buffer.flip();
 
-        return transferredCount;
+            int transferredCount = bulkTransfer(deviceConfig.getOutEndpointAddress(), buffer);
+            if (transferredCount < 0) {
+                throw LibAumsException.createWithLibUsbException("Unable to send data: " + transferredCount,
+                        transferredCount);
+            }
+
+            log.debug("bulkOutTransfer: {} bytes sent to device", transferredCount);
+            return transferredCount;
+        } finally {
+            bufferPool.release(buffer);
+        }
     }
 
     @Override
-    public int bulkOutTransfer(byte[] data, int offset, int length)  throws LibAumsException{
-        if (offset==0) {
-            return bulkOutTransfer(data, length);
-        }
+    public int bulkInTransfer(byte[] data, int length) throws LibAumsException {
+        return bulkInTransfer(data, 0, length);
+    }
 
-        log.debug("bulkOutTransfer(offset): (data={},length={},offset={})", getAsHex(data), length, offset);
+    @Override
+    public synchronized int bulkInTransfer(byte[] data, int offset, int length)  throws LibAumsException{
 
-        int remaining = length-offset;
-        byte[] newData = new byte[length-offset];
-        System.arraycopy(data, offset, newData, 0, remaining);
+        log.debug("bulkInTransfer: dataLength={},requestLength={},offset={}", data.length, length, offset);
 
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(newData.length);
-        buffer.put(newData);
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
-        int result = LibUsb.bulkTransfer(deviceHandle,  deviceConfig.getOutEndpointAddress(), buffer,
-                transferred, TRANSFER_TIMEOUT);
-        if (result != LibUsb.SUCCESS)
-        {
-            throw LibAumsException.createWithLibUsbException("Unable to send data", result);
+        ByteBuffer buffer = bufferPool.acquire(length);
+        try {
+            int transferredCount = bulkTransfer(deviceConfig.getInEndpointAddress(), buffer);
+            if (transferredCount < 0) {
+                throw LibAumsException.createWithLibUsbException("Unable to read data", transferredCount);
+            }
+
+            log.debug("bulkInTransfer: {} bytes read from device", transferredCount);
+
+            buffer.get(data, offset, transferredCount);
+
+            if (log.isTraceEnabled()) {
+                log.trace("bulkInTransfer: Data returned: {}", getAsHex(data));
+            }
+
+            return transferredCount;
+        } finally {
+            bufferPool.release(buffer);
         }
+    }
 
-        int transferredCount = transferred.get();
-        log.debug("bulkOutTransfer(offset): {} bytes sent to device", transferredCount);
+    @Override
+    public int bulkOutTransfer(ByteBuffer buffer) throws LibAumsException {
+        if (!buffer.isDirect()) {
+            return bulkOutTransferWithCopy(buffer);
+        }
+
+        int transferredCount;
+        synchronized (this) {
+            transferredCount = bulkTransfer(deviceConfig.getOutEndpointAddress(), buffer);
+        }
+        if (transferredCount < 0) {
+            throw LibAumsException.createWithLibUsbException("Unable to send data: " + transferredCount,
+                    transferredCount);
+        }
 
+        log.debug("bulkOutTransfer(ByteBuffer): {} bytes sent to device", transferredCount);
+        buffer.position(buffer.position() + transferredCount);
         return transferredCount;
     }
 
     @Override
-    public int bulkInTransfer(byte[] data, int length) throws LibAumsException {
-
-        log.debug("bulkInTransfer: dataLength={},requestLength={}", data.length, length);
+    public int bulkInTransfer(ByteBuffer buffer) throws LibAumsException {
+        if (!buffer.isDirect()) {
+            return bulkInTransferWithCopy(buffer);
+        }
 
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(length).order(
-                ByteOrder.LITTLE_ENDIAN);
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
-        int result = LibUsb.bulkTransfer(deviceHandle,
-                deviceConfig.getInEndpointAddress(), buffer,
-                transferred, TRANSFER_TIMEOUT);
-        if (result != LibUsb.SUCCESS) {
-            throw LibAumsException.createWithLibUsbException("Unable to read data", result);
+        int transferredCount;
+        synchronized (this) {
+            transferredCount = bulkTransfer(deviceConfig.getInEndpointAddress(), buffer);
+        }
+        if (transferredCount < 0) {
+            throw LibAumsException.createWithLibUsbException("Unable to read data", transferredCount);
         }
 
-        int transferredCount = transferred.get();
-        log.debug("bulkInTransfer: {} bytes read from device", transferredCount);
+        log.debug("bulkInTransfer(ByteBuffer): {} bytes read from device", transferredCount);
+        buffer.position(buffer.position() + transferredCount);
+        return transferredCount;
+    }
 
+    /**
+     * Heap buffers can't be handed to libusb, so they are transferred through the byte[] methods (and pooled
+     * direct buffer).
+     */
+    protected int bulkOutTransferWithCopy(ByteBuffer buffer) throws LibAumsException {
+        int transferredCount;
         if (buffer.hasArray()) {
-            log.trace("bulkInTransfer: Buffer.hasArray: {}", buffer);
-            System.arraycopy(buffer.array(), 0, data, 0, length);
+            transferredCount = bulkOutTransfer(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
         } else {
-            buffer.get(data);
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            transferredCount = bulkOutTransfer(data, 0, data.length);
         }
 
-        log.debug("bulkInTransfer: Data returned: {}", getAsHex(data));
-
+        buffer.position(buffer.position() + transferredCount);
         return transferredCount;
     }
 
-    @Override
-    public int bulkInTransfer(byte[] data, int offset, int length)  throws LibAumsException{
-        if (offset==0) {
-            return bulkInTransfer(data, length);
+    protected int bulkInTransferWithCopy(ByteBuffer buffer) throws LibAumsException {
+        int transferredCount;
+        if (buffer.hasArray()) {
+            transferredCount = bulkInTransfer(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            buffer.position(buffer.position() + transferredCount);
+        } else {
+            byte[] data = new byte[buffer.remaining()];
+            transferredCount = bulkInTransfer(data, 0, data.length);
+            buffer.put(data, 0, transferredCount);
         }
 
-        log.debug("bulkInTransfer(offset): dataLength={},requestLength={},offset={}", data.length, length, offset);
+        return transferredCount;
+    }
 
-        ByteBuffer buffer = BufferUtils.allocateByteBuffer(length).order(
-                ByteOrder.LITTLE_ENDIAN);
-        IntBuffer transferred = BufferUtils.allocateIntBuffer();
-        int result = LibUsb.bulkTransfer(deviceHandle, deviceConfig.getInEndpointAddress(),
-                buffer,
-                transferred, TRANSFER_TIMEOUT);
+    /**
+     * Does blocking bulk transfer of the remaining part of direct buffer. Position of buffer is not changed.
+     *
+     * @return bytes transferred, or libusb error code (negative value)
+     */
+    private int bulkTransfer(byte endpoint, ByteBuffer buffer) {
+        // libusb always transfers the whole capacity of the buffer, so we hand over only the remaining part
+        transferred.clear();
+        int result = LibUsb.bulkTransfer(deviceHandle, endpoint, buffer.slice(), transferred, TRANSFER_TIMEOUT);
         if (result != LibUsb.SUCCESS) {
-            throw LibAumsException.createWithLibUsbException("Unable to read data", result);
+            return result;
         }
 
-        int transferredCount = transferred.get();
-        log.debug("bulkInTransfer(offset): {} bytes read from device", transferredCount);
+        return transferred.get(0);
+    }
 
-        if (buffer.hasArray()) {
-            log.trace("bulkInTransfer(offset): Buffer.hasArray: {}", buffer);
-            System.arraycopy(buffer.array(), 0, data, offset, length);
-        } else {
-            buffer.get(data, offset, length);
-        }
 
-        log.debug("bulkInTransfer(offset): Data returned: {}", getAsHex(data));
+    /**
+     * Clears the halt (stall) condition of the bulk in endpoint.
+     */
+    @Override
+    public void clearInEndpointHalt() throws LibAumsException {
+        clearHalt(deviceConfig.getInEndpointAddress());
+    }
 
-        return transferredCount;
+    /**
+     * Clears the halt (stall) condition of the bulk out endpoint.
+     */
+    @Override
+    public void clearOutEndpointHalt() throws LibAumsException {
+        clearHalt(deviceConfig.getOutEndpointAddress());
+    }
+
+    private void clearHalt(byte endpoint) throws LibAumsException {
+        log.debug("clearHalt: endpoint 0x{}", String.format("%02X", endpoint));
+        int result = LibUsb.clearHalt(deviceHandle, endpoint);
+        if (result != LibUsb.SUCCESS) {
+            throw LibAumsException.createWithLibUsbException("Unable to clear halt", result);
+        }
     }
 
+    /**
+     * Bulk-Only Mass Storage Reset, followed by clearing halt on both endpoints (reset recovery from Bulk-Only
+     * Transport specification, needed after phase error).
+     */
+    @Override
+    public void resetRecovery() throws LibAumsException {
+        log.warn("resetRecovery: resetting device {}", deviceConfig.getReadableDeviceId());
+        int result = LibUsb.controlTransfer(deviceHandle, MASS_STORAGE_RESET_REQUEST_TYPE, MASS_STORAGE_RESET_REQUEST,
+                (short) 0, (short) deviceConfig.getInterfaceNumber(), BufferUtils.allocateByteBuffer(0),
+                TRANSFER_TIMEOUT);
+        if (result < 0) {
+            throw LibAumsException.createWithLibUsbException("Unable to reset mass storage device", result);
+        }
+
+        clearInEndpointHalt();
+        clearOutEndpointHalt();
+    }
 
     public void closeDevice() throws LibAumsException {
         if (deviceHandle == null) {
@@ -230,7 +329,7 @@ public class Usb4JavaUsbDeviceCommunication implements UsbCommunication {
         deviceHandle = null;
     }
 
-    private String getAsHex(byte[] bytes) {
+    protected String getAsHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
             sb.append(String.format("0x%02X ", b));
@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums;
+
+import java.nio.ByteBuffer;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+
+/**
+ * This interface extends {@link UsbCommunication} with transfers which are
+ * only submitted to the USB stack and completed later. That way the next
+ * transfer can be queued before the previous one has finished, for example
+ * the data and the status phase of a SCSI command.
+ *
+ * @see com.github.mjdev.libaums.driver.scsi.ScsiBlockDevice#setPipelined(boolean)
+ */
+public interface AsyncUsbCommunication extends UsbCommunication {
+
+	/**
+	 * A transfer which has been submitted, but may not be finished yet.
+	 */
+	public interface PendingTransfer {
+		/**
+		 * Waits until the transfer is finished.
+		 *
+		 * @return Bytes transferred.
+		 * @throws LibAumsException
+		 *             If the transfer failed.
+		 */
+		public int await() throws LibAumsException;
+
+		/**
+		 * Cancels the transfer if it is still pending. {@link #await()} has
+		 * to be called afterwards to wait until the cancellation is done.
+		 */
+		public void cancel();
+
+		/**
+		 *
+		 * @return True if the transfer failed because the endpoint was
+		 *         halted by the device.
+		 */
+		public boolean isStalled();
+	}
+
+	/**
+	 * Submits a bulk out transfer of the remaining bytes in the direct
+	 * <code>buffer</code>. The position of the buffer is not changed.
+	 *
+	 * @param buffer
+	 *            Direct buffer with the data to transfer.
+	 * @return The pending transfer.
+	 * @throws LibAumsException
+	 *             If submitting the transfer fails.
+	 */
+	public PendingTransfer submitBulkOutTransfer(ByteBuffer buffer) throws LibAumsException;
+
+	/**
+	 * Submits a bulk in transfer into the remaining space of the direct
+	 * <code>buffer</code>. The position of the buffer is not changed.
+	 *
+	 * @param buffer
+	 *            Direct buffer where the data should be transferred.
+	 * @return The pending transfer.
+	 * @throws LibAumsException
+	 *             If submitting the transfer fails.
+	 */
+	public PendingTransfer submitBulkInTransfer(ByteBuffer buffer) throws LibAumsException;
+}
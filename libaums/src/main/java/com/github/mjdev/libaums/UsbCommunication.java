@@ -19,6 +19,8 @@ package com.github.mjdev.libaums;
 
 import com.atech.library.usb.libaums.data.LibAumsException;
 
+import java.nio.ByteBuffer;
+
 /**
  * This Interface describes a low level device to perform USB transfers. At the
  * moment only bulk IN and OUT transfer are supported. Every class that follows
@@ -93,6 +95,71 @@ public interface UsbCommunication {
 	 */
 	public int bulkInTransfer(byte[] buffer, int offset, int length) throws LibAumsException;
 
+	/**
+	 * Performs a bulk out transfer of the remaining bytes in the
+	 * <code>buffer</code>. If the buffer is a direct buffer, implementations
+	 * should hand it to the USB stack without copying it.
+	 * <p>
+	 * The position of the buffer is advanced by the amount of bytes
+	 * transmitted.
+	 * 
+	 * @param buffer
+	 *            The data to transfer.
+	 * @return Bytes transmitted if successful, or -1.
+	 * @see #bulkInTransfer(ByteBuffer)
+	 */
+	public int bulkOutTransfer(ByteBuffer buffer) throws LibAumsException;
+
+	/**
+	 * Performs a bulk in transfer into the remaining space of the
+	 * <code>buffer</code>. If the buffer is a direct buffer, implementations
+	 * should let the USB stack write directly into it.
+	 * <p>
+	 * The position of the buffer is advanced by the amount of bytes read.
+	 * 
+	 * @param buffer
+	 *            The buffer where data should be transferred.
+	 * @return Bytes read if successful, or -1.
+	 * @see #bulkOutTransfer(ByteBuffer)
+	 */
+	public int bulkInTransfer(ByteBuffer buffer) throws LibAumsException;
+
+	/**
+	 * Clears the halt (stall) condition of the bulk in endpoint.
+	 *
+	 * @throws LibAumsException
+	 *             If clearing fails.
+	 */
+	public void clearInEndpointHalt() throws LibAumsException;
+
+	/**
+	 * Clears the halt (stall) condition of the bulk out endpoint.
+	 *
+	 * @throws LibAumsException
+	 *             If clearing fails.
+	 */
+	public void clearOutEndpointHalt() throws LibAumsException;
+
+	/**
+	 * Performs the reset recovery of the bulk only transport (mass storage
+	 * reset followed by clearing the halt of both endpoints). This is needed
+	 * after a phase error.
+	 *
+	 * @throws LibAumsException
+	 *             If the reset fails.
+	 */
+	public void resetRecovery() throws LibAumsException;
+
+	/**
+	 * Tells the communication the biggest transfer the block device will
+	 * request, so that buffers are sized for the device and not for the
+	 * library default. Called after the device limits are known.
+	 *
+	 * @param maxTransferLength
+	 *            The maximum transfer length in bytes.
+	 */
+	public void setMaxTransferLength(int maxTransferLength);
+
 	/**
 	 * Returns readable device name in form xxxx:yyyy (needed just for information purposes)
 	 * @return
@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import com.atech.library.usb.libaums.UsbMassStorageLibrary;
 import com.atech.library.usb.libaums.data.LibAumsException;
@@ -31,9 +33,12 @@ import com.atech.library.usb.libaums.usb.device.ATUsbDevice;
 import com.atech.library.usb.libaums.usb.device.ATUsbEndpointDescriptor;
 import com.atech.library.usb.libaums.usb.device.ATUsbInterface;
 import com.atech.library.usb.libaums.usb.device.ATUsbInterfaceDescriptor;
+import com.atech.library.usb.libaums.usb4java.Usb4JavaAsyncUsbDeviceCommunication;
 import com.atech.library.usb.libaums.usb4java.Usb4JavaManager;
 import com.atech.library.usb.libaums.usb4java.Usb4JavaUsbDeviceCommunication;
+import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 import com.github.mjdev.libaums.driver.BlockDeviceDriverFactory;
+import com.github.mjdev.libaums.driver.CachingBlockDeviceDriver;
 import com.github.mjdev.libaums.driver.scsi.ScsiBlockDevice;
 import com.github.mjdev.libaums.partition.PartitionTableFactory;
 import lombok.Getter;
@@ -75,6 +80,18 @@ public class UsbMassStorageDevice {
 
 	@Getter
 	private ScsiBlockDevice blockDevice;
+	/**
+	 * Cache between {@link #blockDevice} and the partitions, null if
+	 * {@link UsbMassStorageLibrary#BLOCK_CACHE_SIZE} is 0.
+	 */
+	@Getter
+	private CachingBlockDeviceDriver blockCache;
+	private Timer blockCacheTimer;
+	/**
+	 * Closes the device when the JVM exits, so dirty pages of the
+	 * {@link #blockCache} are not lost.
+	 */
+	private Thread shutdownHook;
 	private PartitionTable partitionTable;
 	private List<Partition> partitions = new ArrayList<>();
 
@@ -245,18 +262,32 @@ public class UsbMassStorageDevice {
 	 */
 	private void setupDevice() throws LibAumsException {
 		log.debug("Init device {}", usbMassStorageDeviceConfig.getReadableDeviceId());
-		communication = new Usb4JavaUsbDeviceCommunication(this.usbMassStorageDeviceConfig);
+		if (UsbMassStorageLibrary.USE_ASYNC_TRANSFERS) {
+			communication = new Usb4JavaAsyncUsbDeviceCommunication(this.usbMassStorageDeviceConfig);
+		} else {
+			communication = new Usb4JavaUsbDeviceCommunication(this.usbMassStorageDeviceConfig);
+		}
 		communication.openDevice();
 
 		this.connectedToDevice = true;
 
 		log.debug("Create Block Device for {}", usbMassStorageDeviceConfig.getReadableDeviceId());
 		blockDevice = BlockDeviceDriverFactory.createBlockDevice(communication);
+		blockDevice.setPipelined(UsbMassStorageLibrary.PIPELINED_SCSI_TRANSFERS);
 		blockDevice.init();
 
+		if (UsbMassStorageLibrary.BLOCK_CACHE_SIZE > 0) {
+			blockCache = new CachingBlockDeviceDriver(blockDevice, blockDevice.getLastBlockAddress() + 1,
+					UsbMassStorageLibrary.BLOCK_CACHE_SIZE);
+			if (UsbMassStorageLibrary.BLOCK_CACHE_WRITE_BACK) {
+				blockCache.setWriteBack(true);
+				startWriteBack(UsbMassStorageLibrary.BLOCK_CACHE_FLUSH_INTERVAL);
+			}
+		}
+
 		if (loadPartitionTable) {
 			log.debug("Create Partition Table for {}", usbMassStorageDeviceConfig.getReadableDeviceId());
-			partitionTable = PartitionTableFactory.createPartitionTable(blockDevice);
+			partitionTable = PartitionTableFactory.createPartitionTable(getPartitionDevice());
 			initPartitions();
 		}
 	}
@@ -266,28 +297,105 @@ public class UsbMassStorageDevice {
 	 * {@link #partitionTable}.
 	 * 
 	 * @throws IOException
-	 *             If reading from the {@link #blockDevice} fails.
+	 *             If reading from the device fails.
 	 */
 	private void initPartitions() throws LibAumsException {
 		Collection<PartitionTableEntry> partitionEntrys = partitionTable.getPartitionTableEntries();
 
 		for (PartitionTableEntry entry : partitionEntrys) {
-			Partition partition = Partition.createPartition(entry, blockDevice);
+			Partition partition = Partition.createPartition(entry, getPartitionDevice());
 			if (partition != null) {
 				partitions.add(partition);
 			}
 		}
 	}
 
+	/**
+	 * Returns the device the partitions are read from, this is the
+	 * {@link #blockCache} if there is one.
+	 */
+	private BlockDeviceDriver getPartitionDevice() {
+		return blockCache != null ? blockCache : blockDevice;
+	}
+
+	/**
+	 * Starts the timer which writes the dirty pages of the {@link #blockCache}
+	 * periodically and registers the {@link #shutdownHook}.
+	 */
+	private void startWriteBack(long interval) {
+		if (interval > 0) {
+			blockCacheTimer = new Timer("libaums-block-cache-flush", true);
+			blockCacheTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						blockCache.flush();
+					} catch (LibAumsException e) {
+						log.warn("writing dirty pages failed", e);
+					}
+				}
+			}, interval, interval);
+		}
+
+		shutdownHook = new Thread("libaums-shutdown") {
+			@Override
+			public void run() {
+				try {
+					shutdownHook = null;
+					close();
+				} catch (LibAumsException e) {
+					log.warn("closing device at shutdown failed", e);
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
 	/**
 	 * Releases the @link android.hardware.usb.UsbInterface and closes the
 	 * @link android.hardware.usb.UsbDeviceConnection. After calling this
 	 * method no further communication is possible. That means you can not read
 	 * or write from or to the partitions returned by {@link #getPartitions()}.
+	 * <p>
+	 * The file systems of the partitions are closed first and the
+	 * {@link #blockCache} is flushed, so changes which are only kept in memory
+	 * are written to the device.
 	 */
-	public void close() throws LibAumsException {
+	public synchronized void close() throws LibAumsException {
 		if (this.connectedToDevice) {
-			this.communication.closeDevice();
+			if (blockCacheTimer != null) {
+				blockCacheTimer.cancel();
+				blockCacheTimer = null;
+			}
+
+			try {
+				try {
+					for (Partition partition : partitions) {
+						if (partition.getFileSystem() != null) {
+							partition.getFileSystem().close();
+						}
+					}
+				} finally {
+					if (blockCache != null) {
+						blockCache.flush();
+					}
+				}
+			} finally {
+				removeShutdownHook();
+				this.communication.closeDevice();
+				this.connectedToDevice = false;
+			}
+		}
+	}
+
+	private void removeShutdownHook() {
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// the JVM is already shutting down
+			}
+			shutdownHook = null;
 		}
 	}
 
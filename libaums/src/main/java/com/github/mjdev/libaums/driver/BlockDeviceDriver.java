@@ -77,6 +77,33 @@ public interface BlockDeviceDriver {
 	 */
 	public void write(long deviceOffset, ByteBuffer buffer) throws LibAumsException;
 
+	/**
+	 * Writes all data which has been written to the block device but is only
+	 * kept in memory, like the dirty pages of a
+	 * {@link CachingBlockDeviceDriver}. Block devices which write immediately
+	 * do nothing.
+	 * 
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public void flush() throws LibAumsException;
+
+	/**
+	 * Writes the data kept in memory for the given range only, the rest stays
+	 * in memory. This is a write barrier for single structures which have to
+	 * be on the device before anything else that is pending, like the dirty
+	 * bit of a file system.
+	 * 
+	 * @param deviceOffset
+	 *            The offset where the range begins, in the same unit as for
+	 *            {@link #write(long, ByteBuffer)}.
+	 * @param length
+	 *            The length of the range in bytes.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public void flush(long deviceOffset, long length) throws LibAumsException;
+
 	/**
 	 * Returns the block size of the block device. Every block device can only
 	 * read and store bytes in a specific block with a certain size.
@@ -86,4 +113,30 @@ public interface BlockDeviceDriver {
 	 * @return The block size in bytes, mostly 512 bytes.
 	 */
 	public int getBlockSize();
+
+	/**
+	 * Returns the maximum amount of bytes the block device can transfer with
+	 * one request. Bigger requests are still possible, but they are split.
+	 * 
+	 * @return The maximum transfer length in bytes.
+	 */
+	public int getMaxTransferLength();
+
+	/**
+	 * Returns the amount of bytes the block device handles best with one
+	 * request. Callers which are free to choose the size of their requests,
+	 * like buffered streams or copy utilities, should use this size.
+	 * 
+	 * @return The optimal transfer length in bytes.
+	 */
+	public int getOptimalTransferLength();
+
+	/**
+	 * Returns the granularity requests should be aligned to, to avoid read
+	 * modify write cycles inside the device. This is at least
+	 * {@link #getBlockSize()}.
+	 * 
+	 * @return The transfer granularity in bytes.
+	 */
+	public int getTransferGranularity();
 }
@@ -0,0 +1,489 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.driver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Block device which keeps recently used parts of another block device in
+ * memory. The device is divided into pages of {@link #getPageSize()} bytes,
+ * which are kept in a LRU cache. This is meant for the small and often
+ * repeated reads of the file system, like the boot sector, the FAT and
+ * directories. Bigger requests, which are mostly file contents, bypass the
+ * cache so they do not displace these.
+ * <p>
+ * Writes are passed to the device immediately and cached pages are updated,
+ * unless {@link #setWriteBack(boolean) write back} is enabled. Then small
+ * writes only change the cached pages, which are marked dirty. Dirty pages
+ * are written on {@link #flush()}, when a dirty page has to be evicted or when
+ * more than half of the cache is dirty. They are written sorted by address
+ * and neighbouring pages are merged into one request, so many small writes
+ * of the file system end up in a few big ones.
+ * <p>
+ * Like {@link com.github.mjdev.libaums.driver.scsi.ScsiBlockDevice} the
+ * device offsets are logical block addresses. The wrapped device has to be
+ * initialized before it is wrapped.
+ *
+ * @see com.atech.library.usb.libaums.UsbMassStorageLibrary#BLOCK_CACHE_SIZE
+ */
+@Slf4j
+public class CachingBlockDeviceDriver implements BlockDeviceDriver {
+
+	/**
+	 * Default size of one page in bytes.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+	/**
+	 * Requests bigger than this are passed to the device directly.
+	 */
+	public static final int MAX_CACHED_REQUEST = 64 * 1024;
+
+	private BlockDeviceDriver blockDevice;
+	private long blockCount;
+	private int blockSize;
+	private int pageSize;
+	private int maxPages;
+	/**
+	 * Cached pages by page number in access order, the least recently used
+	 * page comes first. The last page of the device may be shorter than
+	 * {@link #pageSize}.
+	 */
+	private LinkedHashMap<Long, byte[]> pages = new LinkedHashMap<>(16, 0.75f, true);
+	private long hitCount;
+	private long missCount;
+	/**
+	 * End of the pages loaded during the current read, these are already
+	 * counted as misses.
+	 */
+	private long loadedEnd;
+	private boolean writeBack;
+	/**
+	 * Pages which are changed in memory but not written to the device yet.
+	 */
+	private TreeSet<Long> dirtyPages = new TreeSet<>();
+	private int maxDirtyPages;
+
+	/**
+	 * Constructs a new cache with pages of {@link #DEFAULT_PAGE_SIZE}, or the
+	 * transfer granularity of the device if that is bigger.
+	 *
+	 * @param blockDevice
+	 *            The initialized block device which shall be cached.
+	 * @param blockCount
+	 *            The number of blocks of the device.
+	 * @param cacheSize
+	 *            The maximum size of the cache in bytes.
+	 */
+	public CachingBlockDeviceDriver(BlockDeviceDriver blockDevice, long blockCount, int cacheSize) {
+		this(blockDevice, blockCount, cacheSize,
+				Math.max(DEFAULT_PAGE_SIZE, blockDevice.getTransferGranularity()));
+	}
+
+	/**
+	 * Constructs a new cache.
+	 *
+	 * @param blockDevice
+	 *            The initialized block device which shall be cached.
+	 * @param blockCount
+	 *            The number of blocks of the device.
+	 * @param cacheSize
+	 *            The maximum size of the cache in bytes.
+	 * @param pageSize
+	 *            The size of one page in bytes, it is rounded up to a multiple
+	 *            of the block size.
+	 */
+	public CachingBlockDeviceDriver(BlockDeviceDriver blockDevice, long blockCount, int cacheSize,
+			int pageSize) {
+		this.blockDevice = blockDevice;
+		this.blockCount = blockCount;
+		this.blockSize = blockDevice.getBlockSize();
+		this.pageSize = (pageSize + blockSize - 1) / blockSize * blockSize;
+		this.maxPages = Math.max(cacheSize / this.pageSize, 1);
+		this.maxDirtyPages = Math.max(maxPages / 2, 1);
+		log.debug("block cache with " + maxPages + " pages of " + this.pageSize + " bytes");
+	}
+
+	/**
+	 * Does nothing, the wrapped device is already initialized.
+	 */
+	@Override
+	public void init() {
+
+	}
+
+	@Override
+	public synchronized void read(long deviceOffset, ByteBuffer buffer) throws LibAumsException {
+		if (buffer.remaining() > MAX_CACHED_REQUEST) {
+			ByteBuffer dest = buffer.duplicate();
+			blockDevice.read(deviceOffset, buffer);
+			copyDirtyPages(deviceOffset * blockSize, dest);
+			return;
+		}
+
+		long offset = deviceOffset * blockSize;
+		long lastPage = (offset + buffer.remaining() - 1) / pageSize;
+		loadedEnd = -1;
+
+		while (buffer.hasRemaining()) {
+			long page = offset / pageSize;
+			byte[] data = getPage(page, lastPage);
+			int pageOffset = (int) (offset - page * pageSize);
+			if (pageOffset >= data.length) {
+				throw LibAumsException.createWithIOException("reading beyond end of device");
+			}
+
+			int size = Math.min(buffer.remaining(), data.length - pageOffset);
+			buffer.put(data, pageOffset, size);
+			offset += size;
+		}
+	}
+
+	@Override
+	public synchronized void write(long deviceOffset, ByteBuffer buffer) throws LibAumsException {
+		int length = buffer.remaining();
+		boolean cached = writeBack && length <= MAX_CACHED_REQUEST;
+		if (!cached) {
+			blockDevice.write(deviceOffset, buffer.duplicate());
+		}
+
+		long offset = deviceOffset * blockSize;
+		loadedEnd = -1;
+		while (buffer.hasRemaining()) {
+			long page = offset / pageSize;
+			int pageOffset = (int) (offset - page * pageSize);
+			int size = Math.min(buffer.remaining(), pageSize - pageOffset);
+			byte[] data = pages.get(page);
+			if (data == null && cached) {
+				// pages which are overwritten completely do not have to be read
+				if (size == pageSize) {
+					data = new byte[pageSize];
+					pages.put(page, data);
+				} else {
+					data = getPage(page, page);
+				}
+			}
+
+			if (data != null) {
+				buffer.get(data, pageOffset, size);
+				if (cached) {
+					dirtyPages.add(page);
+				}
+			} else {
+				buffer.position(buffer.position() + size);
+			}
+			offset += size;
+		}
+
+		if (length % blockSize != 0) {
+			// like the device, fill the rest of the last block with zeros
+			byte[] data = pages.get((offset - 1) / pageSize);
+			if (data != null) {
+				int from = (int) (offset % pageSize);
+				int to = (from + blockSize - 1) / blockSize * blockSize;
+				Arrays.fill(data, from, Math.min(to, data.length), (byte) 0);
+			}
+		}
+
+		evict();
+		if (dirtyPages.size() > maxDirtyPages) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes all dirty pages to the device, sorted by their address.
+	 * Neighbouring pages are written with one request, up to the maximum
+	 * transfer length of the device.
+	 */
+	@Override
+	public synchronized void flush() throws LibAumsException {
+		flushPages(dirtyPages);
+	}
+
+	/**
+	 * Writes the dirty pages which overlap the given range, like
+	 * {@link #flush()} does for all pages.
+	 */
+	@Override
+	public synchronized void flush(long deviceOffset, long length) throws LibAumsException {
+		if (length <= 0) {
+			return;
+		}
+
+		long offset = deviceOffset * blockSize;
+		flushPages(dirtyPages.subSet(offset / pageSize, true, (offset + length - 1) / pageSize, true));
+	}
+
+	/**
+	 * Writes the given dirty pages sorted and merged into runs.
+	 */
+	private void flushPages(SortedSet<Long> pagesToWrite) throws LibAumsException {
+		if (pagesToWrite.isEmpty()) {
+			return;
+		}
+
+		log.debug("writing " + pagesToWrite.size() + " dirty pages");
+		final int maxRunPages = Math.max(blockDevice.getMaxTransferLength() / pageSize, 1);
+		// copied, because writing the pages removes them from the set
+		long[] sorted = new long[pagesToWrite.size()];
+		int count = 0;
+		for (long page : pagesToWrite) {
+			sorted[count++] = page;
+		}
+
+		int start = 0;
+		while (start < count) {
+			int end = start + 1;
+			while (end < count && sorted[end] == sorted[end - 1] + 1 && end - start < maxRunPages) {
+				end++;
+			}
+			writePages(sorted[start], end - start);
+			start = end;
+		}
+	}
+
+	/**
+	 * Writes consecutive dirty pages with one request and marks them clean.
+	 */
+	private void writePages(long firstPage, int count) throws LibAumsException {
+		int length = 0;
+		for (long page = firstPage; page < firstPage + count; page++) {
+			length += pages.get(page).length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (long page = firstPage; page < firstPage + count; page++) {
+			buffer.put(pages.get(page));
+		}
+		buffer.flip();
+		blockDevice.write(firstPage * (pageSize / blockSize), buffer);
+
+		for (long page = firstPage; page < firstPage + count; page++) {
+			dirtyPages.remove(page);
+		}
+	}
+
+	/**
+	 * Copies the contents of dirty pages into a buffer which was read from the
+	 * device directly, because the device does not have them yet.
+	 * 
+	 * @param offset
+	 *            The offset in bytes the buffer was read from.
+	 * @param dest
+	 *            The buffer with position and limit from before the read.
+	 */
+	private void copyDirtyPages(long offset, ByteBuffer dest) {
+		if (dirtyPages.isEmpty()) {
+			return;
+		}
+
+		long end = offset + dest.remaining();
+		for (long page : dirtyPages.subSet(offset / pageSize, true, (end - 1) / pageSize, true)) {
+			byte[] data = pages.get(page);
+			long pageStart = page * pageSize;
+			long from = Math.max(offset, pageStart);
+			long to = Math.min(end, pageStart + data.length);
+
+			ByteBuffer part = dest.duplicate();
+			part.position(dest.position() + (int) (from - offset));
+			part.put(data, (int) (from - pageStart), (int) (to - from));
+		}
+	}
+
+	/**
+	 * Returns a page from the cache or loads it. If it has to be loaded, the
+	 * following pages up to lastPage, which are not cached either, are loaded
+	 * with the same request.
+	 */
+	private byte[] getPage(long page, long lastPage) throws LibAumsException {
+		byte[] data = pages.get(page);
+		if (data != null) {
+			if (page >= loadedEnd) {
+				hitCount++;
+			}
+			return data;
+		}
+
+		long end = page + 1;
+		while (end <= lastPage && !pages.containsKey(end)) {
+			end++;
+		}
+		missCount += end - page;
+		loadedEnd = end;
+
+		final int blocksPerPage = pageSize / blockSize;
+		long firstBlock = page * blocksPerPage;
+		long blocks = Math.min((end - page) * blocksPerPage, blockCount - firstBlock);
+		if (blocks <= 0) {
+			throw LibAumsException.createWithIOException("reading beyond end of device");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) (blocks * blockSize));
+		blockDevice.read(firstBlock, buffer);
+
+		for (long i = page; i < end && (i - page) * pageSize < buffer.capacity(); i++) {
+			int start = (int) ((i - page) * pageSize);
+			byte[] loaded = new byte[Math.min(pageSize, buffer.capacity() - start)];
+			System.arraycopy(buffer.array(), start, loaded, 0, loaded.length);
+			pages.put(i, loaded);
+			if (i == page) {
+				data = loaded;
+			}
+		}
+
+		// if more pages were loaded than fit into the cache, the requested
+		// one may already be evicted again
+		evict();
+		return data;
+	}
+
+	/**
+	 * Removes the least recently used pages until the cache has its maximum
+	 * size again. If a dirty page has to be removed, all dirty pages are
+	 * written first.
+	 */
+	private void evict() throws LibAumsException {
+		while (pages.size() > maxPages) {
+			Long eldest = pages.keySet().iterator().next();
+			if (dirtyPages.contains(eldest)) {
+				flush();
+			}
+			pages.remove(eldest);
+		}
+	}
+
+	/**
+	 * Writes all dirty pages and removes all pages from the cache.
+	 * 
+	 * @throws LibAumsException
+	 *             If writing the dirty pages fails.
+	 */
+	public synchronized void invalidate() throws LibAumsException {
+		flush();
+		pages.clear();
+	}
+
+	/**
+	 * Enables or disables write back. If it is disabled, all dirty pages are
+	 * written.
+	 * 
+	 * @param writeBack
+	 *            True if small writes shall only be kept in memory until the
+	 *            next {@link #flush()}.
+	 * @throws LibAumsException
+	 *             If writing the dirty pages fails.
+	 */
+	public synchronized void setWriteBack(boolean writeBack) throws LibAumsException {
+		if (!writeBack) {
+			flush();
+		}
+		this.writeBack = writeBack;
+	}
+
+	/**
+	 *
+	 * @return True if write back is enabled.
+	 */
+	public synchronized boolean isWriteBack() {
+		return writeBack;
+	}
+
+	/**
+	 *
+	 * @return The number of pages which are not written to the device yet.
+	 */
+	public synchronized int getDirtyPageCount() {
+		return dirtyPages.size();
+	}
+
+	/**
+	 *
+	 * @return The number of page accesses which were served from memory.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 *
+	 * @return The number of page accesses which needed a read from the device.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Sets the hit and miss count to zero.
+	 */
+	public synchronized void resetStatistics() {
+		hitCount = 0;
+		missCount = 0;
+	}
+
+	/**
+	 *
+	 * @return The number of pages currently cached.
+	 */
+	public synchronized int getCachedPageCount() {
+		return pages.size();
+	}
+
+	/**
+	 *
+	 * @return The size of one page in bytes.
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 *
+	 * @return The wrapped block device.
+	 */
+	public BlockDeviceDriver getBlockDevice() {
+		return blockDevice;
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public int getMaxTransferLength() {
+		return blockDevice.getMaxTransferLength();
+	}
+
+	@Override
+	public int getOptimalTransferLength() {
+		return blockDevice.getOptimalTransferLength();
+	}
+
+	@Override
+	public int getTransferGranularity() {
+		return blockDevice.getTransferGranularity();
+	}
+}
@@ -19,10 +19,13 @@ package com.github.mjdev.libaums.driver.scsi;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.ByteOrder;
 
 
+import com.atech.library.usb.libaums.UsbMassStorageLibrary;
 import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.AsyncUsbCommunication;
+import com.github.mjdev.libaums.AsyncUsbCommunication.PendingTransfer;
 import com.github.mjdev.libaums.UsbCommunication;
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 import com.github.mjdev.libaums.driver.scsi.commands.CommandBlockWrapper;
@@ -31,10 +34,15 @@ import com.github.mjdev.libaums.driver.scsi.commands.CommandStatusWrapper;
 import com.github.mjdev.libaums.driver.scsi.commands.ScsiInquiry;
 import com.github.mjdev.libaums.driver.scsi.commands.ScsiInquiryResponse;
 import com.github.mjdev.libaums.driver.scsi.commands.ScsiRead10;
+import com.github.mjdev.libaums.driver.scsi.commands.ScsiRead16;
 import com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacity;
+import com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacity16;
+import com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacity16Response;
 import com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacityResponse;
 import com.github.mjdev.libaums.driver.scsi.commands.ScsiTestUnitReady;
+import com.github.mjdev.libaums.driver.scsi.commands.ScsiVpdPageResponse;
 import com.github.mjdev.libaums.driver.scsi.commands.ScsiWrite10;
+import com.github.mjdev.libaums.driver.scsi.commands.ScsiWrite16;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -51,21 +59,47 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 
 	private UsbCommunication usbCommunication;
 	private ByteBuffer outBuffer;
-	private byte[] cswBuffer;
+	private ByteBuffer cswBuffer;
 
 	private int blockSize;
-	private int lastBlockAddress;
+	private long lastBlockAddress;
+	private int maxTransferLength = UsbMassStorageLibrary.MAX_TRANSFER_LENGTH;
+	private long optimalTransferLength;
+	private long transferGranularity;
+	private int mediumRotationRate;
+	private byte nominalFormFactor;
+	private int tag;
+	private boolean pipelined;
+	private ByteBuffer bounceBuffer;
+
+	/**
+	 * Biggest heap buffer data phase which is copied into a direct buffer to
+	 * be pipelined.
+	 */
+	private static final int BOUNCE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Version in the inquiry response from which on the vital product data
+	 * pages are queried (SPC-2). Older devices often do not handle them.
+	 */
+	private static final int VPD_MIN_SPC_VERSION = 4;
+	private static final int MAX_VPD_PAGE_LENGTH = 0xff;
 
 	public ScsiBlockDevice(UsbCommunication usbCommunication) {
 		this.usbCommunication = usbCommunication;
-		outBuffer = ByteBuffer.allocate(31);
-		cswBuffer = new byte[CommandStatusWrapper.SIZE];
+		// direct buffers can be handed to the USB stack without copying
+		outBuffer = ByteBuffer.allocateDirect(31);
+		cswBuffer = ByteBuffer.allocateDirect(CommandStatusWrapper.SIZE);
 	}
 
 	/**
 	 * Issues a SCSI Inquiry to determine the connected device. After that it is
 	 * checked if the unit is ready. Logs a warning if the unit is not ready.
-	 * Finally the capacity of the mass storage device is read.
+	 * Finally the capacity of the mass storage device is read. If the device
+	 * is too big for the read capacity (10) command, the capacity is read
+	 * with read capacity (16). At last the block limits and the block device
+	 * characteristics are read from the vital product data pages, if the
+	 * device supports them.
 	 * 
 	 * @throws IOException
 	 *             If initialing fails due to an unsupported device or if
@@ -75,6 +109,7 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 	 * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiTestUnitReady
 	 * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacity
 	 * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacityResponse
+	 * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacity16
 	 */
 	@Override
 	public void init() throws LibAumsException {
@@ -96,13 +131,93 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 		}
 
 		ScsiReadCapacity readCapacity = new ScsiReadCapacity();
+		inBuffer.clear();
 		transferCommand(readCapacity, inBuffer);
 		ScsiReadCapacityResponse readCapacityResponse = ScsiReadCapacityResponse.read(inBuffer);
 		blockSize = readCapacityResponse.getBlockLength();
-		lastBlockAddress = readCapacityResponse.getLogicalBlockAddress();
+		lastBlockAddress = readCapacityResponse.getLogicalBlockAddress() & 0xFFFFFFFFL;
+
+		if (lastBlockAddress == ScsiRead10.MAX_BLOCK_ADDRESS) {
+			// device has more blocks than fit into the response
+			ScsiReadCapacity16 readCapacity16 = new ScsiReadCapacity16();
+			inBuffer.clear();
+			transferCommand(readCapacity16, inBuffer);
+			ScsiReadCapacity16Response readCapacity16Response = ScsiReadCapacity16Response
+					.read(inBuffer);
+			blockSize = readCapacity16Response.getBlockLength();
+			lastBlockAddress = readCapacity16Response.getLogicalBlockAddress();
+		}
 
 		log.debug("Block size: " + blockSize);
 		log.debug("Last block address: " + lastBlockAddress);
+
+		if (UsbMassStorageLibrary.READ_VPD_PAGES
+				&& inquiryResponse.getSpcVersion() >= VPD_MIN_SPC_VERSION) {
+			readVpdPages();
+		}
+		usbCommunication.setMaxTransferLength(maxTransferLength);
+	}
+
+	/**
+	 * Reads the block limits and the block device characteristics VPD pages,
+	 * if the device lists them as supported. Failures are only logged, the
+	 * default transfer lengths are used then.
+	 */
+	private void readVpdPages() {
+		try {
+			ScsiVpdPageResponse supportedPages = readVpdPage(ScsiVpdPageResponse.SUPPORTED_PAGES);
+			if (supportedPages == null) {
+				return;
+			}
+
+			if (supportedPages.isPageSupported(ScsiVpdPageResponse.BLOCK_LIMITS)) {
+				ScsiVpdPageResponse blockLimits = readVpdPage(ScsiVpdPageResponse.BLOCK_LIMITS);
+				if (blockLimits != null) {
+					log.debug("block limits: " + blockLimits);
+					if (blockLimits.getMaximumTransferLength() > 0) {
+						maxTransferLength = (int) Math.min(maxTransferLength,
+								blockLimits.getMaximumTransferLength() * blockSize);
+					}
+					optimalTransferLength = blockLimits.getOptimalTransferLength() * blockSize;
+					transferGranularity = blockLimits.getOptimalTransferLengthGranularity()
+							* (long) blockSize;
+				}
+			}
+
+			if (supportedPages.isPageSupported(ScsiVpdPageResponse.BLOCK_DEVICE_CHARACTERISTICS)) {
+				ScsiVpdPageResponse characteristics = readVpdPage(ScsiVpdPageResponse.BLOCK_DEVICE_CHARACTERISTICS);
+				if (characteristics != null) {
+					log.debug("block device characteristics: " + characteristics);
+					mediumRotationRate = characteristics.getMediumRotationRate();
+					nominalFormFactor = characteristics.getNominalFormFactor();
+				}
+			}
+		} catch (LibAumsException e) {
+			log.warn("reading vpd pages failed, using default transfer lengths", e);
+		}
+	}
+
+	/**
+	 * Reads the given VPD page. First only the header is read to get the page
+	 * length, so that the second inquiry asks for exactly the bytes the device
+	 * will send.
+	 * 
+	 * @return The page or null if the device does not support it.
+	 */
+	private ScsiVpdPageResponse readVpdPage(byte pageCode) throws LibAumsException {
+		ByteBuffer buffer = ByteBuffer.allocate(ScsiVpdPageResponse.HEADER_LENGTH);
+		if (!transferCommand(new ScsiInquiry(pageCode, buffer.capacity()), buffer)) {
+			return null;
+		}
+
+		int length = ScsiVpdPageResponse.HEADER_LENGTH
+				+ ScsiVpdPageResponse.read(buffer).getPageLength();
+		buffer = ByteBuffer.allocate(Math.min(length, MAX_VPD_PAGE_LENGTH));
+		if (!transferCommand(new ScsiInquiry(pageCode, buffer.capacity()), buffer)) {
+			return null;
+		}
+
+		return ScsiVpdPageResponse.read(buffer);
 	}
 
 	/**
@@ -112,6 +227,9 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 	 * {@link com.github.mjdev.libaums.driver.scsi.commands.CommandBlockWrapper #getDirection()}
 	 * .
 	 * <p>
+	 * A data phase which the device ends early with a short packet or a stall
+	 * is only successful if the residue of the CSW covers the missing bytes.
+	 * <p>
 	 * Return value is true if the status of the command status wrapper is
 	 * successful (
 	 * {@link com.github.mjdev.libaums.driver.scsi.commands.CommandStatusWrapper #getbCswStatus()}
@@ -127,59 +245,250 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 	 */
 	private boolean transferCommand(CommandBlockWrapper command, ByteBuffer inBuffer)
 			throws LibAumsException {
-		byte[] outArray = outBuffer.array();
-		outBuffer.clear();
-		Arrays.fill(outArray, (byte) 0);
+		command.setdCbwTag(++tag);
+		serializeCommand(command);
 
-		command.serialize(outBuffer);
-		int written = usbCommunication.bulkOutTransfer(outArray, outArray.length);
-		if (written != outArray.length) {
+		int transferLength = command.getdCbwDataTransferLength();
+		if (pipelined) {
+			if (transferLength == 0 || inBuffer.isDirect()) {
+				return transferCommandPipelined(command, inBuffer);
+			}
+
+			if (transferLength <= BOUNCE_BUFFER_SIZE) {
+				// small heap buffers (FAT, directories, ...) go through a
+				// direct bounce buffer, copying is cheaper than the extra
+				// round trip
+				return transferCommandPipelinedWithBounceBuffer(command, inBuffer);
+			}
+		}
+
+		int written = usbCommunication.bulkOutTransfer(outBuffer);
+		if (written != outBuffer.capacity()) {
 			log.error( "Writing all bytes on command " + command + " failed!");
 		}
 
-		int transferLength = command.getdCbwDataTransferLength();
-		int read = 0;
+		int transferred = 0;
 		if (transferLength > 0) {
-			byte[] inArray = inBuffer.array();
-
-			if (command.getDirection() == Direction.IN) {
-				do {
-					int tmp = usbCommunication.bulkInTransfer(inArray, read + inBuffer.position(),
-							inBuffer.remaining() - read);
-					if (tmp == -1) {
-						throw LibAumsException.createWithIOException("reading failed!");
+			ByteBuffer data = getDataPhaseBuffer(inBuffer, transferLength);
+
+			try {
+				if (command.getDirection() == Direction.IN) {
+					while (data.hasRemaining()) {
+						int requested = data.remaining();
+						int read = usbCommunication.bulkInTransfer(data);
+						transferred += read;
+						if (read < requested) {
+							// a bulk transfer only ends early on a short
+							// packet (the communication buffers hold the
+							// maximum transfer length), which ends the data
+							// phase, the csw follows in its own transfer
+							log.debug("short data phase on " + command + ": " + transferred
+									+ " bytes");
+							break;
+						}
 					}
-					read += tmp;
-				} while (read < transferLength);
+				} else {
+					while (data.hasRemaining()) {
+						transferred += usbCommunication.bulkOutTransfer(data);
+					}
+				}
+			} catch (LibAumsException e) {
+				if (!e.isStall()) {
+					throw e;
+				}
 
-				if (read != transferLength) {
-					throw LibAumsException.createWithIOException("Unexpected command size (" + read + ") on response to "
-							+ command);
+				// device ended the data phase early, the csw follows
+				log.debug("data phase stalled on " + command + ", reading csw again");
+				clearHalt(command.getDirection());
+			}
+		}
+
+		// expecting csw now
+		return readCsw(command, transferred);
+	}
+
+	/**
+	 * Pipelined variant of {@link #transferCommand(CommandBlockWrapper, ByteBuffer)}.
+	 * The CBW, the data phase and the CSW are submitted at once, so the device
+	 * never waits for the host to issue the next transfer.
+	 * <p>
+	 * If the data phase is shorter than announced, the device either stalls the
+	 * endpoint or ends the data phase with a short packet. In the first case
+	 * the halt is cleared and the CSW is read again, in the second case the
+	 * CSW may already be at the end of the data, if the data ended exactly on a
+	 * packet boundary. A short data phase only counts as success if the CSW
+	 * reports the missing bytes as residue.
+	 * 
+	 * @param command
+	 *            The command which should be transferred, already serialized
+	 *            to {@link #outBuffer}.
+	 * @param buffer
+	 *            Direct buffer used for reading or writing.
+	 * @return True if the transaction was successful.
+	 * @throws LibAumsException
+	 *             If something fails.
+	 */
+	private boolean transferCommandPipelined(CommandBlockWrapper command, ByteBuffer buffer)
+			throws LibAumsException {
+		AsyncUsbCommunication communication = (AsyncUsbCommunication) usbCommunication;
+		int transferLength = command.getdCbwDataTransferLength();
+		ByteBuffer data = transferLength > 0 ? getDataPhaseBuffer(buffer, transferLength) : null;
+
+		PendingTransfer cbwTransfer = communication.submitBulkOutTransfer(outBuffer);
+		PendingTransfer dataTransfer = null;
+		if (data != null) {
+			dataTransfer = command.getDirection() == Direction.IN ? communication
+					.submitBulkInTransfer(data) : communication.submitBulkOutTransfer(data);
+		}
+		cswBuffer.clear();
+		PendingTransfer cswTransfer = communication.submitBulkInTransfer(cswBuffer);
+
+		try {
+			int written = cbwTransfer.await();
+			if (written != outBuffer.capacity()) {
+				log.error( "Writing all bytes on command " + command + " failed!");
+			}
+		} catch (LibAumsException e) {
+			cancel(dataTransfer);
+			cancel(cswTransfer);
+			throw e;
+		}
+
+		int transferred = transferLength;
+		if (dataTransfer != null) {
+			try {
+				transferred = dataTransfer.await();
+			} catch (LibAumsException e) {
+				cancel(cswTransfer);
+				if (!dataTransfer.isStalled()) {
+					throw e;
 				}
-			} else {
-				written = 0;
-				do {
-					int tmp = usbCommunication.bulkOutTransfer(inArray,
-							written + inBuffer.position(), inBuffer.remaining() - written);
-					if (tmp == -1) {
-						throw LibAumsException.createWithIOException("writing failed!");
-					}
-					written += tmp;
-				} while (written < transferLength);
 
-				if (written != transferLength) {
-					throw LibAumsException.createWithIOException("Could not write all bytes: " + command);
+				log.debug("data phase stalled on " + command + ", reading csw again");
+				clearHalt(command.getDirection());
+				return readCsw(command);
+			}
+
+			if (transferred < transferLength) {
+				log.debug("short data phase on " + command + ": " + transferred + " bytes");
+				// the transfer was submitted for the remaining space, so it
+				// counts from the position of the data buffer
+				int cswPosition = data.position() + transferred - CommandStatusWrapper.SIZE;
+				if (command.getDirection() == Direction.IN
+						&& isCswAt(data, cswPosition, command)) {
+					// the csw ended the data transfer, nothing will arrive anymore
+					cancel(cswTransfer);
+					ByteBuffer csw = data.duplicate();
+					csw.position(cswPosition);
+					return checkCsw(command, CommandStatusWrapper.read(csw),
+							transferred - CommandStatusWrapper.SIZE);
 				}
 			}
 		}
 
-		// expecting csw now
-		read = usbCommunication.bulkInTransfer(cswBuffer, cswBuffer.length);
+		try {
+			int read = cswTransfer.await();
+			if (read != CommandStatusWrapper.SIZE) {
+				log.error( "Unexpected command size while expecting csw");
+			}
+		} catch (LibAumsException e) {
+			if (!cswTransfer.isStalled()) {
+				throw e;
+			}
+
+			// device may stall the status phase once, csw has to be read again
+			communication.clearInEndpointHalt();
+			return readCsw(command);
+		}
+
+		cswBuffer.clear();
+		return checkCsw(command, CommandStatusWrapper.read(cswBuffer), transferred);
+	}
+
+	private boolean transferCommandPipelinedWithBounceBuffer(CommandBlockWrapper command,
+			ByteBuffer buffer) throws LibAumsException {
+		if (bounceBuffer == null) {
+			bounceBuffer = ByteBuffer.allocateDirect(BOUNCE_BUFFER_SIZE);
+		}
+
+		int transferLength = command.getdCbwDataTransferLength();
+		bounceBuffer.clear();
+		bounceBuffer.limit(transferLength);
+		if (command.getDirection() == Direction.OUT) {
+			bounceBuffer.put(getDataPhaseBuffer(buffer, transferLength));
+			bounceBuffer.flip();
+		}
+
+		boolean result = transferCommandPipelined(command, bounceBuffer);
+
+		// after a failed command the bounce buffer may hold anything, even
+		// the csw
+		if (result && command.getDirection() == Direction.IN) {
+			bounceBuffer.clear();
+			bounceBuffer.limit(transferLength);
+			buffer.duplicate().put(bounceBuffer);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Serializes the command block wrapper into {@link #outBuffer}. Afterwards
+	 * the buffer is ready to be transferred.
+	 */
+	private void serializeCommand(CommandBlockWrapper command) {
+		outBuffer.clear();
+		while (outBuffer.hasRemaining()) {
+			outBuffer.put((byte) 0);
+		}
+		outBuffer.clear();
+
+		command.serialize(outBuffer);
+		outBuffer.clear();
+	}
+
+	/**
+	 * Returns a duplicate of the buffer covering the data phase, so the
+	 * position of the given buffer stays where the caller expects the data.
+	 */
+	private ByteBuffer getDataPhaseBuffer(ByteBuffer buffer, int transferLength) {
+		ByteBuffer data = buffer.duplicate();
+		data.limit(data.position() + transferLength);
+		return data;
+	}
+
+	/**
+	 * Reads the command status wrapper of the command with a blocking
+	 * transfer and checks it.
+	 */
+	private boolean readCsw(CommandBlockWrapper command) throws LibAumsException {
+		return readCsw(command, command.getdCbwDataTransferLength());
+	}
+
+	/**
+	 * Reads the CSW after a data phase of the given length, which is checked
+	 * against the residue like in
+	 * {@link #checkCsw(CommandBlockWrapper, CommandStatusWrapper, int)}.
+	 */
+	private boolean readCsw(CommandBlockWrapper command, int transferred) throws LibAumsException {
+		cswBuffer.clear();
+		int read = usbCommunication.bulkInTransfer(cswBuffer);
 		if (read != CommandStatusWrapper.SIZE) {
 			log.error( "Unexpected command size while expecting csw");
 		}
+		cswBuffer.clear();
 
-		CommandStatusWrapper csw = CommandStatusWrapper.read(ByteBuffer.wrap(cswBuffer));
+		return checkCsw(command, CommandStatusWrapper.read(cswBuffer), transferred);
+	}
+
+	/**
+	 * Checks status and tag of the command status wrapper. If the device
+	 * reports a phase error, we perform a reset recovery.
+	 * 
+	 * @return True if the command passed.
+	 */
+	private boolean checkCsw(CommandBlockWrapper command, CommandStatusWrapper csw)
+			throws LibAumsException {
 		if (csw.getbCswStatus() != CommandStatusWrapper.COMMAND_PASSED) {
 			log.error( "Unsuccessful Csw status: " + csw.getbCswStatus());
 		}
@@ -188,9 +497,97 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 			log.error( "wrong csw tag!");
 		}
 
+		if (csw.getbCswStatus() == CommandStatusWrapper.PHASE_ERROR) {
+			usbCommunication.resetRecovery();
+		}
+
 		return csw.getbCswStatus() == CommandStatusWrapper.COMMAND_PASSED;
 	}
 
+	/**
+	 * Like {@link #checkCsw(CommandBlockWrapper, CommandStatusWrapper)}, but
+	 * also checks that the device reports the bytes missing in a short data
+	 * phase as residue. Otherwise part of the buffer was never transferred
+	 * although the command passed, so it has to fail.
+	 * 
+	 * @param transferred
+	 *            Number of bytes transferred in the data phase.
+	 * @return True if the command passed and the data phase is complete or
+	 *         its missing bytes are covered by the residue.
+	 */
+	private boolean checkCsw(CommandBlockWrapper command, CommandStatusWrapper csw,
+			int transferred) throws LibAumsException {
+		if (!checkCsw(command, csw)) {
+			return false;
+		}
+
+		int missing = command.getdCbwDataTransferLength() - transferred;
+		if (missing > 0 && csw.getdCswDataResidue() < missing) {
+			log.error("data phase of " + command + " is " + missing
+					+ " bytes short, but residue is " + csw.getdCswDataResidue());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if a valid CSW for the given command is located at the given
+	 * position in the data buffer.
+	 */
+	private boolean isCswAt(ByteBuffer data, int position, CommandBlockWrapper command) {
+		if (position < data.position()) {
+			return false;
+		}
+
+		ByteBuffer csw = data.duplicate();
+		csw.order(ByteOrder.LITTLE_ENDIAN);
+		return csw.getInt(position) == CommandStatusWrapper.D_CSW_SIGNATURE
+				&& csw.getInt(position + 4) == command.getdCbwTag();
+	}
+
+	private void clearHalt(Direction direction) throws LibAumsException {
+		if (direction == Direction.IN) {
+			usbCommunication.clearInEndpointHalt();
+		} else {
+			usbCommunication.clearOutEndpointHalt();
+		}
+	}
+
+	private static void cancel(PendingTransfer transfer) {
+		if (transfer == null) {
+			return;
+		}
+
+		transfer.cancel();
+		try {
+			transfer.await();
+		} catch (LibAumsException e) {
+			// expected, transfer was cancelled
+		}
+	}
+
+	/**
+	 * Enables or disables the pipelined mode, where the CBW, data and CSW
+	 * transfers of each command are submitted at once. This needs an
+	 * {@link AsyncUsbCommunication}, otherwise the call is ignored. Big
+	 * transfers from or to heap buffers are transferred without pipelining.
+	 * 
+	 * @param pipelined
+	 *            True to enable the pipelined mode.
+	 */
+	public void setPipelined(boolean pipelined) {
+		if (pipelined && !(usbCommunication instanceof AsyncUsbCommunication)) {
+			log.warn("pipelined mode needs asynchronous usb communication, ignoring");
+			return;
+		}
+		this.pipelined = pipelined;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
 	/**
 	 * This method reads from the device at the specific device offset. The
 	 * devOffset specifies at which block the reading should begin. That means
@@ -205,22 +602,21 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 		if (dest.remaining() % blockSize != 0) {
 			log.debug("WARNING: we have to round up size to next block sector");
 			int rounded = blockSize - dest.remaining() % blockSize + dest.remaining();
-			buffer = ByteBuffer.allocate(rounded);
+			buffer = dest.isDirect() ? ByteBuffer.allocateDirect(rounded) : ByteBuffer.allocate(rounded);
 			buffer.limit(rounded);
 		} else {
 			buffer = dest;
 		}
 
-		ScsiRead10 read = new ScsiRead10((int) devOffset, buffer.remaining(), blockSize);
-		//log.debug( "reading: " + read);
-		transferCommand(read, buffer);
+		transferBlocks(devOffset, buffer, Direction.IN);
 
-		if (dest.remaining() % blockSize != 0) {
-			System.arraycopy(buffer.array(), 0, dest.array(), dest.position(), dest.remaining());
+		if (buffer != dest) {
+			buffer.limit(dest.remaining());
+			dest.put(buffer);
+		} else {
+			dest.position(dest.limit());
 		}
 
-		dest.position(dest.limit());
-
 		//log.debug( "read time: " + (System.currentTimeMillis() - time));
 	}
 
@@ -238,22 +634,175 @@ public class ScsiBlockDevice implements BlockDeviceDriver {
 		if (src.remaining() % blockSize != 0) {
 			log.debug("WARNING: we have to round up size to next block sector");
 			int rounded = blockSize - src.remaining() % blockSize + src.remaining();
-			buffer = ByteBuffer.allocate(rounded);
-			buffer.limit(rounded);
-			System.arraycopy(src.array(), src.position(), buffer.array(), 0, src.remaining());
+			buffer = src.isDirect() ? ByteBuffer.allocateDirect(rounded) : ByteBuffer.allocate(rounded);
+			buffer.put(src.duplicate());
+			buffer.clear();
 		} else {
 			buffer = src;
 		}
 
-		ScsiWrite10 write = new ScsiWrite10((int) devOffset, buffer.remaining(), blockSize);
-		//log.debug( "writing: " + write);
-		transferCommand(write, buffer);
+		transferBlocks(devOffset, buffer, Direction.OUT);
 
 		src.position(src.limit());
 
 		//log.debug( "write time: " + (System.currentTimeMillis() - time));
 	}
 
+	/**
+	 * Does nothing, every write is transferred to the device immediately.
+	 */
+	@Override
+	public void flush() {
+
+	}
+
+	@Override
+	public void flush(long deviceOffset, long length) {
+
+	}
+
+	/**
+	 * Reads or writes the remaining bytes of the buffer, starting at the given
+	 * block. Requests bigger than {@link #getMaxTransferLength()} are split
+	 * into multiple commands. The position of the buffer is not changed.
+	 */
+	private void transferBlocks(long blockAddress, ByteBuffer buffer, Direction direction)
+			throws LibAumsException {
+		int maxBytes = Math.max(maxTransferLength / blockSize, 1) * blockSize;
+		ByteBuffer chunk = buffer.duplicate();
+
+		while (chunk.position() < buffer.limit()) {
+			int length = Math.min(buffer.limit() - chunk.position(), maxBytes);
+			chunk.limit(chunk.position() + length);
+
+			CommandBlockWrapper command = createCommand(blockAddress, length, direction);
+			//log.debug( "transferring: " + command);
+			if (!transferCommand(command, chunk)) {
+				throw LibAumsException.createWithIOException("transferring " + command + " failed");
+			}
+
+			chunk.position(chunk.limit());
+			blockAddress += length / blockSize;
+		}
+	}
+
+	/**
+	 * Creates the read or write command for the given range. The 10 byte
+	 * commands are used where possible, because not every device supports the
+	 * 16 byte variants. These are only used if the block address or the block
+	 * count do not fit into the 10 byte commands.
+	 */
+	private CommandBlockWrapper createCommand(long blockAddress, int length, Direction direction) {
+		long blocks = length / blockSize;
+		boolean needs16 = blocks > ScsiRead10.MAX_TRANSFER_BLOCKS
+				|| blockAddress + blocks - 1 > ScsiRead10.MAX_BLOCK_ADDRESS;
+
+		if (direction == Direction.IN) {
+			return needs16 ? new ScsiRead16(blockAddress, length, blockSize) : new ScsiRead10(
+					blockAddress, length, blockSize);
+		}
+		return needs16 ? new ScsiWrite16(blockAddress, length, blockSize) : new ScsiWrite10(
+				blockAddress, length, blockSize);
+	}
+
+	/**
+	 * Returns the maximum number of bytes which are transferred with one read
+	 * or write command. Bigger requests are split. This is
+	 * {@link UsbMassStorageLibrary#MAX_TRANSFER_LENGTH}, or less if the
+	 * device reports a smaller maximum in its block limits VPD page.
+	 *
+	 * @return The maximum transfer length in bytes.
+	 */
+	@Override
+	public int getMaxTransferLength() {
+		return maxTransferLength;
+	}
+
+	/**
+	 * Returns the optimal transfer length from the block limits VPD page,
+	 * limited by {@link #getMaxTransferLength()}. If the device does not
+	 * report one, {@link #getMaxTransferLength()} is returned.
+	 *
+	 * @return The optimal transfer length in bytes.
+	 */
+	@Override
+	public int getOptimalTransferLength() {
+		if (optimalTransferLength <= 0) {
+			return maxTransferLength;
+		}
+		return (int) Math.min(optimalTransferLength, maxTransferLength);
+	}
+
+	/**
+	 * Returns the optimal transfer length granularity from the block limits
+	 * VPD page, or the block size if the device does not report one.
+	 *
+	 * @return The transfer granularity in bytes.
+	 */
+	@Override
+	public int getTransferGranularity() {
+		if (transferGranularity <= blockSize) {
+			return blockSize;
+		}
+		return (int) Math.min(transferGranularity, maxTransferLength);
+	}
+
+	/**
+	 * Sets the maximum number of bytes which are transferred with one read or
+	 * write command. Defaults to
+	 * {@link UsbMassStorageLibrary#MAX_TRANSFER_LENGTH}.
+	 *
+	 * @param maxTransferLength
+	 *            The maximum transfer length in bytes.
+	 */
+	public void setMaxTransferLength(int maxTransferLength) {
+		if (maxTransferLength <= 0) {
+			throw new IllegalArgumentException("max transfer length must be positive");
+		}
+		this.maxTransferLength = maxTransferLength;
+		usbCommunication.setMaxTransferLength(maxTransferLength);
+	}
+
+	/**
+	 *
+	 * @return The address of the last block of the device.
+	 */
+	public long getLastBlockAddress() {
+		return lastBlockAddress;
+	}
+
+	/**
+	 * Returns the medium rotation rate from the block device characteristics
+	 * VPD page.
+	 *
+	 * @return The rotation rate in rpm,
+	 *         {@link ScsiVpdPageResponse#NON_ROTATING_MEDIUM} for solid state
+	 *         devices or zero if the device does not report it.
+	 * @see #isNonRotational()
+	 */
+	public int getMediumRotationRate() {
+		return mediumRotationRate;
+	}
+
+	/**
+	 *
+	 * @return True if the device reports a non rotating (solid state) medium.
+	 *         False if it rotates or does not report it.
+	 */
+	public boolean isNonRotational() {
+		return mediumRotationRate == ScsiVpdPageResponse.NON_ROTATING_MEDIUM;
+	}
+
+	/**
+	 * Returns the nominal form factor from the block device characteristics
+	 * VPD page, e.g. 3 for 2.5 inch or 5 for less than 1.8 inch.
+	 *
+	 * @return The nominal form factor, zero if the device does not report it.
+	 */
+	public byte getNominalFormFactor() {
+		return nominalFormFactor;
+	}
+
 	@Override
 	public int getBlockSize() {
 		return blockSize;
@@ -56,7 +56,10 @@ public class CommandStatusWrapper {
 	 */
 	public static final int SIZE = 13;
 
-	private static final int D_CSW_SIGNATURE = 0x53425355;
+	/**
+	 * Signature every CSW starts with ("USBS").
+	 */
+	public static final int D_CSW_SIGNATURE = 0x53425355;
 
 	private int dCswSignature;
 	private int dCswTag;
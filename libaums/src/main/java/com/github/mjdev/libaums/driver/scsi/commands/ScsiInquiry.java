@@ -34,7 +34,11 @@ public class ScsiInquiry extends CommandBlockWrapper {
 	private static final byte LENGTH = 0x6;
 	private static final byte OPCODE = 0x12;
 
-	private byte allocationLength;
+	private static final byte EVPD = 0x1;
+
+	private int allocationLength;
+	private boolean vitalProductData;
+	private byte pageCode;
 
 	public ScsiInquiry(byte allocationLength) {
 		super(allocationLength, Direction.IN, (byte) 0, LENGTH);
@@ -42,14 +46,31 @@ public class ScsiInquiry extends CommandBlockWrapper {
         this.allocationLength = allocationLength;
 	}
 
+	/**
+	 * Constructs an inquiry for a vital product data (VPD) page.
+	 * 
+	 * @param pageCode
+	 *            The code of the requested VPD page.
+	 * @param allocationLength
+	 *            The bytes which should be transferred, at most 0xFFFF.
+	 * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiVpdPageResponse
+	 */
+	public ScsiInquiry(byte pageCode, int allocationLength) {
+		super(allocationLength, Direction.IN, (byte) 0, LENGTH);
+
+		this.allocationLength = allocationLength;
+		this.vitalProductData = true;
+		this.pageCode = pageCode;
+	}
+
 	@Override
 	public void serialize(ByteBuffer buffer) {
 		super.serialize(buffer);
 		buffer.put(OPCODE);
-		buffer.put((byte) 0);
-		buffer.put((byte) 0);
-		buffer.put((byte) 0);
-		buffer.put(allocationLength);
+		buffer.put(vitalProductData ? EVPD : 0);
+		buffer.put(pageCode);
+		buffer.put((byte) (allocationLength >> 8));
+		buffer.put((byte) allocationLength);
 	}
 
 }
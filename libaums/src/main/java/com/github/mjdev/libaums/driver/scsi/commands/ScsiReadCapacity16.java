@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.driver.scsi.commands;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Represents the command to read the capacity from mass storage devices which
+ * have more blocks than can be reported by {@link ScsiReadCapacity}. This is
+ * the case if the last block address in the response of the
+ * {@link ScsiReadCapacity} is 0xFFFFFFFF.
+ * <p>
+ * The data is transferred in the data phase.
+ *
+ * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacity16Response
+ */
+public class ScsiReadCapacity16 extends CommandBlockWrapper {
+
+	private static final int RESPONSE_LENGTH = 0x20;
+	private static final byte LENGTH = 0x10;
+	private static final byte OPCODE = (byte) 0x9e;
+	private static final byte SERVICE_ACTION = 0x10;
+
+	public ScsiReadCapacity16() {
+		super(RESPONSE_LENGTH, Direction.IN, (byte) 0, LENGTH);
+	}
+
+	@Override
+	public void serialize(ByteBuffer buffer) {
+		super.serialize(buffer);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		buffer.put(OPCODE);
+		buffer.put(SERVICE_ACTION);
+		buffer.putLong(0);
+		buffer.putInt(RESPONSE_LENGTH);
+		buffer.put((byte) 0);
+		buffer.put((byte) 0);
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.driver.scsi.commands;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Represents the response of a read capacity (16) request.
+ * <p>
+ * The response data is received in the data phase
+ *
+ * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiReadCapacity16
+ */
+public class ScsiReadCapacity16Response {
+
+	private long logicalBlockAddress;
+	private int blockLength;
+
+	private ScsiReadCapacity16Response() {
+
+	}
+
+	/**
+	 * Constructs a new object with the given data.
+	 *
+	 * @param buffer
+	 *            The data where the {@link #ScsiReadCapacity16Response()} is
+	 *            located.
+	 * @return The parsed {@link #ScsiReadCapacity16Response()}.
+	 */
+	public static ScsiReadCapacity16Response read(ByteBuffer buffer) {
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		ScsiReadCapacity16Response res = new ScsiReadCapacity16Response();
+		res.logicalBlockAddress = buffer.getLong();
+		res.blockLength = buffer.getInt();
+		return res;
+	}
+
+	/**
+	 * Returns the address of the last accessible block on the block device.
+	 *
+	 * @return The last block address.
+	 */
+	public long getLogicalBlockAddress() {
+		return logicalBlockAddress;
+	}
+
+	/**
+	 * Returns the size of each block in the block device.
+	 *
+	 * @return The block size in bytes.
+	 */
+	public int getBlockLength() {
+		return blockLength;
+	}
+}
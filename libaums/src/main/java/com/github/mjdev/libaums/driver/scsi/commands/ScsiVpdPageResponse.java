@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.driver.scsi.commands;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Represents the response of an inquiry for a vital product data (VPD) page.
+ * Only the pages which are needed to tune the transfers are parsed, these are
+ * the list of supported pages, the block limits and the block device
+ * characteristics. For other pages only the header is available.
+ * <p>
+ * The response data is received in the data phase.
+ *
+ * @see com.github.mjdev.libaums.driver.scsi.commands.ScsiInquiry#ScsiInquiry(byte,
+ *      int)
+ */
+public class ScsiVpdPageResponse {
+
+	/**
+	 * Size of the page header, which contains the page code and the page
+	 * length.
+	 */
+	public static final int HEADER_LENGTH = 4;
+
+	public static final byte SUPPORTED_PAGES = 0x00;
+	public static final byte BLOCK_LIMITS = (byte) 0xb0;
+	public static final byte BLOCK_DEVICE_CHARACTERISTICS = (byte) 0xb1;
+
+	/**
+	 * Medium rotation rate reported by solid state devices.
+	 */
+	public static final int NON_ROTATING_MEDIUM = 1;
+
+	private byte pageCode;
+	private int pageLength;
+
+	private byte[] supportedPages = new byte[0];
+
+	private int optimalTransferLengthGranularity;
+	private long maximumTransferLength;
+	private long optimalTransferLength;
+
+	private int mediumRotationRate;
+	private byte nominalFormFactor;
+
+	private ScsiVpdPageResponse() {
+
+	}
+
+	/**
+	 * Constructs a new object with the given data. If the buffer contains
+	 * only the header, only {@link #getPageCode()} and
+	 * {@link #getPageLength()} are valid.
+	 *
+	 * @param buffer
+	 *            The data where the {@link #ScsiVpdPageResponse()} is
+	 *            located.
+	 * @return The parsed {@link #ScsiVpdPageResponse()}.
+	 */
+	public static ScsiVpdPageResponse read(ByteBuffer buffer) {
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		ScsiVpdPageResponse res = new ScsiVpdPageResponse();
+		int start = buffer.position();
+		res.pageCode = buffer.get(start + 1);
+		res.pageLength = buffer.getShort(start + 2) & 0xffff;
+
+		int available = Math.min(buffer.remaining() - HEADER_LENGTH, res.pageLength);
+		int offset = start + HEADER_LENGTH;
+
+		switch (res.pageCode) {
+		case SUPPORTED_PAGES:
+			res.supportedPages = new byte[Math.max(available, 0)];
+			for (int i = 0; i < res.supportedPages.length; i++) {
+				res.supportedPages[i] = buffer.get(offset + i);
+			}
+			break;
+		case BLOCK_LIMITS:
+			// older devices report a shorter page, every field which is
+			// complete is used
+			if (available >= 4) {
+				res.optimalTransferLengthGranularity = buffer.getShort(start + 6) & 0xffff;
+			}
+			if (available >= 8) {
+				res.maximumTransferLength = buffer.getInt(start + 8) & 0xffffffffL;
+			}
+			if (available >= 12) {
+				res.optimalTransferLength = buffer.getInt(start + 12) & 0xffffffffL;
+			}
+			break;
+		case BLOCK_DEVICE_CHARACTERISTICS:
+			if (available >= 4) {
+				res.mediumRotationRate = buffer.getShort(start + 4) & 0xffff;
+				res.nominalFormFactor = (byte) (buffer.get(start + 7) & 0xf);
+			}
+			break;
+		default:
+			break;
+		}
+
+		return res;
+	}
+
+	/**
+	 *
+	 * @return The code of the page.
+	 */
+	public byte getPageCode() {
+		return pageCode;
+	}
+
+	/**
+	 * Returns the length of the page without the header. The allocation
+	 * length for the whole page is therefore {@link #HEADER_LENGTH} + page
+	 * length.
+	 *
+	 * @return The page length in bytes.
+	 */
+	public int getPageLength() {
+		return pageLength;
+	}
+
+	/**
+	 * Checks if the page with the given code is in the list of supported
+	 * pages. Only valid for the {@link #SUPPORTED_PAGES} page.
+	 *
+	 * @param pageCode
+	 *            The page code.
+	 * @return True if the device supports the page.
+	 */
+	public boolean isPageSupported(byte pageCode) {
+		for (byte page : supportedPages) {
+			if (page == pageCode) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @return The granularity of the optimal transfer length in blocks, zero
+	 *         if not reported.
+	 */
+	public int getOptimalTransferLengthGranularity() {
+		return optimalTransferLengthGranularity;
+	}
+
+	/**
+	 *
+	 * @return The maximum transfer length of one read or write command in
+	 *         blocks, zero if not reported.
+	 */
+	public long getMaximumTransferLength() {
+		return maximumTransferLength;
+	}
+
+	/**
+	 *
+	 * @return The optimal transfer length of one read or write command in
+	 *         blocks, zero if not reported.
+	 */
+	public long getOptimalTransferLength() {
+		return optimalTransferLength;
+	}
+
+	/**
+	 *
+	 * @return The medium rotation rate in rpm, {@link #NON_ROTATING_MEDIUM}
+	 *         for solid state devices or zero if not reported.
+	 */
+	public int getMediumRotationRate() {
+		return mediumRotationRate;
+	}
+
+	/**
+	 *
+	 * @return The nominal form factor, zero if not reported.
+	 */
+	public byte getNominalFormFactor() {
+		return nominalFormFactor;
+	}
+
+	@Override
+	public String toString() {
+		return "ScsiVpdPageResponse [pageCode=" + pageCode + ", pageLength=" + pageLength
+				+ ", optimalTransferLengthGranularity=" + optimalTransferLengthGranularity
+				+ ", maximumTransferLength=" + maximumTransferLength
+				+ ", optimalTransferLength=" + optimalTransferLength
+				+ ", mediumRotationRate=" + mediumRotationRate + "]";
+	}
+}
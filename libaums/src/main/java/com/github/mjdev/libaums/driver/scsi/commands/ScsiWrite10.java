@@ -35,10 +35,19 @@ public class ScsiWrite10 extends CommandBlockWrapper {
 	private static final byte LENGTH = 0x10;
 	private static final byte OPCODE = 0x2a;//0x2a
 
-	private int blockAddress;
+	/**
+	 * Maximum number of blocks which can be transferred with one command.
+	 */
+	public static final int MAX_TRANSFER_BLOCKS = 0xFFFF;
+	/**
+	 * Highest logical block address which can be addressed by the command.
+	 */
+	public static final long MAX_BLOCK_ADDRESS = 0xFFFFFFFFL;
+
+	private long blockAddress;
 	private int transferBytes;
 	private int blockSize;
-	private short transferBlocks;
+	private int transferBlocks;
 
 	/**
 	 * Constructs a new write command with the given information.
@@ -50,15 +59,21 @@ public class ScsiWrite10 extends CommandBlockWrapper {
 	 * @param blockSize
 	 *            The block size of the mass storage device.
 	 */
-	public ScsiWrite10(int blockAddress, int transferBytes, int blockSize) {
+	public ScsiWrite10(long blockAddress, int transferBytes, int blockSize) {
 		super(transferBytes, Direction.OUT, (byte) 0, LENGTH);
 		this.blockAddress = blockAddress;
 		this.transferBytes = transferBytes;
 		this.blockSize = blockSize;
-		short transferBlocks = (short) (transferBytes / blockSize);
+		int transferBlocks = transferBytes / blockSize;
 		if (transferBytes % blockSize != 0) {
 			throw new IllegalArgumentException("transfer bytes is not a multiple of block size");
 		}
+		if (transferBlocks > MAX_TRANSFER_BLOCKS) {
+			throw new IllegalArgumentException("too many blocks for WRITE(10): " + transferBlocks);
+		}
+		if (blockAddress < 0 || blockAddress + transferBlocks - 1 > MAX_BLOCK_ADDRESS) {
+			throw new IllegalArgumentException("block address out of range for WRITE(10): " + blockAddress);
+		}
 		this.transferBlocks = transferBlocks;
 	}
 
@@ -68,9 +83,9 @@ public class ScsiWrite10 extends CommandBlockWrapper {
 		buffer.order(ByteOrder.BIG_ENDIAN);
 		buffer.put(OPCODE);
 		buffer.put((byte) 0);
-		buffer.putInt(blockAddress);
+		buffer.putInt((int) blockAddress);
 		buffer.put((byte) 0);
-		buffer.putShort(transferBlocks);
+		buffer.putShort((short) transferBlocks);
 	}
 
 	@Override
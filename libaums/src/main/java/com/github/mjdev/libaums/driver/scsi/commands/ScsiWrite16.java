@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.driver.scsi.commands;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SCSI command to write to the mass storage device. The 16 means that the
+ * transfer length is four byte and the logical block address field is eight
+ * byte. Thus the hole command takes 16 byte when serialized.
+ * <p>
+ * This command is needed for devices with more than 2^32 blocks and for
+ * transfers with more than {@link ScsiWrite10#MAX_TRANSFER_BLOCKS} blocks.
+ * <p>
+ * The actual data is transferred in the data phase.
+ *
+ * @see ScsiWrite10
+ */
+public class ScsiWrite16 extends CommandBlockWrapper {
+
+	private static final byte LENGTH = 0x10;
+	private static final byte OPCODE = (byte) 0x8a;
+
+	private long blockAddress;
+	private int transferBytes;
+	private int blockSize;
+	private int transferBlocks;
+
+	/**
+	 * Constructs a new write command with the given information.
+	 *
+	 * @param blockAddress
+	 *            The logical block address the write should start.
+	 * @param transferBytes
+	 *            The bytes which should be transferred.
+	 * @param blockSize
+	 *            The block size of the mass storage device.
+	 */
+	public ScsiWrite16(long blockAddress, int transferBytes, int blockSize) {
+		super(transferBytes, Direction.OUT, (byte) 0, LENGTH);
+		this.blockAddress = blockAddress;
+		this.transferBytes = transferBytes;
+		this.blockSize = blockSize;
+		if (transferBytes % blockSize != 0) {
+			throw new IllegalArgumentException("transfer bytes is not a multiple of block size");
+		}
+		if (blockAddress < 0) {
+			throw new IllegalArgumentException("block address out of range for WRITE(16): " + blockAddress);
+		}
+		this.transferBlocks = transferBytes / blockSize;
+	}
+
+	@Override
+	public void serialize(ByteBuffer buffer) {
+		super.serialize(buffer);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		buffer.put(OPCODE);
+		buffer.put((byte) 0);
+		buffer.putLong(blockAddress);
+		buffer.putInt(transferBlocks);
+		buffer.put((byte) 0);
+		buffer.put((byte) 0);
+	}
+
+	@Override
+	public String toString() {
+		return "ScsiWrite16 [blockAddress=" + blockAddress + ", transferBytes=" + transferBytes
+				+ ", blockSize=" + blockSize + ", transferBlocks=" + transferBlocks
+				+ ", getdCbwDataTransferLength()=" + getdCbwDataTransferLength() + "]";
+	}
+
+}
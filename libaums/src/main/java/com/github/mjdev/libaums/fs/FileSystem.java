@@ -17,6 +17,8 @@
 
 package com.github.mjdev.libaums.fs;
 
+import com.atech.library.usb.libaums.data.LibAumsException;
+
 /**
  * This class represents a file system.
  * 
@@ -63,4 +65,18 @@ public interface FileSystem {
      */
     long getFreeSpace();
 
+    /**
+     * Writes all changes which are only kept in memory, like a cached FAT or
+     * the free cluster count, to the device.
+     * @throws LibAumsException If writing fails.
+     */
+    void flush() throws LibAumsException;
+
+    /**
+     * Flushes the file system and stops background work (for example timers).
+     * The file system must not be used afterwards.
+     * @throws LibAumsException If writing fails.
+     */
+    void close() throws LibAumsException;
+
 }
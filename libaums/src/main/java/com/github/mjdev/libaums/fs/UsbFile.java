@@ -42,6 +42,7 @@ public interface UsbFile extends Closeable {
     /**
      * Tries to search a corresponding entry associated with the path parameter. Path separator is '/'.
      * Parameter path must not start with an '/'. Path is treated relative to current UsbFile.
+     * Names are compared case insensitive, like FAT32 does.
      * @param path The path to the resource to search.
      * @return UsbFile directory or file if found, null otherwise.
      */
@@ -142,6 +143,31 @@ public interface UsbFile extends Closeable {
 	 */
 	void setLength(long newLength) throws LibAumsException;
 
+	/**
+	 * Reserves space on the disk for at least the given number of bytes,
+	 * without changing the file length. Writing up to this length then needs
+	 * no more allocations, and the space is allocated in as few fragments as
+	 * possible. Reserved space which is not used is given back on
+	 * {@link #flush()} and {@link #close()}. Throws an exception if called on
+	 * a directory.
+	 * 
+	 * @param length
+	 *            The number of bytes to reserve.
+	 * @throws IOException
+	 *             If requesting the needed space fails.
+	 */
+	void preallocate(long length) throws LibAumsException;
+
+	/**
+	 * Returns the size reads and writes of this file should have for best
+	 * performance, for example as buffer size of a stream. This is the
+	 * optimal transfer length of the device rounded down to whole clusters,
+	 * but at least one cluster.
+	 * 
+	 * @return The preferred size in bytes.
+	 */
+	int getPreferredIOSize();
+
 	/**
 	 * Reads from a file or throws an exception if called on a directory.
 	 * 
@@ -0,0 +1,367 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * UsbFileChannel provides FileChannel access to a UsbFile. Reads and writes
+ * are passed to {@link UsbFile#read(long, ByteBuffer)} and
+ * {@link UsbFile#write(long, ByteBuffer)} with the buffer of the caller, so
+ * direct buffers reach the device without copies.
+ * <p>
+ * The open options {@link StandardOpenOption#READ},
+ * {@link StandardOpenOption#WRITE}, {@link StandardOpenOption#APPEND} and
+ * {@link StandardOpenOption#TRUNCATE_EXISTING} are supported. Memory mapping
+ * and locking are not supported.
+ * <p>
+ * The directory entry of the file is written on {@link #force(boolean)} and
+ * when a writable channel is closed, which also closes the file.
+ */
+public class UsbFileChannel extends FileChannel {
+
+    private UsbFile file;
+    private boolean readable;
+    private boolean writable;
+    private boolean append;
+    private long position;
+    /**
+     * Buffer for {@link #transferTo(long, long, WritableByteChannel)} and
+     * {@link #transferFrom(ReadableByteChannel, long, long)}.
+     */
+    private ByteBuffer transferBuffer;
+
+    /**
+     * Opens a channel for reading.
+     *
+     * @param file The file.
+     * @throws IOException If opening fails.
+     */
+    public UsbFileChannel(UsbFile file) throws IOException {
+        this(file, Collections.singleton(StandardOpenOption.READ));
+    }
+
+    /**
+     * Opens a channel with the given options. Without
+     * {@link StandardOpenOption#WRITE} and {@link StandardOpenOption#APPEND}
+     * the channel is opened for reading.
+     *
+     * @param file The file.
+     * @param options The open options.
+     * @throws IOException If truncating the file fails.
+     */
+    public UsbFileChannel(UsbFile file, Set<? extends OpenOption> options) throws IOException {
+        if (file.isDirectory()) {
+            throw new IOException("UsbFileChannel cannot be created on directory!");
+        }
+
+        this.file = file;
+        this.append = options.contains(StandardOpenOption.APPEND);
+        this.writable = append || options.contains(StandardOpenOption.WRITE);
+        this.readable = !writable || options.contains(StandardOpenOption.READ);
+
+        if (writable && !append && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            truncate(0);
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkBounds(dsts.length, offset, length);
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (!dsts[i].hasRemaining()) {
+                continue;
+            }
+            int read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+
+        long size = file.getLength();
+        if (position >= size) {
+            return dst.hasRemaining() ? -1 : 0;
+        }
+
+        int count = (int) Math.min(dst.remaining(), size - position);
+        ByteBuffer part = dst.duplicate();
+        part.limit(part.position() + count);
+        try {
+            file.read(position, part);
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        }
+        dst.position(dst.position() + count);
+        return count;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (append) {
+            position = file.getLength();
+        }
+        int written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkBounds(srcs.length, offset, length);
+
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        ensureOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+
+        int count = src.remaining();
+        if (count == 0) {
+            return 0;
+        }
+
+        try {
+            file.write(position, src.duplicate());
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        }
+        src.position(src.position() + count);
+        return count;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return file.getLength();
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException {
+        ensureOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size");
+        }
+
+        if (size < file.getLength()) {
+            try {
+                file.setLength(size);
+            } catch (LibAumsException e) {
+                throw e.asIOException();
+            }
+        }
+        if (position > size) {
+            position = size;
+        }
+        return this;
+    }
+
+    /**
+     * Writes the directory entry of the file. The contents are always
+     * written immediately.
+     */
+    @Override
+    public synchronized void force(boolean metaData) throws IOException {
+        ensureOpen();
+        if (!writable) {
+            return;
+        }
+
+        try {
+            file.flush();
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target)
+            throws IOException {
+        ensureOpen();
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count");
+        }
+
+        ByteBuffer buffer = getTransferBuffer();
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            int read = read(buffer, position + transferred);
+            if (read <= 0) {
+                break;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            transferred += read;
+        }
+        return transferred;
+    }
+
+    @Override
+    public synchronized long transferFrom(ReadableByteChannel src, long position, long count)
+            throws IOException {
+        ensureOpen();
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("negative position or count");
+        }
+        if (position > file.getLength()) {
+            return 0;
+        }
+
+        ByteBuffer buffer = getTransferBuffer();
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            int read = src.read(buffer);
+            if (read <= 0) {
+                break;
+            }
+
+            buffer.flip();
+            transferred += write(buffer, position + transferred);
+        }
+        return transferred;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new UnsupportedOperationException("mapping is not supported");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("locking is not supported");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("locking is not supported");
+    }
+
+    /**
+     * Closes the file if the channel is writable, which writes its directory
+     * entry and gives unused reserved space back, as {@link #force(boolean)}
+     * does too.
+     */
+    @Override
+    protected void implCloseChannel() throws IOException {
+        transferBuffer = null;
+        if (writable) {
+            file.close();
+        }
+    }
+
+    /**
+     * The buffer has the preferred size of the file and is direct, so it can
+     * be handed to the device and to host channels without copies.
+     */
+    private ByteBuffer getTransferBuffer() {
+        if (transferBuffer == null) {
+            transferBuffer = ByteBuffer.allocateDirect(file.getPreferredIOSize());
+        }
+        return transferBuffer;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static void checkBounds(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+}
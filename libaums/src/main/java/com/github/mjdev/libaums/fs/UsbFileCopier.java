@@ -0,0 +1,456 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import lombok.Setter;
+
+/**
+ * Copies files between the host and a device. A reader thread reads the
+ * sources into a ring of direct buffers while the calling thread writes the
+ * filled buffers to the targets, so the local disk and the USB link work at
+ * the same time. The reader continues with the next file while the last
+ * chunks of the previous one are written, so copying many files does not
+ * stall between them either.
+ * <p>
+ * Device files are written through {@link UsbFileChannel}s in chunks which
+ * are a multiple of {@link UsbFile#getPreferredIOSize()}, and the space of a
+ * device file is allocated with {@link UsbFile#preallocate(long)} before its
+ * first chunk is written.
+ * <p>
+ * The device is only accessed by one of the two threads: by the writer when
+ * copying to the device and by the reader when copying from it.
+ */
+public class UsbFileCopier {
+
+    /**
+     * Default chunk size, rounded up to a multiple of the preferred size of
+     * the device files.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    /**
+     * Listener for the progress of a copy. It is called in the thread which
+     * started the copy.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called after every chunk written.
+         *
+         * @param bytesCopied Bytes written so far, of all files.
+         * @param totalBytes Bytes of all files.
+         * @param bytesPerSecond Throughput since the copy was started.
+         */
+        void onProgress(long bytesCopied, long totalBytes, long bytesPerSecond);
+
+        /**
+         * Called when a file is completely written and closed.
+         *
+         * @param name The name of the file.
+         * @param length The length of the file.
+         */
+        void onFileCopied(String name, long length);
+    }
+
+    /**
+     * Number of rotating buffers, at least two.
+     */
+    @Setter
+    private int bufferCount = DEFAULT_BUFFER_COUNT;
+    /**
+     * Size of the buffers in bytes, 0 for {@link #DEFAULT_CHUNK_SIZE}. It is
+     * rounded up to a multiple of the preferred size of the device files.
+     */
+    @Setter
+    private int chunkSize;
+    @Setter
+    private ProgressListener progressListener;
+
+    /**
+     * Copies a host file to a device file. The device file is truncated.
+     *
+     * @param source The host file.
+     * @param target The device file.
+     * @return The number of bytes copied.
+     * @throws IOException If reading or writing fails.
+     */
+    public long copy(Path source, final UsbFile target) throws IOException {
+        checkFile(target);
+        return copy(Collections.singletonList(toDevice(source, new TargetFactory() {
+            @Override
+            public UsbFile create(String name) {
+                return target;
+            }
+        })), target);
+    }
+
+    /**
+     * Copies a device file to a host file. The host file is created or
+     * truncated.
+     *
+     * @param source The device file.
+     * @param target The host file.
+     * @return The number of bytes copied.
+     * @throws IOException If reading or writing fails.
+     */
+    public long copy(UsbFile source, Path target) throws IOException {
+        checkFile(source);
+        return copy(Collections.singletonList(fromDevice(source, target)), source);
+    }
+
+    /**
+     * Copies host files into a device directory. Files with the same name
+     * in the directory are overwritten.
+     *
+     * @param sources The host files.
+     * @param directory The device directory.
+     * @return The number of bytes copied.
+     * @throws IOException If reading or writing fails.
+     */
+    public long copyToDevice(Collection<Path> sources, final UsbFile directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException(directory.getName() + " is not a directory");
+        }
+
+        TargetFactory factory = new TargetFactory() {
+            @Override
+            public UsbFile create(String name) throws LibAumsException, IOException {
+                UsbFile file = directory.search(name);
+                if (file == null) {
+                    return directory.createFile(name);
+                }
+                checkFile(file);
+                return file;
+            }
+        };
+
+        List<Job> jobs = new ArrayList<>();
+        for (Path source : sources) {
+            jobs.add(toDevice(source, factory));
+        }
+        return copy(jobs, directory);
+    }
+
+    /**
+     * Copies device files into a host directory. Files with the same name
+     * in the directory are overwritten.
+     *
+     * @param sources The device files.
+     * @param directory The host directory.
+     * @return The number of bytes copied.
+     * @throws IOException If reading or writing fails.
+     */
+    public long copyFromDevice(Collection<UsbFile> sources, Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException(directory + " is not a directory");
+        }
+
+        List<Job> jobs = new ArrayList<>();
+        UsbFile first = null;
+        for (UsbFile source : sources) {
+            checkFile(source);
+            jobs.add(fromDevice(source, directory.resolve(source.getName())));
+            if (first == null) {
+                first = source;
+            }
+        }
+        return first == null ? 0 : copy(jobs, first);
+    }
+
+    /**
+     * Runs the jobs, the calling thread writes and a new thread reads.
+     *
+     * @param jobs The files to copy.
+     * @param deviceFile Any file or directory on the device, for the chunk
+     *            size.
+     */
+    private long copy(List<Job> jobs, UsbFile deviceFile) throws IOException {
+        long totalBytes = 0;
+        for (Job job : jobs) {
+            totalBytes += job.length;
+        }
+
+        int preferred = Math.max(deviceFile.getPreferredIOSize(), 1);
+        int size = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+        size = (size + preferred - 1) / preferred * preferred;
+        int count = Math.max(bufferCount, 2);
+
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            free.add(ByteBuffer.allocateDirect(size));
+        }
+        // besides the buffers the queue holds the markers of the files
+        BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(count + 2 * jobs.size() + 2);
+
+        Reader reader = new Reader(jobs, free, filled);
+        reader.start();
+
+        long start = System.nanoTime();
+        long bytesCopied = 0;
+        FileChannel out = null;
+        Job current = null;
+        boolean done = false;
+        try {
+            while (!done) {
+                Chunk chunk = filled.take();
+                switch (chunk.type) {
+                case BEGIN:
+                    current = chunk.job;
+                    out = current.openTarget();
+                    break;
+                case DATA:
+                    while (chunk.buffer.hasRemaining()) {
+                        bytesCopied += out.write(chunk.buffer);
+                    }
+                    free.put(chunk.buffer);
+                    if (progressListener != null) {
+                        long nanos = Math.max(System.nanoTime() - start, 1);
+                        progressListener.onProgress(bytesCopied, totalBytes,
+                                (long) (bytesCopied * 1e9 / nanos));
+                    }
+                    break;
+                case END:
+                    FileChannel channel = out;
+                    out = null;
+                    channel.close();
+                    if (progressListener != null) {
+                        progressListener.onFileCopied(current.name, current.length);
+                    }
+                    current = null;
+                    break;
+                case ERROR:
+                    throw chunk.error;
+                case DONE:
+                    done = true;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("copy interrupted", e);
+        } finally {
+            if (!done) {
+                reader.interrupt();
+            }
+            joinQuietly(reader);
+            if (out != null) {
+                out.close();
+            }
+        }
+        return bytesCopied;
+    }
+
+    private Job toDevice(final Path source, final TargetFactory factory) throws IOException {
+        if (!Files.isRegularFile(source)) {
+            throw new IOException(source + " is not a regular file");
+        }
+
+        final long length = Files.size(source);
+        final String name = source.getFileName().toString();
+        return new Job(name, length) {
+            @Override
+            FileChannel openSource() throws IOException {
+                return FileChannel.open(source, StandardOpenOption.READ);
+            }
+
+            @Override
+            FileChannel openTarget() throws IOException {
+                try {
+                    UsbFile file = factory.create(name);
+                    FileChannel channel = new UsbFileChannel(file,
+                            EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+                    file.preallocate(length);
+                    return channel;
+                } catch (LibAumsException e) {
+                    throw e.asIOException();
+                }
+            }
+        };
+    }
+
+    private Job fromDevice(final UsbFile source, final Path target) {
+        return new Job(source.getName(), source.getLength()) {
+            @Override
+            FileChannel openSource() throws IOException {
+                return new UsbFileChannel(source);
+            }
+
+            @Override
+            FileChannel openTarget() throws IOException {
+                return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+        };
+    }
+
+    private static void checkFile(UsbFile file) throws IOException {
+        if (file.isDirectory()) {
+            throw new IOException(file.getName() + " is a directory");
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface TargetFactory {
+        UsbFile create(String name) throws LibAumsException, IOException;
+    }
+
+    /**
+     * One file to copy.
+     */
+    private abstract static class Job {
+        final String name;
+        final long length;
+
+        Job(String name, long length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        abstract FileChannel openSource() throws IOException;
+
+        /**
+         * Opens the target, which is allocated for the whole source if it
+         * is on the device.
+         */
+        abstract FileChannel openTarget() throws IOException;
+    }
+
+    private enum ChunkType {
+        BEGIN, DATA, END, ERROR, DONE
+    }
+
+    /**
+     * Element passed from the reader to the writer: a filled buffer or a
+     * marker for the start or the end of a file, an error or the end of the
+     * copy.
+     */
+    private static class Chunk {
+        final ChunkType type;
+        final Job job;
+        final ByteBuffer buffer;
+        final IOException error;
+
+        Chunk(ChunkType type, Job job, ByteBuffer buffer, IOException error) {
+            this.type = type;
+            this.job = job;
+            this.buffer = buffer;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Reads the sources one after the other into free buffers and passes
+     * them to the writer.
+     */
+    private static class Reader extends Thread {
+
+        private final List<Job> jobs;
+        private final BlockingQueue<ByteBuffer> free;
+        private final BlockingQueue<Chunk> filled;
+
+        Reader(List<Job> jobs, BlockingQueue<ByteBuffer> free, BlockingQueue<Chunk> filled) {
+            super("libaums-copy-reader");
+            setDaemon(true);
+            this.jobs = jobs;
+            this.free = free;
+            this.filled = filled;
+        }
+
+        @Override
+        public void run() {
+            Chunk last;
+            try {
+                for (Job job : jobs) {
+                    read(job);
+                }
+                last = new Chunk(ChunkType.DONE, null, null, null);
+            } catch (InterruptedException e) {
+                // the writer gave up
+                return;
+            } catch (Throwable e) {
+                // whatever goes wrong, the writer waits for a last chunk
+                IOException error = e instanceof IOException ? (IOException) e
+                        : new IOException("reading failed: " + e, e);
+                last = new Chunk(ChunkType.ERROR, null, null, error);
+            }
+
+            try {
+                filled.put(last);
+            } catch (InterruptedException e) {
+                // the writer gave up
+            }
+        }
+
+        private void read(Job job) throws IOException, InterruptedException {
+            try (FileChannel in = job.openSource()) {
+                filled.put(new Chunk(ChunkType.BEGIN, job, null, null));
+
+                boolean eof = false;
+                while (!eof) {
+                    ByteBuffer buffer = free.take();
+                    buffer.clear();
+                    // fill the whole buffer, so the writes stay aligned
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer) < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+
+                    buffer.flip();
+                    if (buffer.hasRemaining()) {
+                        filled.put(new Chunk(ChunkType.DATA, job, buffer, null));
+                    } else {
+                        free.put(buffer);
+                    }
+                }
+            }
+            filled.put(new Chunk(ChunkType.END, job, null, null));
+        }
+    }
+}
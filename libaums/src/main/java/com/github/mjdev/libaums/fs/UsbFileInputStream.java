@@ -26,106 +26,186 @@ import java.nio.ByteBuffer;
 
 /**
  * UsbFileInputStream provides common InputStream access to a UsbFile.
+ * <p>
+ * The file is read in chunks of {@link UsbFile#getPreferredIOSize()} bytes,
+ * which start at multiples of this size and so at cluster boundaries. Small
+ * reads, down to single bytes, are served from this buffer. Reads which are
+ * at least as big as the buffer go to the file directly.
+ * <p>
+ * {@link #mark(int)} and {@link #reset()} are supported without a read limit,
+ * because the file can be read at any position.
  */
 @Slf4j
 public class UsbFileInputStream extends InputStream {
 
     private UsbFile file;
-    private int currentByteOffset = 0;
+    private long position = 0;
+    private long markPosition = -1;
+
+    private byte[] buffer;
+    private ByteBuffer byteBuffer;
+    /**
+     * Offset in the file of the buffered data, -1 if there is none.
+     */
+    private long bufferOffset = -1;
+    private int bufferLength;
+    private boolean closed;
 
     public UsbFileInputStream(UsbFile file) {
+        this(file, file.isDirectory() ? 0 : file.getPreferredIOSize());
+    }
+
+    /**
+     * Creates a stream with the given buffer size. The size should be a
+     * multiple of the cluster size.
+     *
+     * @param file The file to read.
+     * @param bufferSize The size of the internal buffer in bytes.
+     */
+    public UsbFileInputStream(UsbFile file, int bufferSize) {
 
         if(file.isDirectory()) {
             throw new RuntimeException("UsbFileInputStream cannot be created on directory!");
         }
 
         this.file = file;
+        this.buffer = new byte[Math.max(bufferSize, 1)];
+        this.byteBuffer = ByteBuffer.wrap(buffer);
     }
 
     @Override
     public int available() throws IOException {
-        log.debug( "available");
-        // return 0, because we always block
-        return 0;
+        ensureOpen();
+        return (int) Math.max(Math.min(file.getLength() - position, Integer.MAX_VALUE), 0);
     }
 
     @Override
     public int read() throws IOException {
+        ensureOpen();
 
-        try {
-            if(currentByteOffset >= file.getLength()) {
-                return -1;
-            }
-
-            ByteBuffer buffer = ByteBuffer.allocate(512);
-            buffer.limit(1);
-            file.read(currentByteOffset, buffer);
-            currentByteOffset++;
-            buffer.flip();
-            return buffer.get();
+        if(position >= file.getLength()) {
+            return -1;
+        }
 
-        } catch (LibAumsException e) {
-            throw (IOException)e.getCause();
+        if(!isBuffered(position)) {
+            fill(position);
         }
+
+        return buffer[(int) (position++ - bufferOffset)] & 0xff;
     }
 
     @Override
     public void close() throws IOException {
+        closed = true;
+        buffer = null;
+        byteBuffer = null;
         super.close();
     }
 
     @Override
-    public int read(byte[] buffer) throws IOException {
+    public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+        ensureOpen();
 
-        try {
-            if(currentByteOffset >= file.getLength()) {
-                return -1;
+        if(byteOffset < 0 || byteCount < 0 || byteCount > buffer.length - byteOffset) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        long length = file.getLength();
+        if(position >= length) {
+            return -1;
+        }
+
+        int toRead = (int) Math.min(byteCount, length - position);
+        int done = 0;
+
+        while(done < toRead) {
+            if(!isBuffered(position)) {
+                int remaining = toRead - done;
+                if(remaining >= this.buffer.length) {
+                    // big reads do not need the buffer
+                    readFile(position, ByteBuffer.wrap(buffer, byteOffset + done, remaining));
+                    position += remaining;
+                    done += remaining;
+                    break;
+                }
+                fill(position);
             }
 
-            long length = file.getLength();
-            long toRead = Math.min(buffer.length, length - currentByteOffset);
+            int size = (int) Math.min(toRead - done, bufferOffset + bufferLength - position);
+            System.arraycopy(this.buffer, (int) (position - bufferOffset), buffer, byteOffset + done, size);
+            position += size;
+            done += size;
+        }
 
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-            byteBuffer.limit((int) toRead);
+        return done;
+    }
 
-            file.read(currentByteOffset, byteBuffer);
-            currentByteOffset += toRead;
+    @Override
+    public long skip(long byteCount) throws IOException {
+        ensureOpen();
 
-            return (int) toRead;
-        } catch (LibAumsException e) {
-            throw (IOException)e.getCause();
+        if(byteCount <= 0) {
+            return 0;
         }
 
+        long skippedBytes = Math.max(Math.min(byteCount, file.getLength() - position), 0);
+        position += skippedBytes;
+        return skippedBytes;
     }
 
     @Override
-    public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        try {
-            if(currentByteOffset >= file.getLength()) {
-                return -1;
-            }
+    public boolean markSupported() {
+        return true;
+    }
 
-            long length = file.getLength();
-            long toRead = Math.min(byteCount, length - currentByteOffset);
+    /**
+     * Marks the current position, the read limit is ignored.
+     */
+    @Override
+    public void mark(int readLimit) {
+        markPosition = position;
+    }
 
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-            byteBuffer.position(byteOffset);
-            byteBuffer.limit((int) toRead + byteOffset);
+    @Override
+    public void reset() throws IOException {
+        ensureOpen();
 
-            file.read(currentByteOffset, byteBuffer);
-            currentByteOffset += toRead;
+        if(markPosition < 0) {
+            throw new IOException("Resetting to invalid mark");
+        }
+        position = markPosition;
+    }
 
-            return (int) toRead;
+    private boolean isBuffered(long offset) {
+        return bufferOffset >= 0 && offset >= bufferOffset && offset < bufferOffset + bufferLength;
+    }
+
+    /**
+     * Reads the chunk containing the given offset into the buffer.
+     */
+    private void fill(long offset) throws IOException {
+        long start = offset - offset % buffer.length;
+        int size = (int) Math.min(buffer.length, file.getLength() - start);
+
+        bufferOffset = -1;
+        byteBuffer.clear();
+        byteBuffer.limit(size);
+        readFile(start, byteBuffer);
+        bufferOffset = start;
+        bufferLength = size;
+    }
+
+    private void readFile(long offset, ByteBuffer dest) throws IOException {
+        try {
+            file.read(offset, dest);
         } catch (LibAumsException e) {
-            throw (IOException)e.getCause();
+            throw e.asIOException();
         }
-
     }
 
-    @Override
-    public long skip(long byteCount) throws IOException {
-        long skippedBytes = Math.min(byteCount, file.getLength() - currentByteOffset);
-        currentByteOffset += skippedBytes;
-        return skippedBytes;
+    private void ensureOpen() throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
     }
 }
@@ -26,75 +26,149 @@ import java.nio.ByteBuffer;
 
 /**
  * UsbFileOutputStream provides common OutputStream access to a UsbFile.
+ * <p>
+ * Writes are collected in a buffer of {@link UsbFile#getPreferredIOSize()}
+ * bytes, which is written when it is full, so the file is written in whole
+ * clusters at cluster boundaries. How the file grows is up to the file
+ * itself (see
+ * {@link com.atech.library.usb.libaums.UsbMassStorageLibrary#GROW_FILES_GEOMETRICALLY}).
+ * The directory entry with the new file length is only written on
+ * {@link #flush()} and {@link #close()}.
  */
 public class UsbFileOutputStream extends OutputStream {
 
     private UsbFile file;
-    private int currentByteOffset = 0;
+    /**
+     * Offset in the file of the first byte in the buffer.
+     */
+    private long bufferOffset = 0;
+    private int count;
+    private byte[] buffer;
+    private boolean closed;
 
     public UsbFileOutputStream(UsbFile file) {
+        this(file, file.isDirectory() ? 0 : file.getPreferredIOSize());
+    }
+
+    /**
+     * Creates a stream with the given buffer size. The size should be a
+     * multiple of the cluster size.
+     *
+     * @param file The file to write.
+     * @param bufferSize The size of the internal buffer in bytes.
+     */
+    public UsbFileOutputStream(UsbFile file, int bufferSize) {
 
         if(file.isDirectory()) {
             throw new RuntimeException("UsbFileOutputStream cannot be created on directory!");
         }
 
         this.file = file;
+        this.buffer = new byte[Math.max(bufferSize, 1)];
     }
 
     @Override
     public void write(int oneByte) throws IOException {
-        try {
-            ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] {(byte) oneByte});
-            file.write(currentByteOffset, byteBuffer);
+        ensureOpen();
 
-            currentByteOffset++;
-        } catch (LibAumsException e) {
-            throw (IOException)e.getCause();
+        buffer[count++] = (byte) oneByte;
+        if(count == buffer.length) {
+            writeBuffer();
         }
-
     }
 
+    /**
+     * Writes the buffered data and the directory entry of the file and closes
+     * the file.
+     */
     @Override
     public void close() throws IOException {
-        file.close();
+        if(closed) {
+            return;
+        }
+
+        try {
+            writeBuffer();
+        } finally {
+            closed = true;
+            file.close();
+        }
     }
 
+    /**
+     * Writes the buffered data and the directory entry of the file. The
+     * buffer is kept, so the next writes still end up in whole clusters.
+     */
     @Override
     public void flush() throws IOException {
+        ensureOpen();
+
+        writeBuffer();
         try {
             file.flush();
         } catch (LibAumsException e) {
-            throw (IOException)e.getCause();
+            throw e.asIOException();
         }
     }
 
     @Override
-    public void write(byte[] buffer) throws IOException {
-        try {
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-            file.write(currentByteOffset, byteBuffer);
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        ensureOpen();
 
-            currentByteOffset += buffer.length;
-        } catch (LibAumsException e) {
-            throw (IOException)e.getCause();
+        if(offset < 0 || count < 0 || count > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
         }
 
+        while(count > 0) {
+            if(this.count == 0 && count >= this.buffer.length) {
+                // whole chunks do not need the buffer
+                int size = count - count % this.buffer.length;
+                writeFile(bufferOffset, ByteBuffer.wrap(buffer, offset, size));
+                bufferOffset += size;
+                offset += size;
+                count -= size;
+                continue;
+            }
+
+            int size = Math.min(count, this.buffer.length - this.count);
+            System.arraycopy(buffer, offset, this.buffer, this.count, size);
+            this.count += size;
+            offset += size;
+            count -= size;
+
+            if(this.count == this.buffer.length) {
+                writeBuffer();
+            }
+        }
     }
 
-    @Override
-    public void write(byte[] buffer, int offset, int count) throws IOException {
-        try {
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-
-            byteBuffer.position(offset);
-            byteBuffer.limit(count + offset);
+    /**
+     * Writes the buffered data. If the buffer is full, the following writes
+     * start a new one.
+     */
+    private void writeBuffer() throws IOException {
+        if(count == 0) {
+            return;
+        }
 
-            file.write(currentByteOffset, byteBuffer);
+        writeFile(bufferOffset, ByteBuffer.wrap(buffer, 0, count));
+        if(count == buffer.length) {
+            bufferOffset += count;
+            count = 0;
+        }
+    }
 
-            currentByteOffset += count;
+    private void writeFile(long offset, ByteBuffer source) throws IOException {
+        try {
+            file.write(offset, source);
         } catch (LibAumsException e) {
-            throw (IOException)e.getCause();
+            throw e.asIOException();
         }
+    }
 
+    private void ensureOpen() throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
     }
 }
@@ -30,6 +30,10 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
  * FAT32 file system. You can {@link #read(long, ByteBuffer) read} from or
  * {@link #write(long, ByteBuffer) write} to it easily without having to worry
  * about the specific clusters.
+ * <p>
+ * The chain is followed in the FAT lazily, only as far as the highest offset
+ * accessed so far. Thus the first bytes of a big file can be read without
+ * following its whole chain first.
  * 
  * @author mjahnen
  * 
@@ -37,9 +41,20 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 @Slf4j
 public class ClusterChain {
 
+	/**
+	 * Minimum number of clusters which are followed in the FAT at once, when
+	 * the chain has to be resolved further.
+	 */
+	private static final int MIN_RESOLVE_CLUSTERS = 1024;
+
 	private BlockDeviceDriver blockDevice;
 	private FAT fat;
-	private Long[] chain;
+	private ClusterExtentList chain;
+	/**
+	 * The cluster where following the chain in the FAT continues, or 0 if the
+	 * chain is completely resolved.
+	 */
+	private long nextCluster;
 	private long clusterSize;
 	private long dataAreaOffset;
 
@@ -60,11 +75,70 @@ public class ClusterChain {
 			Fat32BootSector bootSector) throws LibAumsException {
 		this.fat = fat;
 		this.blockDevice = blockDevice;
-		chain = fat.getChain(startCluster);
+		chain = fat.getCachedChain(startCluster);
+		if (chain == null) {
+			chain = new ClusterExtentList();
+			nextCluster = startCluster;
+		}
 		clusterSize = bootSector.getBytesPerCluster();
 		dataAreaOffset = bootSector.getDataAreaOffset();
 	}
 
+	/**
+	 * Constructs a ClusterChain over clusters which are already known, the FAT
+	 * is not read.
+	 * 
+	 * @param chain
+	 *            The clusters.
+	 * @param blockDevice
+	 *            The block device where the fat fs is located.
+	 * @param fat
+	 *            The file allocation table.
+	 * @param bootSector
+	 *            The boot sector of the FAT32 fs.
+	 * @see FatBulkWriter
+	 */
+	/* package */ClusterChain(ClusterExtentList chain, BlockDeviceDriver blockDevice, FAT fat,
+			Fat32BootSector bootSector) {
+		this.fat = fat;
+		this.blockDevice = blockDevice;
+		this.chain = chain;
+		clusterSize = bootSector.getBytesPerCluster();
+		dataAreaOffset = bootSector.getDataAreaOffset();
+	}
+
+	private ClusterChain(ClusterExtentList chain, BlockDeviceDriver blockDevice, FAT fat,
+			long clusterSize, long dataAreaOffset) {
+		this.fat = fat;
+		this.blockDevice = blockDevice;
+		this.chain = chain;
+		this.clusterSize = clusterSize;
+		this.dataAreaOffset = dataAreaOffset;
+	}
+
+	/**
+	 * Resolves the chain for the given range on the calling thread and
+	 * returns a copy of the resolved clusters. Reading the range from the copy
+	 * neither accesses the FAT nor this chain, so it can be done in another
+	 * thread while this chain is changed.
+	 * 
+	 * @param offset
+	 *            The offset in bytes where the range starts.
+	 * @param length
+	 *            The length of the range in bytes.
+	 * @return The copy, which can only read the range (and what was resolved
+	 *         before).
+	 * @throws IOException
+	 *             If following the chain in the FAT fails.
+	 * @see ReadAhead
+	 */
+	/* package */ClusterChain snapshot(long offset, long length) throws LibAumsException {
+		if (length > 0) {
+			resolve((int) ((offset + length - 1) / clusterSize));
+		}
+		return new ClusterChain(chain.copy(), blockDevice, fat, clusterSize, dataAreaOffset);
+	}
+
 	/**
 	 * Reads from the cluster chain at the given offset into the given buffer.
 	 * This method automatically searches for following clusters in the chain
@@ -91,7 +165,7 @@ public class ClusterChain {
 			int size = Math.min(length, (int) (clusterSize - clusterOffset));
 			dest.limit(dest.position() + size);
 
-			blockDevice.read(getFileSystemOffset(chain[chainIndex], clusterOffset), dest);
+			blockDevice.read(getFileSystemOffset(getCluster(chainIndex), clusterOffset), dest);
 
 			// round up to next cluster in the chain
 			chainIndex++;
@@ -101,15 +175,19 @@ public class ClusterChain {
 
 		// now we can proceed reading the clusters without an offset in the
 		// cluster
+		int maxClusters = getMaxClustersPerTransfer();
 		while (length > 0) {
-			// we always read one cluster at a time, or if remaining size is
-			// less than the cluster size, only "size" bytes
-			int size = (int) Math.min(clusterSize, length);
+			// clusters which follow each other on the disk are read with one
+			// request, if remaining size is less than the run, only "size"
+			// bytes
+			int clusters = getContiguousClusters(chainIndex,
+					Math.min(maxClusters, (int) ((length + clusterSize - 1) / clusterSize)));
+			int size = (int) Math.min(clusters * clusterSize, length);
 			dest.limit(dest.position() + size);
 
-			blockDevice.read(getFileSystemOffset(chain[chainIndex], 0), dest);
+			blockDevice.read(getFileSystemOffset(getCluster(chainIndex), 0), dest);
 
-			chainIndex++;
+			chainIndex += clusters;
 			length -= size;
 		}
 	}
@@ -139,7 +217,7 @@ public class ClusterChain {
 			int size = Math.min(length, (int) (clusterSize - clusterOffset));
 			source.limit(source.position() + size);
 
-			blockDevice.write(getFileSystemOffset(chain[chainIndex], clusterOffset), source);
+			blockDevice.write(getFileSystemOffset(getCluster(chainIndex), clusterOffset), source);
 
 			// round up to next cluster in the chain
 			chainIndex++;
@@ -149,19 +227,136 @@ public class ClusterChain {
 
 		// now we can proceed reading the clusters without an offset in the
 		// cluster
+		int maxClusters = getMaxClustersPerTransfer();
 		while (length > 0) {
-			// we always write one cluster at a time, or if remaining size is
-			// less than the cluster size, only "size" bytes
-			int size = (int) Math.min(clusterSize, length);
+			// clusters which follow each other on the disk are written with one
+			// request, if remaining size is less than the run, only "size"
+			// bytes
+			int clusters = getContiguousClusters(chainIndex,
+					Math.min(maxClusters, (int) ((length + clusterSize - 1) / clusterSize)));
+			int size = (int) Math.min(clusters * clusterSize, length);
 			source.limit(source.position() + size);
 
-			blockDevice.write(getFileSystemOffset(chain[chainIndex], 0), source);
+			blockDevice.write(getFileSystemOffset(getCluster(chainIndex), 0), source);
 
-			chainIndex++;
+			chainIndex += clusters;
 			length -= size;
 		}
 	}
 
+	/**
+	 * Returns the offset on the block device of the given offset in the chain.
+	 * 
+	 * @param offset
+	 *            The offset in bytes in the chain.
+	 * @return The offset in bytes from the beginning of the file system.
+	 * @throws IOException
+	 *             If following the chain in the FAT fails.
+	 * @see FatBatchReader
+	 */
+	/* package */long getDeviceOffset(long offset) throws LibAumsException {
+		return getFileSystemOffset(getCluster((int) (offset / clusterSize)),
+				(int) (offset % clusterSize));
+	}
+
+	/**
+	 * Returns how many bytes, starting at the given offset in the chain, are
+	 * physically contiguous on the disk.
+	 * 
+	 * @param offset
+	 *            The offset in bytes in the chain.
+	 * @param maxLength
+	 *            The maximum number of bytes to return.
+	 * @return The length of the run in bytes, at most maxLength.
+	 * @throws IOException
+	 *             If following the chain in the FAT fails.
+	 * @see FatBatchReader
+	 */
+	/* package */long getContiguousLength(long offset, long maxLength) throws LibAumsException {
+		long clusterOffset = offset % clusterSize;
+		int maxClusters = (int) Math.min(Integer.MAX_VALUE,
+				(clusterOffset + maxLength + clusterSize - 1) / clusterSize);
+		int clusters = getContiguousClusters((int) (offset / clusterSize), maxClusters);
+		return Math.min(clusters * clusterSize - clusterOffset, maxLength);
+	}
+
+	/**
+	 * 
+	 * @return The size of a cluster in bytes.
+	 */
+	/* package */long getClusterSize() {
+		return clusterSize;
+	}
+
+	/**
+	 * Returns the number of clusters, starting at the given index in the
+	 * chain, which are physically contiguous on the disk.
+	 * 
+	 * @param chainIndex
+	 *            The index of the first cluster in the chain.
+	 * @param maxClusters
+	 *            The maximum number of clusters to return.
+	 * @return The length of the run, at least one.
+	 */
+	private int getContiguousClusters(int chainIndex, int maxClusters) throws LibAumsException {
+		resolve(chainIndex + maxClusters - 1);
+		return Math.min(chain.getContiguousClusters(chainIndex), maxClusters);
+	}
+
+	/**
+	 * Returns the cluster at the given index in the chain, following the chain
+	 * in the FAT if it is not resolved that far yet.
+	 * 
+	 * @param chainIndex
+	 *            The index in the chain.
+	 * @return The cluster.
+	 */
+	private long getCluster(int chainIndex) throws LibAumsException {
+		resolve(chainIndex);
+		return chain.get(chainIndex);
+	}
+
+	/**
+	 * Follows the chain in the FAT until the given index is resolved or the
+	 * end of the chain is reached. More clusters than needed are resolved, to
+	 * avoid accessing the FAT for every cluster on sequential access.
+	 * 
+	 * @param chainIndex
+	 *            The index in the chain which is needed.
+	 */
+	private void resolve(int chainIndex) throws LibAumsException {
+		if (nextCluster == 0 || chainIndex < chain.size()) {
+			return;
+		}
+
+		int count = Math.max(chainIndex - chain.size() + 1,
+				Math.max(MIN_RESOLVE_CLUSTERS, getMaxClustersPerTransfer()));
+		nextCluster = fat.followChain(chain, nextCluster, count);
+		if (nextCluster == 0) {
+			fat.cacheChain(chain);
+		}
+	}
+
+	/**
+	 * Follows the remaining chain in the FAT. This is needed before the
+	 * length of the chain is known or the chain can be changed.
+	 */
+	private void resolveAll() throws LibAumsException {
+		if (nextCluster != 0) {
+			nextCluster = fat.followChain(chain, nextCluster, Integer.MAX_VALUE);
+			fat.cacheChain(chain);
+		}
+	}
+
+	/**
+	 * Returns how many clusters fit into one transfer of the block device.
+	 * 
+	 * @return The number of clusters, at least one.
+	 */
+	private int getMaxClustersPerTransfer() {
+		return (int) Math.max(blockDevice.getMaxTransferLength() / clusterSize, 1);
+	}
+
 	/**
 	 * Returns the offset of a cluster from the beginning of the FAT32 file
 	 * system in bytes.
@@ -207,11 +402,14 @@ public class ClusterChain {
 	 * Gets the current allocated clusters for this chain.
 	 * 
 	 * @return The number of clusters.
+	 * @throws IOException
+	 *             If following the chain in the FAT fails.
 	 * @see #setClusters(int)
 	 * @see #getLength()
 	 */
-	/* package */int getClusters() {
-		return chain.length;
+	/* package */int getClusters() throws LibAumsException {
+		resolveAll();
+		return chain.size();
 	}
 
 	/**
@@ -234,10 +432,12 @@ public class ClusterChain {
 	 * Returns the size in bytes the chain currently occupies on the disk.
 	 * 
 	 * @return The size / length in bytes of the chain.
+	 * @throws IOException
+	 *             If following the chain in the FAT fails.
 	 * @see #setLength(long)
 	 * @see #getClusters()
 	 */
-	/* package */long getLength() {
-		return chain.length * clusterSize;
+	/* package */long getLength() throws LibAumsException {
+		return getClusters() * clusterSize;
 	}
 }
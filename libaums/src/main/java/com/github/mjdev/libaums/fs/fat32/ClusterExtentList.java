@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the clusters of a cluster chain as a list of extents. An
+ * extent is a run of clusters which follow each other on the disk, it is
+ * stored as start cluster and length. Thus the memory needed depends on the
+ * fragmentation of the chain and not on its length.
+ * <p>
+ * Clusters are addressed by their index in the chain, the extent containing
+ * an index is found with a binary search. Clusters can only be appended to or
+ * removed from the end of the chain, which is all the FAT needs.
+ *
+ * @see com.github.mjdev.libaums.fs.fat32.FAT#getChain(long)
+ */
+/* package */class ClusterExtentList {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	/**
+	 * First cluster of each extent.
+	 */
+	private int[] startClusters = new int[INITIAL_CAPACITY];
+	/**
+	 * Index in the chain of the first cluster of each extent. The length of
+	 * extent i is firstIndexes[i + 1] - firstIndexes[i], for the last extent
+	 * it is size - firstIndexes[i].
+	 */
+	private int[] firstIndexes = new int[INITIAL_CAPACITY];
+	private int extentCount;
+	private int size;
+
+	/**
+	 * Appends a cluster to the end of the chain. If the cluster directly
+	 * follows the last cluster, only the last extent grows.
+	 *
+	 * @param cluster
+	 *            The cluster to append.
+	 */
+	/* package */void add(long cluster) {
+		if (extentCount > 0 && getLastCluster() + 1 == cluster) {
+			size++;
+			return;
+		}
+
+		if (extentCount == startClusters.length) {
+			startClusters = Arrays.copyOf(startClusters, extentCount * 2);
+			firstIndexes = Arrays.copyOf(firstIndexes, extentCount * 2);
+		}
+
+		startClusters[extentCount] = (int) cluster;
+		firstIndexes[extentCount] = size;
+		extentCount++;
+		size++;
+	}
+
+	/**
+	 * Returns the cluster at the given index in the chain.
+	 *
+	 * @param index
+	 *            The index in the chain.
+	 * @return The cluster.
+	 * @throws IndexOutOfBoundsException
+	 *             If the index is not in the chain.
+	 */
+	/* package */long get(int index) {
+		int extent = findExtent(index);
+		return startClusters[extent] + (index - firstIndexes[extent]);
+	}
+
+	/**
+	 * Returns the number of clusters, starting at the given index, which
+	 * follow each other on the disk. That is the rest of the extent the index
+	 * is in.
+	 *
+	 * @param index
+	 *            The index in the chain.
+	 * @return The number of contiguous clusters, at least one.
+	 */
+	/* package */int getContiguousClusters(int index) {
+		int extent = findExtent(index);
+		int end = extent + 1 < extentCount ? firstIndexes[extent + 1] : size;
+		return end - index;
+	}
+
+	/**
+	 *
+	 * @return The last cluster in the chain.
+	 * @throws IndexOutOfBoundsException
+	 *             If the chain is empty.
+	 */
+	/* package */long getLastCluster() {
+		if (size == 0) {
+			throw new IndexOutOfBoundsException("chain is empty");
+		}
+		return startClusters[extentCount - 1] + (size - 1 - firstIndexes[extentCount - 1]);
+	}
+
+	/**
+	 * Removes clusters from the end of the chain, so that only the given
+	 * number of clusters remain.
+	 *
+	 * @param newSize
+	 *            The new number of clusters.
+	 */
+	/* package */void truncate(int newSize) {
+		if (newSize < 0 || newSize > size) {
+			throw new IndexOutOfBoundsException("new size " + newSize + ", size " + size);
+		}
+
+		while (extentCount > 0 && firstIndexes[extentCount - 1] >= newSize) {
+			extentCount--;
+		}
+		size = newSize;
+	}
+
+	/**
+	 *
+	 * @return A copy of this list, which can be changed independently.
+	 */
+	/* package */ClusterExtentList copy() {
+		ClusterExtentList result = new ClusterExtentList();
+		result.startClusters = Arrays.copyOf(startClusters, Math.max(extentCount, INITIAL_CAPACITY));
+		result.firstIndexes = Arrays.copyOf(firstIndexes, Math.max(extentCount, INITIAL_CAPACITY));
+		result.extentCount = extentCount;
+		result.size = size;
+		return result;
+	}
+
+	/**
+	 *
+	 * @return The number of clusters in the chain.
+	 */
+	/* package */int size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return The number of extents, i.e. the number of fragments of the
+	 *         chain.
+	 */
+	/* package */int getExtentCount() {
+		return extentCount;
+	}
+
+	private int findExtent(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		}
+
+		int extent = Arrays.binarySearch(firstIndexes, 0, extentCount, index);
+		// if not found binarySearch returns -(insertion point) - 1, the extent
+		// containing the index is the one before the insertion point
+		return extent >= 0 ? extent : -extent - 2;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("ClusterExtentList [size=" + size + ", extents=");
+		for (int i = 0; i < extentCount; i++) {
+			int end = i + 1 < extentCount ? firstIndexes[i + 1] : size;
+			builder.append(i == 0 ? "" : ",").append(startClusters[i]).append('+')
+					.append(end - firstIndexes[i]);
+		}
+		return builder.append(']').toString();
+	}
+}
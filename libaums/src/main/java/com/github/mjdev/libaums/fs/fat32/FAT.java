@@ -20,9 +20,10 @@ package com.github.mjdev.libaums.fs.fat32;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import com.atech.library.usb.libaums.UsbMassStorageLibrary;
 import com.atech.library.usb.libaums.data.LibAumsException;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -39,6 +40,21 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
  * . Every entry in the FAT is 32 bit. The FAT is a (linked) list where the
  * clusters can be followed until a cluster chain ends.
  * <p>
+ * All entries are accessed through a {@link FatSectorCache}. Changed sectors
+ * are collected there and each run of them is written to every copy of the FAT
+ * with one request. If {@link UsbMassStorageLibrary#CACHE_FAT} is set, the FAT
+ * is kept in memory and changes are only written on {@link #flush()}.
+ * Otherwise the changes of every allocation or free are written at its end
+ * and the loaded sectors are dropped.
+ * <p>
+ * If {@link #buildFreeClusterMap(boolean)} was called, free clusters are taken
+ * from a {@link FreeClusterMap} instead of searching the FAT.
+ * <p>
+ * Completely resolved chains are kept in a small LRU cache keyed by their
+ * start cluster (see {@link UsbMassStorageLibrary#CHAIN_CACHE_SIZE}), so
+ * opening the same file again needs no FAT access. Allocating or freeing
+ * clusters of a chain removes it from the cache.
+ * <p>
  * For more information you should refer to the official documentation of FAT32.
  * 
  * @author mjahnen
@@ -52,11 +68,33 @@ public class FAT {
 	 * cluster chain should be stopped. (Last allocated cluster has been found.)
 	 */
 	private static final int FAT32_EOF_CLUSTER = 0x0FFFFFF8;
+	/**
+	 * Bit in the FAT entry of cluster 1 which is set if the volume was
+	 * unmounted cleanly, and cleared while the volume is being changed.
+	 */
+	private static final int CLEAN_SHUTDOWN_BIT = 0x08000000;
+	/**
+	 * Only the lower 28 bits of an entry are the cluster number, the upper
+	 * four bits are reserved and have to be ignored.
+	 */
+	private static final int ENTRY_MASK = 0x0FFFFFFF;
 
 	private BlockDeviceDriver blockDevice;
 	private long fatOffset[];
+	private int bytesPerSector;
 	private int fatNumbers[];
 	private FsInfoStructure fsInfoStructure;
+	private FatSectorCache cache;
+	private long clusterCount;
+	private FreeClusterMap freeClusterMap;
+	private volatile boolean freeClusterMapReady;
+	private boolean volumeDirty;
+	/**
+	 * True if the loaded sectors are kept in memory until the file system is
+	 * closed.
+	 */
+	private boolean keepCache;
+	private Map<Long, ClusterExtentList> chainCache;
 
 	/**
 	 * Constructs a new FAT.
@@ -90,6 +128,21 @@ public class FAT {
 		for (int i = 0; i < fatOffset.length; i++) {
 			fatOffset[i] = bootSector.getFatOffset(fatNumbers[i]);
 		}
+
+		clusterCount = bootSector.getClusterCount();
+		bytesPerSector = bootSector.getBytesPerSector();
+
+		keepCache = UsbMassStorageLibrary.CACHE_FAT;
+		cache = new FatSectorCache(blockDevice, fatOffset, bootSector.getBytesPerSector(),
+				bootSector.getSectorsPerFat());
+
+		final int chainCacheSize = UsbMassStorageLibrary.CHAIN_CACHE_SIZE;
+		chainCache = new LinkedHashMap<Long, ClusterExtentList>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, ClusterExtentList> eldest) {
+				return size() > chainCacheSize;
+			}
+		};
 	}
 
 	/**
@@ -102,173 +155,182 @@ public class FAT {
 	 * @throws IOException
 	 *             If reading from device fails.
 	 */
-	/* package */Long[] getChain(long startCluster) throws LibAumsException {
+	/* package */synchronized ClusterExtentList getChain(long startCluster) throws LibAumsException {
 		
-		if(startCluster == 0) {
-			// if the start cluster is 0, we have an empty file 
-			return new Long[0];
-		}
-		
-		final ArrayList<Long> result = new ArrayList<Long>();
-		final int bufferSize = blockDevice.getBlockSize() * 2;
-		// for performance reasons we always read or write two times the block
-		// size
-		// this is esp. good for long cluster chains because it reduces of read
-		// or writes
-		// and mostly cluster chains are located consecutively in the FAT
-		final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-		long currentCluster = startCluster;
-		long offset;
-		long offsetInBlock;
-		long lastOffset = -1;
-
-		do {
-			result.add(currentCluster);
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
+		final ClusterExtentList result = new ClusterExtentList();
+		followChain(result, startCluster, Integer.MAX_VALUE);
+		return result;
+	}
+
+	/**
+	 * This methods follows a chain for at most the given number of clusters
+	 * and appends them to the given list. This way only the part of a chain
+	 * which is actually needed has to be read from the FAT.
+	 * 
+	 * @param chain
+	 *            The list the clusters are appended to.
+	 * @param nextCluster
+	 *            The cluster where following shall continue, the start cluster
+	 *            or the value returned by the last call. 0 for an empty chain.
+	 * @param numberOfClusters
+	 *            The maximum number of clusters which shall be appended.
+	 * @return The cluster where following has to continue or 0 if the end
+	 *         mark has been reached.
+	 * @throws LibAumsException
+	 *             If reading from device fails.
+	 */
+	/* package */synchronized long followChain(ClusterExtentList chain, long nextCluster,
+			int numberOfClusters) throws LibAumsException {
+		// if the start cluster is 0, we have an empty file
+		long currentCluster = nextCluster;
+
+		while (currentCluster != 0 && numberOfClusters > 0) {
+			chain.add(currentCluster);
+			numberOfClusters--;
+			currentCluster = getEntry(currentCluster) & ENTRY_MASK;
+			if (currentCluster >= FAT32_EOF_CLUSTER) {
+				currentCluster = 0;
 			}
+		}
 
-			currentCluster = buffer.getInt((int) offsetInBlock);
-		} while (currentCluster < FAT32_EOF_CLUSTER);
+		if (!keepCache) {
+			cache.clear();
+		}
 
-		return result.toArray(new Long[0]);
+		return currentCluster;
+	}
+
+	/**
+	 * Returns a copy of a completely resolved chain from the chain cache.
+	 * 
+	 * @param startCluster
+	 *            The start cluster of the chain.
+	 * @return The chain or null if it is not cached.
+	 */
+	/* package */synchronized ClusterExtentList getCachedChain(long startCluster) {
+		ClusterExtentList result = chainCache.get(startCluster);
+		return result == null ? null : result.copy();
+	}
+
+	/**
+	 * Puts a copy of a completely resolved chain into the chain cache.
+	 * 
+	 * @param chain
+	 *            The chain, must not be empty.
+	 */
+	/* package */synchronized void cacheChain(ClusterExtentList chain) {
+		if (UsbMassStorageLibrary.CHAIN_CACHE_SIZE > 0) {
+			chainCache.put(chain.get(0), chain.copy());
+		}
 	}
 
 	/**
 	 * This methods searches for free clusters in the chain and then assigns it
 	 * to the existing chain which is given at a parameter. The current chain
 	 * given as parameter can also be empty so that a completely new chain (with
-	 * a new start cluster) is created.
+	 * a new start cluster) is created. The newly allocated clusters are
+	 * appended to the given chain.
 	 * 
 	 * @param chain
-	 *            The existing chain or an empty array to create a completely
+	 *            The existing chain or an empty list to create a completely
 	 *            new chain.
 	 * @param numberOfClusters
 	 *            The number of clusters which shall newly be allocated.
-	 * @return The new chain including the old and the newly allocated clusters.
+	 * @return The given chain, now including the newly allocated clusters.
 	 * @throws IOException
 	 *             If reading or writing to the FAT fails.
 	 */
-	/* package */Long[] alloc(Long[] chain, int numberOfClusters) throws LibAumsException {
+	/* package */synchronized ClusterExtentList alloc(ClusterExtentList chain, int numberOfClusters) throws LibAumsException {
         
         // save original number of clusters for fs info structure
         final int originalNumberOfClusters = numberOfClusters;
-        
-		final ArrayList<Long> result = new ArrayList<Long>(chain.length + numberOfClusters);
-		result.addAll(Arrays.asList(chain));
-		// for performance reasons we always read or write two times the block
-		// size
-		// this is esp. good for long cluster chains because it reduces of read
-		// or writes
-		// and mostly cluster chains are located consecutively in the FAT
-		final int bufferSize = blockDevice.getBlockSize() * 2;
-		final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-		final long cluster;
-		if (chain.length != 0)
-			cluster = chain[chain.length - 1];
-		else
-			cluster = -1;
+        final int oldLength = chain.size();
+        setVolumeDirty();
+        invalidateChain(chain);
+
+		findFreeClusters(chain, numberOfClusters);
+
+		long currentCluster = chain.getLastCluster();
+		try {
+			// now it is time to write the partial cluster chain, start with
+			// the last cluster in the existing chain
+			for (int i = oldLength == 0 ? 0 : oldLength - 1; i < chain.size() - 1; i++) {
+				setEntry(chain.get(i), (int) chain.get(i + 1));
+			}
 
-		long lastAllocated = fsInfoStructure.getLastAllocatedClusterHint();
-		if (lastAllocated == FsInfoStructure.INVALID_VALUE) {
-			// we have to start from the beginning because there is no hint!
-			lastAllocated = 2;
+			// write end mark to last newly allocated cluster now
+			setEntry(currentCluster, FAT32_EOF_CLUSTER);
+			writeChanges();
+		} catch (LibAumsException | RuntimeException e) {
+			releaseClusters(chain, oldLength, true);
+			throw e;
 		}
 
-		long currentCluster = lastAllocated;
+		// refresh the info structure
+		fsInfoStructure.setLastAllocatedClusterHint(currentCluster);
+		fsInfoStructure.decreaseClusterCount(originalNumberOfClusters);
+		writeFsInfo();
 
-		long offset;
-		long offsetInBlock;
-		long lastOffset = -1;
-
-		// first we search all needed cluster and save them
-		while (numberOfClusters > 0) {
-			currentCluster++;
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
-			}
+		log.info( "allocating clusters finished");
 
-			if (buffer.getInt((int) offsetInBlock) == 0) {
-				result.add(currentCluster);
-				numberOfClusters--;
-			}
+		return chain;
+	}
+
+	/**
+	 * Allocates several new chains with one search for free clusters and one
+	 * write of the FAT. The clusters of all chains are taken one after the
+	 * other, so they are contiguous on the disk as far as the free space
+	 * allows.
+	 * 
+	 * @param clusterCounts
+	 *            The number of clusters of each chain, at least one.
+	 * @return The new chains.
+	 * @throws IOException
+	 *             If reading or writing to the FAT fails.
+	 * @see FatBulkWriter
+	 */
+	/* package */synchronized ClusterExtentList[] allocChains(int[] clusterCounts) throws LibAumsException {
+		if (clusterCounts.length == 0) {
+			return new ClusterExtentList[0];
 		}
 
-		// TODO we should write in in all FATs when they are mirrored!
-		if (cluster != -1) {
-			// now it is time to write the partial cluster chain
-			// start with the last cluster in the existing chain
-			offset = ((fatOffset[0] + cluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + cluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
+		int total = 0;
+		for (int count : clusterCounts) {
+			if (count < 1) {
+				throw new IllegalArgumentException("chain needs at least one cluster");
 			}
-			buffer.putInt((int) offsetInBlock, (int) result.get(chain.length).longValue());
+			total += count;
 		}
 
-		// write the new allocated clusters now
-		for (int i = chain.length; i < result.size() - 1; i++) {
-			currentCluster = result.get(i);
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.write(lastOffset, buffer);
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
+		setVolumeDirty();
+		ClusterExtentList all = new ClusterExtentList();
+		findFreeClusters(all, total);
+
+		ClusterExtentList[] chains = new ClusterExtentList[clusterCounts.length];
+		try {
+			int index = 0;
+			for (int i = 0; i < clusterCounts.length; i++) {
+				ClusterExtentList chain = new ClusterExtentList();
+				for (int j = 0; j < clusterCounts[i]; j++) {
+					chain.add(all.get(index++));
+				}
+				for (int j = 0; j < chain.size() - 1; j++) {
+					setEntry(chain.get(j), (int) chain.get(j + 1));
+				}
+				setEntry(chain.getLastCluster(), FAT32_EOF_CLUSTER);
+				chains[i] = chain;
 			}
-
-			buffer.putInt((int) offsetInBlock, (int) result.get(i + 1).longValue());
+			writeChanges();
+		} catch (LibAumsException | RuntimeException e) {
+			releaseClusters(all, 0, true);
+			throw e;
 		}
 
-		// write end mark to last newly allocated cluster now
-		currentCluster = result.get(result.size() - 1);
-		offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-		offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-		// if we have a new offset we are forced to read again
-		if (lastOffset != offset) {
-			buffer.clear();
-			blockDevice.write(lastOffset, buffer);
-			buffer.clear();
-			blockDevice.read(offset, buffer);
-			lastOffset = offset;
-		}
-		buffer.putInt((int) offsetInBlock, FAT32_EOF_CLUSTER);
-		buffer.clear();
-		blockDevice.write(offset, buffer);
+		fsInfoStructure.setLastAllocatedClusterHint(all.getLastCluster());
+		fsInfoStructure.decreaseClusterCount(total);
+		writeFsInfo();
 
-		// refresh the info structure
-		fsInfoStructure.setLastAllocatedClusterHint(currentCluster);
-		fsInfoStructure.decreaseClusterCount(originalNumberOfClusters);
-		fsInfoStructure.write();
-
-		log.info( "allocating clusters finished");
-
-		return result.toArray(new Long[0]);
+		return chains;
 	}
 
 	/**
@@ -283,86 +345,396 @@ public class FAT {
 	 *            The existing chain where the clusters shall be freed from.
 	 * @param numberOfClusters
 	 *            The amount of clusters which shall be freed.
-	 * @return The new chain without the unneeded clusters.
+	 * @return The given chain, now without the unneeded clusters.
 	 * @throws IOException
 	 *             If reading or writing to the FAT fails.
 	 * @throws IllegalStateException
 	 *             If more clusters are requested to be freed than currently
 	 *             exist in the chain.
 	 */
-	/* package */Long[] free(Long[] chain, int numberOfClusters) throws LibAumsException {
-		final int offsetInChain = chain.length - numberOfClusters;
-		// for performance reasons we always read or write two times the block
-		// size
-		// this is esp. good for long cluster chains because it reduces of read
-		// or writes
-		// and mostly cluster chains are located consecutively in the FAT
-		final int bufferSize = blockDevice.getBlockSize() * 2;
-		final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	/* package */synchronized ClusterExtentList free(ClusterExtentList chain, int numberOfClusters) throws LibAumsException {
+		final int offsetInChain = chain.size() - numberOfClusters;
 
 		if (offsetInChain < 0)
 			throw new IllegalStateException(
 					"trying to remove more clusters in chain than currently exist!");
 
-		long currentCluster;
-
-		long offset;
-		long offsetInBlock;
-		long lastOffset = -1;
+		setVolumeDirty();
+		invalidateChain(chain);
 
 		// free all unneeded clusters
-		for (int i = offsetInChain; i < chain.length; i++) {
-			currentCluster = chain[i];
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				if (lastOffset != -1) {
-					buffer.clear();
-					blockDevice.write(lastOffset, buffer);
-				}
-
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
+		for (int i = offsetInChain; i < chain.size(); i++) {
+			setEntry(chain.get(i), 0);
+			if (freeClusterMap != null) {
+				freeClusterMap.set(chain.get(i), true);
 			}
-
-			buffer.putInt((int) offsetInBlock, 0);
 		}
 
-		// TODO we should write in in all FATs when they are mirrored!
 		if (offsetInChain > 0) {
 			// write the end mark to last cluster in the new chain
-			currentCluster = chain[offsetInChain - 1];
-			offset = ((fatOffset[0] + currentCluster * 4) / bufferSize) * bufferSize;
-			offsetInBlock = ((fatOffset[0] + currentCluster * 4) % bufferSize);
-
-			// if we have a new offset we are forced to read again
-			if (lastOffset != offset) {
-				buffer.clear();
-				blockDevice.write(lastOffset, buffer);
-				buffer.clear();
-				blockDevice.read(offset, buffer);
-				lastOffset = offset;
-			}
-			buffer.putInt((int) offsetInBlock, FAT32_EOF_CLUSTER);
-			buffer.clear();
-			blockDevice.write(offset, buffer);
-		} else {
-			// if we freed all clusters we have to write the last change of the
-			// for loop above
-			buffer.clear();
-			blockDevice.write(lastOffset, buffer);
+			setEntry(chain.get(offsetInChain - 1), FAT32_EOF_CLUSTER);
 		}
+		writeChanges();
 
 		log.info( "freed " + numberOfClusters + " clusters");
 
 		// increase the free cluster count by decreasing with a negative value
 		fsInfoStructure.decreaseClusterCount(-numberOfClusters);
-		fsInfoStructure.write();
+		writeFsInfo();
+
+		chain.truncate(offsetInChain);
+		return chain;
+	}
 
-		return Arrays.copyOfRange(chain, 0, offsetInChain);
+	/**
+	 * Searches free clusters and appends them to the given chain. The entries
+	 * in the FAT are not changed.
+	 * 
+	 * @param chain
+	 *            The chain the clusters are appended to.
+	 * @param numberOfClusters
+	 *            The number of clusters needed.
+	 * @throws IOException
+	 *             If reading the FAT fails or there are not enough free
+	 *             clusters.
+	 */
+	private void findFreeClusters(ClusterExtentList chain, int numberOfClusters) throws LibAumsException {
+		final int oldLength = chain.size();
+
+		long lastAllocated = fsInfoStructure.getLastAllocatedClusterHint();
+		if (lastAllocated == FsInfoStructure.INVALID_VALUE) {
+			// we have to start from the beginning because there is no hint!
+			lastAllocated = 2;
+		}
+
+		final long endCluster = FreeClusterMap.FIRST_CLUSTER + clusterCount;
+		long currentCluster = lastAllocated;
+		if (currentCluster < FreeClusterMap.FIRST_CLUSTER || currentCluster >= endCluster) {
+			currentCluster = FreeClusterMap.FIRST_CLUSTER - 1;
+		}
+
+		try {
+			// first we search all needed cluster and save them
+			if (freeClusterMapReady) {
+				allocFromFreeClusterMap(chain, numberOfClusters, lastAllocated + 1);
+			} else {
+				// every cluster is looked at once, behind the hint first and
+				// then from the beginning, like FreeClusterMap.nextFree
+				long checked = 0;
+				while (numberOfClusters > 0) {
+					if (checked++ == clusterCount) {
+						throw LibAumsException.createWithIOException("no free clusters left");
+					}
+					currentCluster++;
+					if (currentCluster >= endCluster) {
+						currentCluster = FreeClusterMap.FIRST_CLUSTER;
+					}
+					if ((getEntry(currentCluster) & ENTRY_MASK) == 0) {
+						chain.add(currentCluster);
+						numberOfClusters--;
+					}
+				}
+
+				if (freeClusterMap != null) {
+					// map is still being built, keep it up to date
+					for (int i = oldLength; i < chain.size(); i++) {
+						freeClusterMap.set(chain.get(i), false);
+					}
+				}
+			}
+		} catch (LibAumsException | RuntimeException e) {
+			// the caller's chain stays as it was
+			releaseClusters(chain, oldLength, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Undoes a failed allocation. The clusters behind the old length are
+	 * removed from the chain and marked free in the free cluster map again.
+	 * 
+	 * @param chain
+	 *            The chain the clusters were appended to.
+	 * @param oldLength
+	 *            The length of the chain before the allocation.
+	 * @param linked
+	 *            True if the entries of the clusters may already be changed,
+	 *            they are then reset in the FAT as far as possible.
+	 */
+	private void releaseClusters(ClusterExtentList chain, int oldLength, boolean linked) {
+		if (linked) {
+			try {
+				try {
+					if (oldLength > 0) {
+						setEntry(chain.get(oldLength - 1), FAT32_EOF_CLUSTER);
+					}
+					for (int i = oldLength; i < chain.size(); i++) {
+						setEntry(chain.get(i), 0);
+					}
+				} finally {
+					writeChanges();
+				}
+			} catch (LibAumsException e) {
+				log.warn("resetting FAT entries of failed allocation failed", e);
+			}
+		}
+
+		if (freeClusterMap != null) {
+			for (int i = oldLength; i < chain.size(); i++) {
+				freeClusterMap.set(chain.get(i), true);
+			}
+		}
+		chain.truncate(oldLength);
+	}
+
+	/**
+	 * Takes the clusters for {@link #alloc(ClusterExtentList, int)} from the
+	 * free cluster map. A run of free clusters directly behind the chain, or
+	 * else the first run big enough for all clusters, is preferred. Only if
+	 * there is no such run, the clusters are taken one by one.
+	 */
+	private void allocFromFreeClusterMap(ClusterExtentList chain, int numberOfClusters,
+			long hint) throws LibAumsException {
+		if (freeClusterMap.getFreeClusterCount() < numberOfClusters) {
+			throw LibAumsException.createWithIOException("not enough free clusters: "
+					+ freeClusterMap.getFreeClusterCount() + " < " + numberOfClusters);
+		}
+
+		long from = chain.size() > 0 ? chain.getLastCluster() + 1 : hint;
+		long cluster = freeClusterMap.findFreeRun(numberOfClusters, from);
+
+		for (int i = 0; i < numberOfClusters; i++) {
+			if (cluster == -1 || !freeClusterMap.isFree(cluster)) {
+				cluster = freeClusterMap.nextFree(from);
+			}
+
+			chain.add(cluster);
+			freeClusterMap.set(cluster, false);
+			from = cluster + 1;
+			cluster++;
+		}
+	}
+
+	/**
+	 * Builds the map of free clusters with one pass over the FAT. After that
+	 * free clusters are found without reading the FAT and
+	 * {@link #getFreeClusterCount()} is exact.
+	 * 
+	 * @param background
+	 *            True to build the map in a background thread. Until it is
+	 *            finished, free clusters are searched in the FAT as before.
+	 * @throws LibAumsException
+	 *             If reading the FAT fails (only if not in background).
+	 */
+	/* package */void buildFreeClusterMap(boolean background) throws LibAumsException {
+		final FreeClusterMap map = new FreeClusterMap(clusterCount);
+		synchronized (this) {
+			// from now on alloc and free keep the map up to date
+			freeClusterMap = map;
+		}
+
+		if (!background) {
+			scanFreeClusters(map);
+			return;
+		}
+
+		Thread thread = new Thread("libaums-fat-scan") {
+			@Override
+			public void run() {
+				try {
+					scanFreeClusters(map);
+				} catch (LibAumsException e) {
+					log.error("building free cluster map failed", e);
+					synchronized (FAT.this) {
+						freeClusterMap = null;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void scanFreeClusters(FreeClusterMap map) throws LibAumsException {
+		final int blockSize = blockDevice.getBlockSize();
+		final int chunkSize = Math.max(blockDevice.getOptimalTransferLength() / blockSize, 1)
+				* blockSize;
+		final ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+		chunk.order(ByteOrder.LITTLE_ENDIAN);
+		final long fatLength = (FreeClusterMap.FIRST_CLUSTER + clusterCount) * 4;
+
+		long time = System.currentTimeMillis();
+		for (long position = 0; position < fatLength; position += chunkSize) {
+			synchronized (this) {
+				// changes of a cached FAT have to be on the device before we
+				// read this part of it
+				flush();
+				chunk.clear();
+				chunk.limit((int) Math.min(chunkSize, fatLength - position));
+				blockDevice.read(fatOffset[0] + position, chunk);
+
+				long cluster = position / 4;
+				for (int i = 0; i + 4 <= chunk.limit(); i += 4, cluster++) {
+					map.set(cluster, (chunk.getInt(i) & ENTRY_MASK) == 0);
+				}
+			}
+		}
+
+		synchronized (this) {
+			freeClusterMapReady = true;
+			// the map is exact, the hint in the info structure may not be
+			fsInfoStructure.setFreeClusterCount(map.getFreeClusterCount());
+		}
+
+		log.info("free cluster map built in " + (System.currentTimeMillis() - time) + " ms, "
+				+ map.getFreeClusterCount() + " free clusters");
+	}
+
+	/**
+	 * Returns the number of free clusters. This is exact if the free cluster
+	 * map is built, otherwise the value from the info structure is returned.
+	 * 
+	 * @return The number of free clusters or {@link FsInfoStructure#INVALID_VALUE}
+	 *         if unknown.
+	 */
+	/* package */long getFreeClusterCount() {
+		if (freeClusterMapReady) {
+			return freeClusterMap.getFreeClusterCount();
+		}
+		return fsInfoStructure.getFreeClusterCount();
+	}
+
+	/**
+	 * Writes all changes of the FAT, which are not written yet, to the
+	 * device. This only has an effect if the FAT is cached, otherwise all
+	 * changes are written at the end of every allocation or free.
+	 * 
+	 * @throws LibAumsException
+	 *             If writing fails.
+	 */
+	/* package */synchronized void flush() throws LibAumsException {
+		if (keepCache) {
+			cache.flush();
+		} else {
+			writeChanges();
+		}
+	}
+
+	/**
+	 * Writes the info structure if it has been changed. This is only needed if
+	 * {@link UsbMassStorageLibrary#DEFER_FS_INFO_WRITES} is set, otherwise the
+	 * info structure is written on every change.
+	 * 
+	 * @throws LibAumsException
+	 *             If writing fails.
+	 */
+	/* package */synchronized void flushFsInfo() throws LibAumsException {
+		fsInfoStructure.flush();
+	}
+
+	/**
+	 * 
+	 * @return True if the clean shutdown bit is set, i.e. the volume was
+	 *         unmounted properly the last time.
+	 * @throws LibAumsException
+	 *             If reading the FAT fails.
+	 */
+	/* package */synchronized boolean isVolumeClean() throws LibAumsException {
+		return (getEntry(1) & CLEAN_SHUTDOWN_BIT) != 0;
+	}
+
+	/**
+	 * Sets the clean shutdown bit again, after all changes have been written.
+	 * Has to be called after {@link #flush()} and {@link #flushFsInfo()}.
+	 * 
+	 * @throws LibAumsException
+	 *             If writing the FAT fails.
+	 */
+	/* package */synchronized void setVolumeClean() throws LibAumsException {
+		if (volumeDirty) {
+			setEntry(1, getEntry(1) | CLEAN_SHUTDOWN_BIT);
+			flush();
+			volumeDirty = false;
+		}
+	}
+
+	/**
+	 * Marks the volume as changed although the clean shutdown bit is already
+	 * cleared on the device, e.g. after it was mounted without a clean
+	 * unmount. {@link #setVolumeClean()} then sets the bit again once the
+	 * rebuilt info structure is written.
+	 */
+	/* package */synchronized void markVolumeDirty() {
+		volumeDirty = true;
+	}
+
+	/**
+	 * Clears the clean shutdown bit before the first change, if the info
+	 * structure is not written immediately. If the device is removed before
+	 * {@link #setVolumeClean()}, the free cluster count is then rebuilt at the
+	 * next mount.
+	 */
+	private void setVolumeDirty() throws LibAumsException {
+		if (!volumeDirty && UsbMassStorageLibrary.DEFER_FS_INFO_WRITES) {
+			setEntry(1, getEntry(1) & ~CLEAN_SHUTDOWN_BIT);
+			flush();
+			// the bit has to reach the device before any of the changes, even
+			// if the block device caches writes
+			for (long offset : fatOffset) {
+				blockDevice.flush(offset, bytesPerSector);
+			}
+			volumeDirty = true;
+		}
+	}
+
+	/**
+	 * Writes the info structure, unless writing it is deferred.
+	 */
+	private void writeFsInfo() throws LibAumsException {
+		if (!UsbMassStorageLibrary.DEFER_FS_INFO_WRITES) {
+			fsInfoStructure.write();
+		}
+	}
+
+	/**
+	 * Removes a chain, which is going to be changed, from the chain cache.
+	 */
+	private void invalidateChain(ClusterExtentList chain) {
+		if (chain.size() > 0) {
+			chainCache.remove(chain.get(0));
+		}
+	}
+
+	/**
+	 * Returns the entry of the given cluster in the FAT, which is the next
+	 * cluster in the chain, an end mark or zero for a free cluster.
+	 */
+	private int getEntry(long cluster) throws LibAumsException {
+		return cache.getEntry(cluster);
+	}
+
+	/**
+	 * Sets the entry of the given cluster in the FAT. The change is written with
+	 * {@link #writeChanges()} or {@link #flush()}.
+	 */
+	private void setEntry(long cluster, int value) throws LibAumsException {
+		cache.setEntry(cluster, value);
+	}
+
+	/**
+	 * Writes the changed sectors to all FATs at the end of an allocation or
+	 * free, if the FAT is not cached. The sectors are dropped afterwards, so
+	 * the memory used does not grow.
+	 */
+	private void writeChanges() throws LibAumsException {
+		if (!keepCache) {
+			try {
+				cache.flush();
+			} finally {
+				// also after a failed write, the cache must not keep dirty
+				// sectors, the next access reads them from the device again
+				cache.discard();
+			}
+		}
 	}
 }
@@ -228,6 +228,17 @@ import java.nio.ByteOrder;
 		return getFatOffset(0) + getFatCount() * getSectorsPerFat() * getBytesPerSector();
 	}
 
+	/**
+	 * Returns the number of clusters in the data area. Valid cluster numbers
+	 * are 2 up to and including the cluster count + 1.
+	 * 
+	 * @return The number of clusters.
+	 */
+	/* package */long getClusterCount() {
+		return (getTotalNumberOfSectors() * getBytesPerSector() - getDataAreaOffset())
+				/ getBytesPerCluster();
+	}
+
 	/**
 	 * This returns the volume label stored in the boot sector. This is mostly
 	 * not used and you should instead use {@link FatDirectory#getVolumeLabel()}
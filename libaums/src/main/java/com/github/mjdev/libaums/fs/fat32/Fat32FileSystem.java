@@ -19,12 +19,17 @@ package com.github.mjdev.libaums.fs.fat32;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
 
+import com.atech.library.usb.libaums.UsbMassStorageLibrary;
 import com.atech.library.usb.libaums.data.LibAumsException;
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 import com.github.mjdev.libaums.fs.FileSystem;
 import com.github.mjdev.libaums.fs.UsbFile;
 
+import lombok.extern.slf4j.Slf4j;
+
 /**
  * This class represents the FAT32 file system and is responsible for setting
  * the FAT32 file system up and extracting the volume label and the root
@@ -33,12 +38,15 @@ import com.github.mjdev.libaums.fs.UsbFile;
  * @author mjahnen
  * 
  */
+@Slf4j
 public class Fat32FileSystem implements FileSystem {
 
 	private Fat32BootSector bootSector;
 	private FAT fat;
 	private FsInfoStructure fsInfoStructure;
 	private FatDirectory rootDirectory;
+	private Timer fsInfoTimer;
+	private BlockDeviceDriver blockDevice;
 
 	/**
 	 * This method constructs a FAT32 file system for the given block device.
@@ -52,12 +60,32 @@ public class Fat32FileSystem implements FileSystem {
 	 *             If reading from the device fails.
 	 */
 	private Fat32FileSystem(BlockDeviceDriver blockDevice) throws LibAumsException {
+		this.blockDevice = blockDevice;
 		ByteBuffer buffer = ByteBuffer.allocate(512);
 		blockDevice.read(0, buffer);
 		bootSector = Fat32BootSector.read(buffer);
 		fsInfoStructure = FsInfoStructure.read(blockDevice, bootSector.getFsInfoStartSector()
 				* bootSector.getBytesPerSector());
 		fat = new FAT(blockDevice, bootSector, fsInfoStructure);
+
+		// if the info structure is written lazily, its free cluster count is
+		// only trustworthy after a clean unmount
+		boolean rescan = UsbMassStorageLibrary.DEFER_FS_INFO_WRITES && !fat.isVolumeClean();
+		if (rescan) {
+			log.warn("volume was not unmounted cleanly, counting free clusters again");
+			// the next flush writes the counted clusters and sets the clean
+			// shutdown bit again
+			fat.markVolumeDirty();
+		}
+		if (rescan || UsbMassStorageLibrary.BUILD_FREE_CLUSTER_MAP) {
+			fat.buildFreeClusterMap(!rescan
+					&& UsbMassStorageLibrary.BUILD_FREE_CLUSTER_MAP_IN_BACKGROUND);
+		}
+
+		if (UsbMassStorageLibrary.DEFER_FS_INFO_WRITES
+				&& UsbMassStorageLibrary.FS_INFO_FLUSH_INTERVAL > 0) {
+			startFsInfoTimer(UsbMassStorageLibrary.FS_INFO_FLUSH_INTERVAL);
+		}
 		rootDirectory = FatDirectory.readRoot(blockDevice, fat, bootSector);
 	}
 
@@ -102,6 +130,48 @@ public class Fat32FileSystem implements FileSystem {
 
 	@Override
 	public long getFreeSpace() {
-		return fsInfoStructure.getFreeClusterCount() * bootSector.getBytesPerCluster();
+		return fat.getFreeClusterCount() * bootSector.getBytesPerCluster();
+	}
+
+	/**
+	 * Writes the cached FAT and the info structure and marks the volume as
+	 * cleanly unmounted, until the next change. The block device is flushed
+	 * before and after the clean bit is set, in case it caches writes, so
+	 * the bit never reaches the device before the changes it certifies.
+	 */
+	@Override
+	public void flush() throws LibAumsException {
+		fat.flush();
+		fat.flushFsInfo();
+		blockDevice.flush();
+		fat.setVolumeClean();
+		blockDevice.flush();
+	}
+
+	@Override
+	public void close() throws LibAumsException {
+		if (fsInfoTimer != null) {
+			fsInfoTimer.cancel();
+			fsInfoTimer = null;
+		}
+		flush();
+	}
+
+	/**
+	 * Starts a timer which writes the info structure periodically, if it has
+	 * been changed.
+	 */
+	private void startFsInfoTimer(long interval) {
+		fsInfoTimer = new Timer("libaums-fsinfo-flush", true);
+		fsInfoTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					fat.flushFsInfo();
+				} catch (LibAumsException e) {
+					log.warn("writing fs info structure failed", e);
+				}
+			}
+		}, interval, interval);
 	}
 }
@@ -0,0 +1,305 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.driver.BlockDeviceDriver;
+import com.github.mjdev.libaums.fs.UsbFile;
+
+/**
+ * Reads many files of a FAT32 file system with as few requests as possible.
+ * The cluster chains of all files are resolved first and split into runs of
+ * physically contiguous clusters. The runs are sorted by their position on
+ * the disk and runs which follow each other, also of different files, are
+ * read with one request of up to the maximum transfer length. Small gaps
+ * between runs are read as well, because one bigger request is faster than
+ * two small ones. Thus extracting many small files is limited by the
+ * bandwidth of the device and not by the number of commands.
+ * <p>
+ * Because the data is read in disk order, the parts of a fragmented file
+ * may be delivered out of order, each with its offset in the file. The
+ * files must not be changed while they are read.
+ * 
+ * <pre>
+ * FatBatchReader reader = new FatBatchReader(sink);
+ * reader.add(logDirectory);
+ * reader.read();
+ * </pre>
+ */
+public class FatBatchReader {
+
+	/**
+	 * Biggest gap between two runs which is read instead of starting a new
+	 * request.
+	 */
+	private static final long MAX_GAP = 32 * 1024;
+
+	/**
+	 * Receives the data of the files.
+	 */
+	public interface Sink {
+
+		/**
+		 * Called for every part of a file. The data is only valid during the
+		 * call.
+		 * 
+		 * @param file
+		 *            The file.
+		 * @param offset
+		 *            The offset of the data in the file.
+		 * @param data
+		 *            The data, from position to limit.
+		 * @throws IOException
+		 *             If the data cannot be processed, reading is aborted
+		 *             then.
+		 */
+		void onData(UsbFile file, long offset, ByteBuffer data) throws IOException;
+
+		/**
+		 * Called when all data of a file has been delivered.
+		 * 
+		 * @param file
+		 *            The file.
+		 * @throws IOException
+		 *             If the file cannot be processed, reading is aborted
+		 *             then.
+		 */
+		void onFileRead(UsbFile file) throws IOException;
+	}
+
+	/**
+	 * A file and the number of its runs which are not delivered yet.
+	 */
+	private static class Item {
+		FatFile file;
+		int remaining;
+
+		Item(FatFile file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Physically contiguous part of a file.
+	 */
+	private static class Run {
+		Item item;
+		long fileOffset;
+		long deviceOffset;
+		int length;
+
+		Run(Item item, long fileOffset, long deviceOffset, int length) {
+			this.item = item;
+			this.fileOffset = fileOffset;
+			this.deviceOffset = deviceOffset;
+			this.length = length;
+		}
+	}
+
+	private Sink sink;
+	private BlockDeviceDriver blockDevice;
+	private List<Item> items = new ArrayList<Item>();
+
+	/**
+	 * Constructs a new batch reader.
+	 * 
+	 * @param sink
+	 *            Receives the data of the files.
+	 */
+	public FatBatchReader(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Adds a file or, recursively, all files in a directory. All files have to
+	 * be on the same FAT32 file system.
+	 * 
+	 * @param file
+	 *            The file or directory.
+	 * @throws IOException
+	 *             If reading a directory fails.
+	 */
+	public void add(UsbFile file) throws LibAumsException {
+		if (file.isDirectory()) {
+			for (UsbFile child : file.listFiles()) {
+				add(child);
+			}
+			return;
+		}
+
+		if (!(file instanceof FatFile)) {
+			throw new IllegalArgumentException("not a FAT32 file: " + file.getName());
+		}
+
+		FatFile fatFile = (FatFile) file;
+		if (blockDevice == null) {
+			blockDevice = fatFile.getBlockDevice();
+		} else if (blockDevice != fatFile.getBlockDevice()) {
+			throw new IllegalArgumentException("file is on another file system: " + file.getName());
+		}
+		items.add(new Item(fatFile));
+	}
+
+	/**
+	 * Adds files or directories.
+	 * 
+	 * @param files
+	 *            The files or directories.
+	 * @throws IOException
+	 *             If reading a directory fails.
+	 * @see #add(UsbFile)
+	 */
+	public void addAll(Collection<? extends UsbFile> files) throws LibAumsException {
+		for (UsbFile file : files) {
+			add(file);
+		}
+	}
+
+	/**
+	 * Reads all files added and passes their data to the sink. Afterwards the
+	 * reader is empty and can be reused.
+	 * 
+	 * @throws IOException
+	 *             If reading fails or the sink throws an exception, which is
+	 *             the cause then.
+	 */
+	public void read() throws LibAumsException {
+		if (items.isEmpty()) {
+			return;
+		}
+
+		try {
+			List<Run> runs = resolveRuns();
+			if (runs.isEmpty()) {
+				// only empty files, which are completed already
+				return;
+			}
+			readRuns(runs);
+		} catch (IOException e) {
+			throw new LibAumsException("sink failed: " + e.getMessage(), e);
+		} finally {
+			items.clear();
+			blockDevice = null;
+		}
+	}
+
+	/**
+	 * Follows the chains of all files and splits them into runs, sorted by
+	 * their position on the disk. Empty files are completed right away.
+	 */
+	private List<Run> resolveRuns() throws LibAumsException, IOException {
+		int maxTransfer = getMaxTransferLength();
+		List<Run> runs = new ArrayList<Run>();
+
+		for (Item item : items) {
+			long length = item.file.getLength();
+			if (length == 0) {
+				sink.onFileRead(item.file);
+				continue;
+			}
+
+			ClusterChain chain = item.file.getChain();
+			long clusterSize = chain.getClusterSize();
+			// whole clusters are read, the rest of the last one is cut off
+			// when delivering
+			long allocated = (length + clusterSize - 1) / clusterSize * clusterSize;
+			long offset = 0;
+			while (offset < allocated) {
+				int size = (int) chain.getContiguousLength(offset, Math.min(allocated - offset, maxTransfer));
+				runs.add(new Run(item, offset, chain.getDeviceOffset(offset), size));
+				item.remaining++;
+				offset += size;
+			}
+		}
+
+		Collections.sort(runs, new Comparator<Run>() {
+			@Override
+			public int compare(Run lhs, Run rhs) {
+				return Long.compare(lhs.deviceOffset, rhs.deviceOffset);
+			}
+		});
+		return runs;
+	}
+
+	/**
+	 * Reads the sorted runs, merging neighbors into one request.
+	 */
+	private void readRuns(List<Run> runs) throws LibAumsException, IOException {
+		int maxTransfer = getMaxTransferLength();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(maxTransfer);
+
+		int first = 0;
+		while (first < runs.size()) {
+			long start = runs.get(first).deviceOffset;
+			long end = start + runs.get(first).length;
+			int last = first + 1;
+			while (last < runs.size()) {
+				Run next = runs.get(last);
+				long nextEnd = Math.max(end, next.deviceOffset + next.length);
+				if (next.deviceOffset - end > MAX_GAP || nextEnd - start > maxTransfer) {
+					break;
+				}
+				end = nextEnd;
+				last++;
+			}
+
+			buffer.clear();
+			buffer.limit((int) (end - start));
+			blockDevice.read(start, buffer);
+
+			for (int i = first; i < last; i++) {
+				deliver(runs.get(i), buffer, start);
+			}
+			first = last;
+		}
+	}
+
+	private void deliver(Run run, ByteBuffer buffer, long bufferOffset) throws IOException {
+		FatFile file = run.item.file;
+		int position = (int) (run.deviceOffset - bufferOffset);
+		int size = (int) Math.min(run.length, file.getLength() - run.fileOffset);
+
+		ByteBuffer data = buffer.duplicate();
+		data.limit(position + size);
+		data.position(position);
+		sink.onData(file, run.fileOffset, data);
+
+		if (--run.item.remaining == 0) {
+			sink.onFileRead(file);
+		}
+	}
+
+	/**
+	 * 
+	 * @return The maximum transfer length, rounded down to whole clusters.
+	 */
+	private int getMaxTransferLength() {
+		// all files are on the same file system, the boot sector is known
+		// without resolving a chain, which empty files do not have
+		long clusterSize = items.get(0).file.getBootSector().getBytesPerCluster();
+		return (int) (Math.max(blockDevice.getMaxTransferLength() / clusterSize, 1) * clusterSize);
+	}
+}
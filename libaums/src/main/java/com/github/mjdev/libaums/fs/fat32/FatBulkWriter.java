@@ -0,0 +1,268 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates many files in one directory at once. Creating them one by one
+ * allocates a chain and writes the whole directory for every file, and
+ * writes the directory again when the file is closed. Instead the chains of
+ * all files are allocated with one search for free clusters and one write of
+ * the FAT, packed one after the other so they are contiguous on the disk as
+ * far as the free space allows. The contents are written in requests of the
+ * maximum transfer length, crossing file boundaries, and all directory
+ * entries are written with one write of the directory at the end.
+ * <p>
+ * The sizes have to be known in advance. Content streams are read, but not
+ * closed.
+ * 
+ * <pre>
+ * FatBulkWriter writer = new FatBulkWriter(directory);
+ * writer.add("config.txt", configBytes);
+ * writer.add("firmware.bin", size, inputStream);
+ * List&lt;UsbFile&gt; files = writer.write();
+ * </pre>
+ */
+@Slf4j
+public class FatBulkWriter {
+
+	/**
+	 * A file to create.
+	 */
+	private static class Item {
+		String name;
+		long size;
+		InputStream content;
+
+		Item(String name, long size, InputStream content) {
+			this.name = name;
+			this.size = size;
+			this.content = content;
+		}
+	}
+
+	private FatDirectory directory;
+	private List<Item> items = new ArrayList<Item>();
+	/**
+	 * Lower case names of the items, to find duplicates.
+	 */
+	private Set<String> names = new HashSet<String>();
+
+	/**
+	 * Constructs a new bulk writer.
+	 * 
+	 * @param directory
+	 *            The directory of a FAT32 file system the files are created
+	 *            in.
+	 */
+	public FatBulkWriter(UsbFile directory) {
+		if (!(directory instanceof FatDirectory)) {
+			throw new IllegalArgumentException("not a FAT32 directory: " + directory.getName());
+		}
+		this.directory = (FatDirectory) directory;
+	}
+
+	/**
+	 * Adds a file.
+	 * 
+	 * @param name
+	 *            The name of the file.
+	 * @param size
+	 *            The length of the file in bytes.
+	 * @param content
+	 *            The stream the content is read from, exactly size bytes
+	 *            are read.
+	 * @throws IOException
+	 *             If an item with the name exists in the directory or was
+	 *             added already.
+	 */
+	public void add(String name, long size, InputStream content) throws LibAumsException {
+		if (size < 0) {
+			throw new IllegalArgumentException("negative size");
+		}
+		if (!names.add(name.toLowerCase(Locale.ROOT)) || directory.contains(name)) {
+			throw LibAumsException.createWithIOException("Item already exists: " + name);
+		}
+		items.add(new Item(name, size, content));
+	}
+
+	/**
+	 * Adds a file.
+	 * 
+	 * @param name
+	 *            The name of the file.
+	 * @param content
+	 *            The content.
+	 * @throws IOException
+	 *             If an item with the name exists in the directory or was
+	 *             added already.
+	 */
+	public void add(String name, byte[] content) throws LibAumsException {
+		add(name, content.length, new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * Allocates, writes and adds all files to the directory. If writing the
+	 * contents fails, the allocated clusters are freed again. Afterwards the
+	 * writer is empty and can be reused.
+	 * 
+	 * @return The new files, in the order they were added.
+	 * @throws IOException
+	 *             If reading a content stream or writing to the device fails.
+	 */
+	public List<UsbFile> write() throws LibAumsException {
+		List<UsbFile> result = new ArrayList<UsbFile>(items.size());
+		if (items.isEmpty()) {
+			return result;
+		}
+
+		FAT fat = directory.getFat();
+		Fat32BootSector bootSector = directory.getBootSector();
+		long clusterSize = bootSector.getBytesPerCluster();
+
+		int[] clusterCounts = new int[items.size()];
+		for (int i = 0; i < items.size(); i++) {
+			// empty files get one cluster as well, like createFile does
+			clusterCounts[i] = (int) Math.max((items.get(i).size + clusterSize - 1) / clusterSize, 1);
+		}
+
+		ClusterExtentList[] chains = fat.allocChains(clusterCounts);
+		boolean success = false;
+		try {
+			writeContents(chains, clusterSize);
+
+			for (int i = 0; i < items.size(); i++) {
+				Item item = items.get(i);
+				result.add(directory.addFile(item.name, chains[i].get(0), item.size));
+			}
+			directory.write();
+			success = true;
+		} finally {
+			if (!success) {
+				rollback(result, chains);
+			}
+			items.clear();
+			names.clear();
+		}
+
+		log.debug("created " + result.size() + " files in " + directory.getName());
+		return result;
+	}
+
+	/**
+	 * Writes the contents of all items into their chains, one after the
+	 * other. The gap between the end of a file and the end of its last
+	 * cluster is filled with zeros, so that the writes do not have to stop at
+	 * file boundaries.
+	 */
+	private void writeContents(ClusterExtentList[] chains, long clusterSize) throws LibAumsException {
+		ClusterExtentList packed = new ClusterExtentList();
+		for (ClusterExtentList chain : chains) {
+			for (int i = 0; i < chain.size(); i++) {
+				packed.add(chain.get(i));
+			}
+		}
+		ClusterChain chain = new ClusterChain(packed, directory.getBlockDevice(), directory.getFat(),
+				directory.getBootSector());
+
+		int bufferSize = (int) (Math.max(directory.getBlockDevice().getMaxTransferLength() / clusterSize, 1)
+				* clusterSize);
+		ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+		long offset = 0;
+
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			long padded = chains[i].size() * clusterSize;
+			long remaining = item.size;
+			while (padded > 0) {
+				int size = (int) Math.min(buffer.remaining(), padded);
+				int data = (int) Math.min(size, remaining);
+				readFully(item, buffer, data);
+				// zero the rest of the last cluster, the buffer may hold old data
+				for (int j = data; j < size; j++) {
+					buffer.put((byte) 0);
+				}
+				remaining -= data;
+				padded -= size;
+
+				if (!buffer.hasRemaining()) {
+					buffer.flip();
+					chain.write(offset, buffer);
+					offset += buffer.limit();
+					buffer.clear();
+				}
+			}
+		}
+
+		if (buffer.position() > 0) {
+			buffer.flip();
+			chain.write(offset, buffer);
+		}
+	}
+
+	private static void readFully(Item item, ByteBuffer buffer, int length) throws LibAumsException {
+		try {
+			while (length > 0) {
+				int read = item.content.read(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+				if (read < 0) {
+					throw LibAumsException.createWithIOException("content of " + item.name
+							+ " is shorter than " + item.size + " bytes");
+				}
+				buffer.position(buffer.position() + read);
+				length -= read;
+			}
+		} catch (IOException e) {
+			throw new LibAumsException("reading content of " + item.name + " failed", e);
+		}
+	}
+
+	/**
+	 * Removes the entries added so far and frees the chains, after writing
+	 * failed.
+	 */
+	private void rollback(List<UsbFile> added, ClusterExtentList[] chains) {
+		try {
+			for (UsbFile file : added) {
+				directory.removeEntry(((FatFile) file).getEntry());
+			}
+			if (!added.isEmpty()) {
+				directory.write();
+			}
+			added.clear();
+			for (ClusterExtentList chain : chains) {
+				directory.getFat().free(chain, chain.size());
+			}
+		} catch (LibAumsException e) {
+			log.warn("freeing clusters after failed bulk write failed: " + e.getMessage());
+		}
+	}
+}
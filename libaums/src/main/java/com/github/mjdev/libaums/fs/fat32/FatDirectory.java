@@ -234,7 +234,7 @@ public class FatDirectory implements UsbFile {
 	 */
 	private void addEntry(FatLfnDirectoryEntry lfnEntry, FatDirectoryEntry entry) {
 		entries.add(lfnEntry);
-		lfnMap.put(lfnEntry.getName().toLowerCase(Locale.getDefault()), lfnEntry);
+		lfnMap.put(lfnEntry.getName().toLowerCase(Locale.ROOT), lfnEntry);
 		shortNameMap.put(entry.getShortName(), entry);
 	}
 
@@ -251,7 +251,7 @@ public class FatDirectory implements UsbFile {
 	 */
 	/* package */void removeEntry(FatLfnDirectoryEntry lfnEntry) {
 		entries.remove(lfnEntry);
-		lfnMap.remove(lfnEntry.getName().toLowerCase(Locale.getDefault()));
+		lfnMap.remove(lfnEntry.getName().toLowerCase(Locale.ROOT));
 		shortNameMap.remove(lfnEntry.getActualEntry().getShortName());
 	}
 
@@ -341,9 +341,78 @@ public class FatDirectory implements UsbFile {
 		return volumeLabel;
 	}
 
+	/**
+	 * Checks if an item with the given name exists in this directory. The
+	 * check is case insensitive like FAT32.
+	 * 
+	 * @param name
+	 *            The name.
+	 * @return True if the name is taken.
+	 * @throws IOException
+	 *             If reading from the device fails.
+	 */
+	/* package */boolean contains(String name) throws LibAumsException {
+		init();
+		return lfnMap.containsKey(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Adds an entry for a file whose chain is already allocated and written.
+	 * Unlike {@link #createFile(String)} the entry is not written, so that
+	 * many files can be added with one {@link #write()}.
+	 * 
+	 * @param name
+	 *            The name of the file.
+	 * @param startCluster
+	 *            The start cluster of its chain.
+	 * @param size
+	 *            The length of the file.
+	 * @return The new file.
+	 * @throws IOException
+	 *             If reading from the device fails or the name exists
+	 *             already.
+	 * @see FatBulkWriter
+	 */
+	/* package */FatFile addFile(String name, long startCluster, long size) throws LibAumsException {
+		if (contains(name))
+			throw LibAumsException.createWithIOException("Item already exists!");
+
+		ShortName shortName = ShortNameGenerator.generateShortName(name, shortNameMap.keySet());
+		FatLfnDirectoryEntry entry = FatLfnDirectoryEntry.createNew(name, shortName);
+		entry.setStartCluster(startCluster);
+		entry.setFileSize(size);
+		addEntry(entry, entry.getActualEntry());
+
+		return FatFile.create(entry, blockDevice, fat, bootSector, this);
+	}
+
+	/**
+	 * 
+	 * @return The FAT of the file system.
+	 */
+	/* package */FAT getFat() {
+		return fat;
+	}
+
+	/**
+	 * 
+	 * @return The boot sector of the file system.
+	 */
+	/* package */Fat32BootSector getBootSector() {
+		return bootSector;
+	}
+
+	/**
+	 * 
+	 * @return The device where the file system is located.
+	 */
+	/* package */BlockDeviceDriver getBlockDevice() {
+		return blockDevice;
+	}
+
 	@Override
 	public FatFile createFile(String name) throws LibAumsException {
-		if (lfnMap.containsKey(name.toLowerCase(Locale.getDefault())))
+		if (lfnMap.containsKey(name.toLowerCase(Locale.ROOT)))
 			throw LibAumsException.createWithIOException("Item already exists!");
 
 		init(); // initialise the directory before creating files
@@ -352,7 +421,7 @@ public class FatDirectory implements UsbFile {
 
 		FatLfnDirectoryEntry entry = FatLfnDirectoryEntry.createNew(name, shortName);
 		// alloc completely new chain
-		long newStartCluster = fat.alloc(new Long[0], 1)[0];
+		long newStartCluster = fat.alloc(new ClusterExtentList(), 1).get(0);
 		entry.setStartCluster(newStartCluster);
 
 		log.debug( "adding entry: " + entry + " with short name: " + shortName);
@@ -365,7 +434,7 @@ public class FatDirectory implements UsbFile {
 
 	@Override
 	public FatDirectory createDirectory(String name) throws LibAumsException {
-		if (lfnMap.containsKey(name.toLowerCase(Locale.getDefault())))
+		if (lfnMap.containsKey(name.toLowerCase(Locale.ROOT)))
 			throw LibAumsException.createWithIOException("Item already exists!");
 
 		init(); // initialise the directory before creating files
@@ -375,7 +444,7 @@ public class FatDirectory implements UsbFile {
 		FatLfnDirectoryEntry entry = FatLfnDirectoryEntry.createNew(name, shortName);
 		entry.setDirectory();
 		// alloc completely new chain
-		long newStartCluster = fat.alloc(new Long[0], 1)[0];
+		long newStartCluster = fat.alloc(new ClusterExtentList(), 1).get(0);
 		entry.setStartCluster(newStartCluster);
 
 		log.debug( "adding entry: " + entry + " with short name: " + shortName);
@@ -443,12 +512,11 @@ public class FatDirectory implements UsbFile {
             String dirName = path.substring(0, index);
             log.debug( "search recursively " + subPath + " in " + dirName);
 
-            for(FatLfnDirectoryEntry entry : entries) {
-                if(entry.isDirectory() && entry.getName().equals(dirName)) {
-                    log.debug( "found " + dirName);
-                    FatDirectory dir = FatDirectory.create(entry, blockDevice, fat, bootSector, this);
-                    return dir.search(subPath);
-                }
+            FatLfnDirectoryEntry entry = findEntry(dirName);
+            if(entry != null && entry.isDirectory()) {
+                log.debug( "found " + dirName);
+                FatDirectory dir = FatDirectory.create(entry, blockDevice, fat, bootSector, this);
+                return dir.search(subPath);
             }
         }
 
@@ -457,14 +525,11 @@ public class FatDirectory implements UsbFile {
         return null;
 	}
 
+    /**
+     * Looks the entry up case insensitive, like FAT32 does.
+     */
     private FatLfnDirectoryEntry findEntry(String name) {
-        for(FatLfnDirectoryEntry entry : entries) {
-            if(entry.getName().equals(name)) {
-                return entry;
-            }
-        }
-
-        return null;
+        return lfnMap.get(name.toLowerCase(Locale.ROOT));
     }
 
 	@Override
@@ -550,6 +615,16 @@ public class FatDirectory implements UsbFile {
         return array;
 	}
 
+	@Override
+	public void preallocate(long length) throws LibAumsException {
+		throw new UnsupportedOperationException("This is a directory!");
+	}
+
+	@Override
+	public int getPreferredIOSize() {
+		return bootSector.getBytesPerCluster();
+	}
+
 	@Override
 	public void read(long offset, ByteBuffer destination) throws LibAumsException {
 		throw new UnsupportedOperationException("This is a directory!");
@@ -583,7 +658,7 @@ public class FatDirectory implements UsbFile {
 		// partition!
 
 		FatDirectory destinationDir = (FatDirectory) destination;
-		if (destinationDir.lfnMap.containsKey(entry.getName().toLowerCase(Locale.getDefault())))
+		if (destinationDir.lfnMap.containsKey(entry.getName().toLowerCase(Locale.ROOT)))
 			throw LibAumsException.createWithIOException("item already exists in destination!");
 
         init();
@@ -624,7 +699,7 @@ public class FatDirectory implements UsbFile {
 		// partition!
 
 		FatDirectory destinationDir = (FatDirectory) destination;
-		if (destinationDir.lfnMap.containsKey(entry.getName().toLowerCase(Locale.getDefault())))
+		if (destinationDir.lfnMap.containsKey(entry.getName().toLowerCase(Locale.ROOT)))
 			throw LibAumsException.createWithIOException("item already exists in destination!");
 
 		init();
@@ -20,12 +20,21 @@ package com.github.mjdev.libaums.fs.fat32;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import com.atech.library.usb.libaums.UsbMassStorageLibrary;
 import com.atech.library.usb.libaums.data.LibAumsException;
 import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 import com.github.mjdev.libaums.fs.UsbFile;
 
 public class FatFile implements UsbFile {
 
+	/**
+	 * Smallest and biggest step the chain grows by when a write goes past the
+	 * allocated space and {@link UsbMassStorageLibrary#GROW_FILES_GEOMETRICALLY}
+	 * is set. In between the chain doubles its length.
+	 */
+	private static final long MIN_GROWTH = 64 * 1024;
+	private static final long MAX_GROWTH = 16 * 1024 * 1024;
+
 	private BlockDeviceDriver blockDevice;
 	private FAT fat;
 	private Fat32BootSector bootSector;
@@ -33,6 +42,10 @@ public class FatFile implements UsbFile {
 	private FatDirectory parent;
 	private ClusterChain chain;
 	private FatLfnDirectoryEntry entry;
+	/**
+	 * Only set if {@link UsbMassStorageLibrary#READ_AHEAD} is set.
+	 */
+	private ReadAhead readAhead;
 
 	/**
 	 * Constructs a new file with the given information.
@@ -88,9 +101,60 @@ public class FatFile implements UsbFile {
 	private void initChain() throws LibAumsException {
 		if (chain == null) {
 			chain = new ClusterChain(entry.getStartCluster(), blockDevice, fat, bootSector);
+			if (UsbMassStorageLibrary.READ_AHEAD) {
+				readAhead = new ReadAhead(chain, blockDevice.getOptimalTransferLength());
+			}
 		}
 	}
 
+	/**
+	 * Drops the data read ahead, before the chain is accessed otherwise.
+	 */
+	private void invalidateReadAhead() {
+		if (readAhead != null) {
+			readAhead.invalidate();
+		}
+	}
+
+	/**
+	 * Returns the cluster chain of the file for direct access to the device.
+	 * Data read ahead is dropped before.
+	 * 
+	 * @return The cluster chain.
+	 * @throws IOException
+	 *             If reading from FAT fails.
+	 * @see FatBatchReader
+	 */
+	/* package */ClusterChain getChain() throws LibAumsException {
+		initChain();
+		invalidateReadAhead();
+		return chain;
+	}
+
+	/**
+	 * 
+	 * @return The entry of the file in its parent directory.
+	 */
+	/* package */FatLfnDirectoryEntry getEntry() {
+		return entry;
+	}
+
+	/**
+	 * 
+	 * @return The device where the file system of the file is located.
+	 */
+	/* package */BlockDeviceDriver getBlockDevice() {
+		return blockDevice;
+	}
+
+	/**
+	 * 
+	 * @return The boot sector of the file system of the file.
+	 */
+	/* package */Fat32BootSector getBootSector() {
+		return bootSector;
+	}
+
 	@Override
 	public UsbFile search(String path) {
 		throw new UnsupportedOperationException("This is a file!");
@@ -149,29 +213,93 @@ public class FatFile implements UsbFile {
 	@Override
 	public void setLength(long newLength) throws LibAumsException {
         	initChain();
-		chain.setLength(newLength);
+		invalidateReadAhead();
+		// growing within the reserved space keeps the reservation
+		if (newLength > chain.getLength() || newLength < getLength()) {
+			chain.setLength(newLength);
+		}
 		entry.setFileSize(newLength);
 	}
 
+	@Override
+	public void preallocate(long length) throws LibAumsException {
+		initChain();
+		invalidateReadAhead();
+		if (length > chain.getLength()) {
+			chain.setLength(length);
+		}
+	}
+
+	@Override
+	public int getPreferredIOSize() {
+		final int clusterSize = bootSector.getBytesPerCluster();
+		return Math.max(blockDevice.getOptimalTransferLength() / clusterSize, 1) * clusterSize;
+	}
+
 	@Override
 	public void read(long offset, ByteBuffer destination) throws LibAumsException {
 		initChain();
 		entry.setLastAccessedTimeToNow();
-		chain.read(offset, destination);
+		if (readAhead != null) {
+			readAhead.read(offset, destination, getLength());
+		} else {
+			chain.read(offset, destination);
+		}
 	}
 
 	@Override
 	public void write(long offset, ByteBuffer source) throws LibAumsException {
 		initChain();
+		invalidateReadAhead();
 		long length = offset + source.remaining();
-		if (length > getLength())
-			setLength(length);
+		if (length > getLength()) {
+			// space which is already reserved is used, only if the write
+			// goes beyond it the chain has to grow
+			if (length > chain.getLength()) {
+				growChain(length);
+			}
+			entry.setFileSize(length);
+		}
 		entry.setLastModifiedTimeToNow();
 		chain.write(offset, source);
 	}
 
+	/**
+	 * Grows the chain so that it can hold at least the given length. If
+	 * {@link UsbMassStorageLibrary#GROW_FILES_GEOMETRICALLY} is set, more
+	 * space is reserved, so that a file written in small pieces needs only
+	 * a few allocations.
+	 */
+	private void growChain(long length) throws LibAumsException {
+		long newLength = length;
+		if (UsbMassStorageLibrary.GROW_FILES_GEOMETRICALLY) {
+			long allocated = chain.getLength();
+			newLength = Math.max(length,
+					allocated + Math.min(Math.max(allocated, MIN_GROWTH), MAX_GROWTH));
+		}
+		chain.setLength(newLength);
+	}
+
+	/**
+	 * Gives reserved but unused clusters back. At least one cluster is kept,
+	 * because the directory entry points to it.
+	 */
+	private void trimChain() throws LibAumsException {
+		if (chain == null) {
+			return;
+		}
+
+		long keep = Math.max(getLength(), 1);
+		if (keep < chain.getLength()) {
+			chain.setLength(keep);
+		}
+	}
+
 	@Override
 	public void flush() throws LibAumsException {
+		// reserved space is given back here and not only on close, so it is
+		// not lost if the file is never closed
+		trimChain();
 		// we only have to update the parent because we are always writing
 		// everything
 		// immediately to the device
@@ -184,9 +312,12 @@ public class FatFile implements UsbFile {
 	@Override
 	public void close() throws IOException {
 		try {
+			if (readAhead != null) {
+				readAhead.close();
+			}
 			flush();
 		} catch(LibAumsException ex) {
-			throw (IOException) ex.getCause();
+			throw ex.asIOException();
 		}
 	}
 
@@ -209,9 +340,11 @@ public class FatFile implements UsbFile {
 	@Override
 	public void delete() throws LibAumsException {
 		initChain();
+		invalidateReadAhead();
 		parent.removeEntry(entry);
 		parent.write();
 		chain.setLength(0);
+		fat.flush();
 	}
 
 	@Override
@@ -0,0 +1,224 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.driver.BlockDeviceDriver;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In memory copy of the FAT. Sectors of the FAT are loaded on first access
+ * into int arrays and kept until the file system is closed or
+ * {@link #clear()} is called. Changed entries are only written to the device
+ * on {@link #flush()}, then all changed sectors are written in sorted runs to
+ * every copy of the FAT. Thus mirroring costs one request per run and FAT
+ * copy, independent of the number of changed entries.
+ *
+ * @see com.github.mjdev.libaums.fs.fat32.FAT
+ */
+@Slf4j
+/* package */class FatSectorCache {
+
+	/**
+	 * Number of sectors loaded with one read. Chains are mostly located
+	 * consecutively in the FAT, so neighbouring sectors are needed soon.
+	 */
+	private static final int LOAD_SECTORS = 16;
+	/**
+	 * Maximum number of sectors written with one request.
+	 */
+	private static final int MAX_WRITE_SECTORS = 128;
+
+	private BlockDeviceDriver blockDevice;
+	private long[] fatOffsets;
+	private int bytesPerSector;
+	private int entriesPerSector;
+	private int[][] sectors;
+	private BitSet dirtySectors = new BitSet();
+	private ByteBuffer buffer;
+
+	/**
+	 * Constructs a new cache.
+	 *
+	 * @param blockDevice
+	 *            The block device where the FAT is located.
+	 * @param fatOffsets
+	 *            The offsets of all FAT copies which shall be written. The
+	 *            first one is used for reading.
+	 * @param bytesPerSector
+	 *            The sector size of the file system.
+	 * @param sectorsPerFat
+	 *            The size of one FAT in sectors.
+	 */
+	/* package */FatSectorCache(BlockDeviceDriver blockDevice, long[] fatOffsets,
+			int bytesPerSector, long sectorsPerFat) {
+		this.blockDevice = blockDevice;
+		this.fatOffsets = fatOffsets;
+		this.bytesPerSector = bytesPerSector;
+		this.entriesPerSector = bytesPerSector / 4;
+		this.sectors = new int[(int) sectorsPerFat][];
+	}
+
+	/**
+	 * Returns the FAT entry of the given cluster, loading its sector if
+	 * needed.
+	 *
+	 * @param cluster
+	 *            The cluster.
+	 * @return The entry.
+	 * @throws LibAumsException
+	 *             If reading from the device fails.
+	 */
+	/* package */int getEntry(long cluster) throws LibAumsException {
+		return getSector((int) (cluster / entriesPerSector))[(int) (cluster % entriesPerSector)];
+	}
+
+	/**
+	 * Sets the FAT entry of the given cluster. The change is written with the
+	 * next {@link #flush()}.
+	 *
+	 * @param cluster
+	 *            The cluster.
+	 * @param value
+	 *            The new entry.
+	 * @throws LibAumsException
+	 *             If the sector has to be loaded and reading fails.
+	 */
+	/* package */void setEntry(long cluster, int value) throws LibAumsException {
+		int sector = (int) (cluster / entriesPerSector);
+		getSector(sector)[(int) (cluster % entriesPerSector)] = value;
+		dirtySectors.set(sector);
+	}
+
+	/**
+	 * Writes all changed sectors to every FAT copy. Consecutive changed
+	 * sectors are written with one request.
+	 *
+	 * @throws LibAumsException
+	 *             If writing fails.
+	 */
+	/* package */void flush() throws LibAumsException {
+		if (dirtySectors.isEmpty()) {
+			return;
+		}
+
+		log.debug("flushing " + dirtySectors.cardinality() + " FAT sectors");
+		for (int start = dirtySectors.nextSetBit(0); start >= 0; start = dirtySectors
+				.nextSetBit(start)) {
+			int end = dirtySectors.nextClearBit(start);
+
+			while (start < end) {
+				int count = Math.min(end - start, MAX_WRITE_SECTORS);
+				ByteBuffer buffer = getBuffer(count);
+				IntBuffer entries = buffer.asIntBuffer();
+				for (int i = 0; i < count; i++) {
+					entries.put(sectors[start + i]);
+				}
+
+				for (long fatOffset : fatOffsets) {
+					buffer.rewind();
+					blockDevice.write(fatOffset + (long) start * bytesPerSector, buffer);
+				}
+
+				start += count;
+			}
+		}
+
+		dirtySectors.clear();
+	}
+
+	/**
+	 * Drops all loaded sectors, they are read again on the next access. Must
+	 * only be called after {@link #flush()}, changes are lost otherwise.
+	 */
+	/* package */void clear() {
+		if (!dirtySectors.isEmpty()) {
+			throw new IllegalStateException("FAT sectors are not flushed");
+		}
+		Arrays.fill(sectors, null);
+	}
+
+	/**
+	 * Drops all loaded sectors including changes which are not written. Used
+	 * after a failed write, the sectors are then read again from the device
+	 * on the next access.
+	 */
+	/* package */void discard() {
+		dirtySectors.clear();
+		Arrays.fill(sectors, null);
+	}
+
+	/**
+	 *
+	 * @return The number of sectors which have been changed since the last
+	 *         {@link #flush()}.
+	 */
+	/* package */int getDirtySectorCount() {
+		return dirtySectors.cardinality();
+	}
+
+	private int[] getSector(int sector) throws LibAumsException {
+		int[] entries = sectors[sector];
+		if (entries == null) {
+			load(sector);
+			entries = sectors[sector];
+		}
+		return entries;
+	}
+
+	/**
+	 * Loads the sector and its neighbours, which are not loaded yet, from the
+	 * first FAT.
+	 */
+	private void load(int sector) throws LibAumsException {
+		int first = sector - sector % LOAD_SECTORS;
+		int count = Math.min(LOAD_SECTORS, sectors.length - first);
+
+		ByteBuffer buffer = getBuffer(count);
+		blockDevice.read(fatOffsets[0] + (long) first * bytesPerSector, buffer);
+
+		for (int i = 0; i < count; i++) {
+			// already loaded sectors may contain changes which are not
+			// written yet
+			if (sectors[first + i] == null) {
+				int[] entries = new int[entriesPerSector];
+				buffer.clear();
+				buffer.position(i * bytesPerSector);
+				buffer.asIntBuffer().get(entries);
+				sectors[first + i] = entries;
+			}
+		}
+	}
+
+	private ByteBuffer getBuffer(int sectorCount) {
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(Math.max(LOAD_SECTORS, MAX_WRITE_SECTORS) * bytesPerSector);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		buffer.clear();
+		buffer.limit(sectorCount * bytesPerSector);
+		return buffer;
+	}
+}
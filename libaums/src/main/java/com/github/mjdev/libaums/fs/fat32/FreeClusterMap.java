@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.util.BitSet;
+
+/**
+ * Bitmap of the free clusters of a FAT32 file system. A set bit means the
+ * cluster is free. The map is filled by {@link FAT} with one pass over the
+ * whole FAT and then kept up to date on every allocation and free, so free
+ * clusters (and runs of them) can be found without reading the FAT.
+ *
+ * @see com.github.mjdev.libaums.fs.fat32.FAT#buildFreeClusterMap(boolean)
+ */
+/* package */class FreeClusterMap {
+
+	/**
+	 * First valid cluster number, cluster 0 and 1 are reserved.
+	 */
+	/* package */static final int FIRST_CLUSTER = 2;
+
+	private BitSet free;
+	private int endCluster;
+	private int freeCount;
+
+	/**
+	 * Constructs a new map where all clusters are in use.
+	 *
+	 * @param clusterCount
+	 *            The number of clusters of the file system.
+	 */
+	/* package */FreeClusterMap(long clusterCount) {
+		this.endCluster = (int) (FIRST_CLUSTER + clusterCount);
+		this.free = new BitSet(endCluster);
+	}
+
+	/**
+	 * Marks the cluster as free or used, depending on its FAT entry.
+	 *
+	 * @param cluster
+	 *            The cluster.
+	 * @param isFree
+	 *            True if the cluster is free.
+	 */
+	/* package */void set(long cluster, boolean isFree) {
+		if (cluster < FIRST_CLUSTER || cluster >= endCluster) {
+			return;
+		}
+
+		int index = (int) cluster;
+		if (free.get(index) != isFree) {
+			free.set(index, isFree);
+			freeCount += isFree ? 1 : -1;
+		}
+	}
+
+	/**
+	 *
+	 * @param cluster
+	 *            The cluster.
+	 * @return True if the cluster is free.
+	 */
+	/* package */boolean isFree(long cluster) {
+		return cluster >= FIRST_CLUSTER && cluster < endCluster && free.get((int) cluster);
+	}
+
+	/**
+	 *
+	 * @return The number of free clusters.
+	 */
+	/* package */int getFreeClusterCount() {
+		return freeCount;
+	}
+
+	/**
+	 * Searches for the first run of at least the given number of free
+	 * clusters, beginning at the given cluster and wrapping around at the end
+	 * of the file system.
+	 *
+	 * @param numberOfClusters
+	 *            The length of the wanted run.
+	 * @param fromCluster
+	 *            The cluster where the search starts.
+	 * @return The first cluster of the run or -1 if there is no such run.
+	 */
+	/* package */long findFreeRun(int numberOfClusters, long fromCluster) {
+		int from = (int) Math.max(FIRST_CLUSTER, Math.min(fromCluster, endCluster));
+		long result = findFreeRun(numberOfClusters, from, endCluster);
+		if (result == -1) {
+			// a run which crosses from may start before it
+			result = findFreeRun(numberOfClusters, FIRST_CLUSTER,
+					Math.min(from + numberOfClusters - 1, endCluster));
+		}
+		return result;
+	}
+
+	private long findFreeRun(int numberOfClusters, int from, int to) {
+		int start = free.nextSetBit(from);
+		while (start >= 0 && start + numberOfClusters <= to) {
+			int end = Math.min(free.nextClearBit(start), to);
+			if (end - start >= numberOfClusters) {
+				return start;
+			}
+			start = free.nextSetBit(end);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the next free cluster beginning at the given cluster, wrapping
+	 * around at the end of the file system.
+	 *
+	 * @param fromCluster
+	 *            The cluster where the search starts.
+	 * @return The free cluster or -1 if there is no free cluster at all.
+	 */
+	/* package */long nextFree(long fromCluster) {
+		int from = (int) Math.max(FIRST_CLUSTER, Math.min(fromCluster, endCluster));
+		int cluster = free.nextSetBit(from);
+		if (cluster < 0 || cluster >= endCluster) {
+			cluster = free.nextSetBit(FIRST_CLUSTER);
+		}
+		return cluster < 0 || cluster >= endCluster ? -1 : cluster;
+	}
+}
@@ -54,6 +54,7 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 	private int offset;
 	private BlockDeviceDriver blockDevice;
 	private ByteBuffer buffer;
+	private boolean dirty;
 
 	/**
 	 * Constructs a new info structure.
@@ -108,6 +109,7 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 	 */
 	/* package */void setFreeClusterCount(long value) {
 		buffer.putInt(FREE_COUNT_OFF, (int) value);
+		dirty = true;
 	}
 
 	/**
@@ -130,6 +132,7 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 	 */
 	/* package */void setLastAllocatedClusterHint(long value) {
 		buffer.putInt(NEXT_FREE_OFFSET, (int) value);
+		dirty = true;
 	}
 
 	/**
@@ -171,5 +174,20 @@ import com.github.mjdev.libaums.driver.BlockDeviceDriver;
 		log.debug( "writing to device");
 		blockDevice.write(offset, buffer);
 		buffer.clear();
+		dirty = false;
+	}
+
+	/**
+	 * Writes the info structure to the device, but only if it has been changed
+	 * since the last write.
+	 * 
+	 * @throws IOException
+	 *             If writing to device fails.
+	 * @see #write()
+	 */
+	/* package */void flush() throws LibAumsException {
+		if (dirty) {
+			write();
+		}
 	}
 }
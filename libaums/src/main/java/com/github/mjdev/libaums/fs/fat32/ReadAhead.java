@@ -0,0 +1,272 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Read ahead for a {@link FatFile}. As long as a file is read sequentially,
+ * the data is read from the {@link ClusterChain} in windows, and while the
+ * caller consumes one window the next one is read in the background. The
+ * window starts small and doubles with every window read ahead, up to the
+ * optimal transfer length of the device. Thus readers with small buffers
+ * cause few big requests instead of many small ones.
+ * <p>
+ * Random access and reads which are at least as big as the biggest window go
+ * to the chain directly.
+ * <p>
+ * The clusters of a window are resolved on the calling thread, the
+ * background thread only reads them from a copy of the chain (see
+ * {@link ClusterChain#snapshot(long, long)}). Data read ahead is stale after
+ * the file is changed, so {@link #invalidate()} has to be called before.
+ *
+ * @see com.atech.library.usb.libaums.UsbMassStorageLibrary#READ_AHEAD
+ */
+@Slf4j
+/* package */class ReadAhead {
+
+	/**
+	 * Size of the first window after the file is opened or after random
+	 * access.
+	 */
+	private static final int MIN_WINDOW = 16 * 1024;
+
+	/**
+	 * One thread is enough for all files, the requests to the device are
+	 * serialized anyway.
+	 */
+	private static final ExecutorService executor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "libaums-read-ahead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private ClusterChain chain;
+	private int maxWindow;
+	private int window = MIN_WINDOW;
+	/**
+	 * Offset where the next read starts, if the file is read sequentially.
+	 */
+	private long expectedOffset;
+
+	/**
+	 * The current window, from position 0 to the limit, and its offset in
+	 * the file or -1 if there is none.
+	 */
+	private ByteBuffer data;
+	private long dataOffset = -1;
+	/**
+	 * The buffer of the window which is read in the background.
+	 */
+	private ByteBuffer spare;
+	private Future<Void> pending;
+	private long pendingOffset;
+
+	/**
+	 * Constructs a new read ahead.
+	 *
+	 * @param chain
+	 *            The chain of the file.
+	 * @param maxWindow
+	 *            The biggest window in bytes, normally the optimal transfer
+	 *            length of the device.
+	 */
+	/* package */ReadAhead(ClusterChain chain, int maxWindow) {
+		this.chain = chain;
+		this.maxWindow = Math.max(maxWindow, MIN_WINDOW);
+	}
+
+	/**
+	 * Reads from the file at the given offset into the buffer.
+	 *
+	 * @param offset
+	 *            The offset in bytes where reading shall start.
+	 * @param dest
+	 *            The destination buffer.
+	 * @param fileLength
+	 *            The length of the file, nothing is read ahead beyond it.
+	 * @throws LibAumsException
+	 *             If reading fails.
+	 */
+	/* package */void read(long offset, ByteBuffer dest, long fileLength) throws LibAumsException {
+		int length = dest.remaining();
+		boolean sequential = offset == expectedOffset;
+		expectedOffset = offset + length;
+
+		if (!sequential || length >= maxWindow || offset + length > fileLength) {
+			if (!sequential) {
+				window = MIN_WINDOW;
+			}
+			invalidate();
+			chain.read(offset, dest);
+			return;
+		}
+
+		while (dest.hasRemaining()) {
+			if (!contains(offset)) {
+				if (!(pending != null && pendingOffset == offset && awaitPending())) {
+					fetch(offset, Math.max(window, dest.remaining()), fileLength);
+				}
+			}
+
+			int start = (int) (offset - dataOffset);
+			int size = Math.min(dest.remaining(), data.limit() - start);
+			ByteBuffer part = data.duplicate();
+			part.limit(start + size);
+			part.position(start);
+			dest.put(part);
+			offset += size;
+		}
+
+		prefetch(fileLength);
+	}
+
+	/**
+	 * Waits for the window which is read in the background and drops all
+	 * data read ahead. Has to be called before the file is changed or its
+	 * chain is accessed otherwise.
+	 */
+	/* package */void invalidate() {
+		if (pending != null) {
+			try {
+				pending.get();
+			} catch (ExecutionException e) {
+				// the data is not needed anymore
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			pending = null;
+		}
+		dataOffset = -1;
+	}
+
+	/**
+	 * Invalidates and releases the buffers, they are allocated again on the
+	 * next sequential read.
+	 */
+	/* package */void close() {
+		invalidate();
+		data = null;
+		spare = null;
+		expectedOffset = 0;
+		window = MIN_WINDOW;
+	}
+
+	private boolean contains(long offset) {
+		return dataOffset >= 0 && offset >= dataOffset && offset < dataOffset + data.limit();
+	}
+
+	/**
+	 * Makes the window read in the background the current one.
+	 *
+	 * @return False if reading it failed, it has to be read again then.
+	 */
+	private boolean awaitPending() {
+		try {
+			pending.get();
+		} catch (ExecutionException e) {
+			log.debug("read ahead failed: " + e.getCause());
+			pending = null;
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			invalidate();
+			return false;
+		}
+
+		pending = null;
+		ByteBuffer tmp = data;
+		data = spare;
+		spare = tmp;
+		dataOffset = pendingOffset;
+		return true;
+	}
+
+	/**
+	 * Reads a window synchronously and makes it the current one.
+	 */
+	private void fetch(long offset, int size, long fileLength) throws LibAumsException {
+		invalidate();
+		if (data == null) {
+			data = ByteBuffer.allocate(maxWindow);
+		}
+
+		data.clear();
+		data.limit((int) Math.min(Math.min(size, maxWindow), fileLength - offset));
+		chain.read(offset, data);
+		data.flip();
+		dataOffset = offset;
+	}
+
+	/**
+	 * Starts reading the window after the current one in the background, if
+	 * there is none being read yet.
+	 */
+	private void prefetch(long fileLength) {
+		if (pending != null || dataOffset < 0) {
+			return;
+		}
+
+		final long offset = dataOffset + data.limit();
+		if (offset >= fileLength) {
+			return;
+		}
+
+		window = Math.min(window * 2, maxWindow);
+		if (spare == null) {
+			spare = ByteBuffer.allocate(maxWindow);
+		}
+
+		final ByteBuffer buffer = spare;
+		buffer.clear();
+		buffer.limit((int) Math.min(window, fileLength - offset));
+
+		// the FAT is only read on this thread
+		final ClusterChain clusters;
+		try {
+			clusters = chain.snapshot(offset, buffer.limit());
+		} catch (LibAumsException e) {
+			log.debug("read ahead failed: " + e);
+			return;
+		}
+
+		pendingOffset = offset;
+		pending = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws LibAumsException {
+				clusters.read(offset, buffer);
+				buffer.flip();
+				return null;
+			}
+		});
+	}
+}
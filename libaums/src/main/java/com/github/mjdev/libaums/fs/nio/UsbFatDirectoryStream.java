@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.nio;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Directory stream over the entries of a directory. The directory is read
+ * once when the stream is created and every path carries the
+ * {@link UsbFile} of its entry, so walking a tree does not search the
+ * directories again for each entry.
+ */
+public class UsbFatDirectoryStream implements DirectoryStream<Path> {
+
+    private final UsbFatPath directory;
+    private final UsbFile[] entries;
+    private final Filter<? super Path> filter;
+    private final long generation;
+    private boolean open = true;
+    private boolean iterated;
+
+    /* package */ UsbFatDirectoryStream(UsbFatPath directory, UsbFile[] entries,
+            Filter<? super Path> filter) {
+        this.directory = directory;
+        this.entries = entries;
+        this.filter = filter;
+        this.generation = directory.getFileSystem().getGeneration();
+    }
+
+    @Override
+    public synchronized Iterator<Path> iterator() {
+        if (!open) {
+            throw new IllegalStateException("directory stream is closed");
+        }
+        if (iterated) {
+            throw new IllegalStateException("iterator already obtained");
+        }
+        iterated = true;
+
+        return new Iterator<Path>() {
+            private int index;
+            private Path next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && open && index < entries.length) {
+                    Path path = directory.resolveListed(entries[index++], generation);
+                    try {
+                        if (filter == null || filter.accept(path)) {
+                            next = path;
+                        }
+                    } catch (IOException e) {
+                        throw new DirectoryIteratorException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Path next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Path result = next;
+                next = null;
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+}
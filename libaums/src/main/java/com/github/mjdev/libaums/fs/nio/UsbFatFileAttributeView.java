@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.nio;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The "basic" attribute view of a {@link UsbFatPath}. Setting times is not
+ * supported, libaums maintains them itself.
+ */
+public class UsbFatFileAttributeView implements BasicFileAttributeView {
+
+    /* package */ static final String NAME = "basic";
+
+    private final UsbFatPath path;
+
+    /* package */ UsbFatFileAttributeView(UsbFatPath path) {
+        this.path = path;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public UsbFatFileAttributes readAttributes() throws IOException {
+        return new UsbFatFileAttributes(path.getFileSystem().lookup(path), path);
+    }
+
+    @Override
+    public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+            throws IOException {
+        if (lastModifiedTime == null && lastAccessTime == null && createTime == null) {
+            return;
+        }
+        throw new UnsupportedOperationException("setting times is not supported");
+    }
+}
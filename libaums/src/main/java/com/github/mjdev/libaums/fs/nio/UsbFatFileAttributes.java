@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.nio;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Snapshot of the basic attributes of a {@link UsbFile}, taken from its
+ * directory entry when the attributes are read. The root directory has no
+ * entry, its times are the epoch.
+ */
+public class UsbFatFileAttributes implements BasicFileAttributes {
+
+    private static final FileTime EPOCH = FileTime.fromMillis(0);
+
+    private final boolean directory;
+    private final long size;
+    private final FileTime creationTime;
+    private final FileTime lastModifiedTime;
+    private final FileTime lastAccessTime;
+    private final String key;
+
+    /* package */ UsbFatFileAttributes(UsbFile file, UsbFatPath path) {
+        this.directory = file.isDirectory();
+        this.size = directory ? 0 : file.getLength();
+        this.key = path.getFileKey();
+
+        if (file.isRoot()) {
+            creationTime = EPOCH;
+            lastModifiedTime = EPOCH;
+            lastAccessTime = EPOCH;
+        } else {
+            creationTime = FileTime.fromMillis(file.createdAt());
+            lastModifiedTime = FileTime.fromMillis(file.lastModified());
+            lastAccessTime = FileTime.fromMillis(file.lastAccessed());
+        }
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return lastAccessTime;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * FAT32 has no inode numbers, the normalized absolute path in lower case
+     * identifies the file.
+     */
+    @Override
+    public Object fileKey() {
+        return key;
+    }
+}
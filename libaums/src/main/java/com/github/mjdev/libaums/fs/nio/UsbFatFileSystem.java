@@ -0,0 +1,300 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.nio;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.fs.FileSystem;
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.IOException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * {@link java.nio.file.FileSystem} view of a libaums {@link FileSystem}. It
+ * has one root, "/", one file store and supports the "basic" attribute view.
+ *
+ * @see UsbFatFileSystemProvider
+ */
+public class UsbFatFileSystem extends java.nio.file.FileSystem {
+
+    private static final String GLOB_SYNTAX = "glob";
+    private static final String REGEX_SYNTAX = "regex";
+
+    private final UsbFatFileSystemProvider provider;
+    private final String name;
+    private final FileSystem fileSystem;
+    private final UsbFatFileStore fileStore;
+    private volatile boolean open = true;
+    /**
+     * Incremented on every change of directories through the provider, it
+     * invalidates the files held by listed paths.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /* package */ UsbFatFileSystem(UsbFatFileSystemProvider provider, String name, FileSystem fileSystem) {
+        this.provider = provider;
+        this.name = name;
+        this.fileSystem = fileSystem;
+        this.fileStore = new UsbFatFileStore(fileSystem);
+    }
+
+    /**
+     * @return The name under which the file system is registered, the
+     *         authority of its URIs.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The libaums file system behind this file system.
+     */
+    public FileSystem getUsbFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public UsbFatFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Writes pending changes of the libaums file system and removes this file
+     * system from the provider. The libaums file system itself stays usable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+
+        open = false;
+        provider.removeFileSystem(name);
+        try {
+            fileSystem.flush();
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return UsbFile.separator;
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path> singleton(new UsbFatPath(this, UsbFile.separator));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.<FileStore> singleton(fileStore);
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton(UsbFatFileAttributeView.NAME);
+    }
+
+    @Override
+    public UsbFatPath getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for (String name : more) {
+            if (!name.isEmpty()) {
+                path.append(UsbFile.separator).append(name);
+            }
+        }
+        return new UsbFatPath(this, path.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int index = syntaxAndPattern.indexOf(':');
+        if (index <= 0) {
+            throw new IllegalArgumentException("syntax:pattern expected: " + syntaxAndPattern);
+        }
+
+        String syntax = syntaxAndPattern.substring(0, index);
+        String pattern = syntaxAndPattern.substring(index + 1);
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase(GLOB_SYNTAX)) {
+            regex = Pattern.compile(globToRegex(pattern));
+        } else if (syntax.equalsIgnoreCase(REGEX_SYNTAX)) {
+            regex = Pattern.compile(pattern);
+        } else {
+            throw new UnsupportedOperationException("unsupported syntax: " + syntax);
+        }
+
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return regex.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("FAT32 has no owners");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("watching is not supported");
+    }
+
+    /* package */ UsbFatFileStore getFileStore() {
+        return fileStore;
+    }
+
+    /**
+     * Returns the file or directory of the path. Paths listed from a
+     * directory carry it already, as long as nothing was changed since,
+     * otherwise it is searched starting at the root directory.
+     *
+     * @param path The path.
+     * @return The file or directory.
+     * @throws NoSuchFileException If the path does not exist.
+     * @throws IOException If reading the directories fails.
+     */
+    /* package */ UsbFile lookup(UsbFatPath path) throws IOException {
+        ensureOpen();
+        UsbFile file = path.getListedFile(generation.get());
+        if (file != null) {
+            return file;
+        }
+
+        UsbFile root = fileSystem.getRootDirectory();
+        String searchPath = path.toAbsolutePath().normalize().getSearchPath();
+        if (searchPath.isEmpty()) {
+            return root;
+        }
+
+        try {
+            file = root.search(searchPath);
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        }
+        if (file == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return file;
+    }
+
+    /* package */ long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Has to be called when directories were changed, files held by paths
+     * listed before are looked up again afterwards.
+     */
+    /* package */ void invalidateListedFiles() {
+        generation.incrementAndGet();
+    }
+
+    /* package */ void ensureOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    /**
+     * Converts a glob to a regular expression. Supports *, **, ?, character
+     * classes and groups, which is what {@link java.nio.file.FileSystem#getPathMatcher(String)}
+     * requires.
+     */
+    /* package */ static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        boolean inClass = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+            case '\\':
+                if (++i < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                }
+                break;
+            case '*':
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+                break;
+            case '?':
+                regex.append(inClass ? "?" : "[^/]");
+                break;
+            case '[':
+                inClass = true;
+                regex.append('[');
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                    regex.append('^');
+                    i++;
+                }
+                break;
+            case ']':
+                inClass = false;
+                regex.append(']');
+                break;
+            case '{':
+                inGroup = true;
+                regex.append("(?:");
+                break;
+            case '}':
+                inGroup = false;
+                regex.append(')');
+                break;
+            case ',':
+                regex.append(inGroup ? "|" : ",");
+                break;
+            default:
+                if (inClass || Character.isLetterOrDigit(c) || c == '/') {
+                    regex.append(c);
+                } else {
+                    regex.append('\\').append(c);
+                }
+            }
+        }
+        return regex.toString();
+    }
+}
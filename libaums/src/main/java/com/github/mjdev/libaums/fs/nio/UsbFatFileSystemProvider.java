@@ -0,0 +1,565 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.nio;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.fs.FileSystem;
+import com.github.mjdev.libaums.fs.UsbFile;
+import com.github.mjdev.libaums.fs.UsbFileChannel;
+import com.github.mjdev.libaums.fs.UsbFileInputStream;
+import com.github.mjdev.libaums.fs.UsbFileOutputStream;
+import com.github.mjdev.libaums.partition.Partition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provider of the "usbfat" scheme, which exposes the file system of a
+ * {@link Partition} as a {@link java.nio.file.FileSystem}. A file system is
+ * created under a name, which is the authority of its URIs:
+ *
+ * <pre>
+ * java.nio.file.FileSystem fs = UsbFatFileSystemProvider.newFileSystem("stick", partition.getFileSystem());
+ * Files.copy(fs.getPath("/DATA/log.txt"), Paths.get("log.txt"));
+ * // same file: Paths.get(URI.create("usbfat://stick/DATA/log.txt"))
+ * </pre>
+ *
+ * Byte channels are {@link UsbFileChannel}s and streams are
+ * {@link UsbFileInputStream}s and {@link UsbFileOutputStream}s, so data is
+ * transferred in whole clusters. Directory streams read a directory once and
+ * hand out paths which carry their {@link UsbFile}, so
+ * {@link java.nio.file.Files#walkFileTree(Path, java.nio.file.FileVisitor)}
+ * reads the attributes of the entries without searching the directories
+ * again. Only the "basic" attribute view is supported and there are no
+ * links, owners or permissions.
+ */
+public class UsbFatFileSystemProvider extends FileSystemProvider {
+
+    /**
+     * The URI scheme of the provider.
+     */
+    public static final String SCHEME = "usbfat";
+    /**
+     * Key of the environment passed to
+     * {@link #newFileSystem(URI, Map)}, the value is a libaums
+     * {@link FileSystem} or a {@link Partition}.
+     */
+    public static final String ENV_FILE_SYSTEM = "fileSystem";
+
+    private final Map<String, UsbFatFileSystem> fileSystems = new HashMap<>();
+
+    /**
+     * Creates a file system for the libaums file system under the given name,
+     * through the installed provider.
+     *
+     * @param name The name, the authority of the URIs of the file system.
+     * @param fileSystem The libaums file system, e.g. from
+     *            {@link Partition#getFileSystem()}.
+     * @return The new file system.
+     * @throws IOException If creating the file system fails.
+     * @throws FileSystemAlreadyExistsException If a file system with the name
+     *             exists already.
+     */
+    public static java.nio.file.FileSystem newFileSystem(String name, FileSystem fileSystem)
+            throws IOException {
+        Map<String, Object> env = Collections.<String, Object> singletonMap(ENV_FILE_SYSTEM, fileSystem);
+        return FileSystems.newFileSystem(URI.create(SCHEME + "://" + name + "/"), env,
+                UsbFatFileSystemProvider.class.getClassLoader());
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public java.nio.file.FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        String name = getName(uri);
+        Object value = env.get(ENV_FILE_SYSTEM);
+        FileSystem fileSystem;
+        if (value instanceof FileSystem) {
+            fileSystem = (FileSystem) value;
+        } else if (value instanceof Partition) {
+            fileSystem = ((Partition) value).getFileSystem();
+        } else {
+            throw new IllegalArgumentException(ENV_FILE_SYSTEM
+                    + " has to be a libaums file system or partition");
+        }
+
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(name)) {
+                throw new FileSystemAlreadyExistsException(name);
+            }
+            UsbFatFileSystem result = new UsbFatFileSystem(this, name, fileSystem);
+            fileSystems.put(name, result);
+            return result;
+        }
+    }
+
+    @Override
+    public UsbFatFileSystem getFileSystem(URI uri) {
+        String name = getName(uri);
+        synchronized (fileSystems) {
+            UsbFatFileSystem result = fileSystems.get(name);
+            if (result == null) {
+                throw new FileSystemNotFoundException(name);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String path = uri.getPath();
+        return getFileSystem(uri).getPath(path == null || path.isEmpty() ? UsbFile.separator : path);
+    }
+
+    /* package */ void removeFileSystem(String name) {
+        synchronized (fileSystems) {
+            fileSystems.remove(name);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+            FileAttribute<?>... attrs) throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options,
+            FileAttribute<?>... attrs) throws IOException {
+        checkAttributes(attrs);
+        return new UsbFileChannel(open(toUsbFatPath(path), options), options);
+    }
+
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND) {
+                throw new UnsupportedOperationException("'" + option + "' not allowed");
+            }
+        }
+
+        UsbFatPath usbPath = toUsbFatPath(path);
+        UsbFile file = usbPath.getFileSystem().lookup(usbPath);
+        if (file.isDirectory()) {
+            throw new IOException(path + " is a directory");
+        }
+        return new UsbFileInputStream(file);
+    }
+
+    @Override
+    public OutputStream newOutputStream(Path path, OpenOption... options) throws IOException {
+        Set<OpenOption> set = new HashSet<>(Arrays.asList(options));
+        if (set.contains(StandardOpenOption.APPEND)) {
+            // the output stream always starts at the beginning, append through a channel
+            return super.newOutputStream(path, options);
+        }
+        if (set.isEmpty()) {
+            set.add(StandardOpenOption.CREATE);
+            set.add(StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        set.add(StandardOpenOption.WRITE);
+
+        UsbFile file = open(toUsbFatPath(path), set);
+        if (set.contains(StandardOpenOption.TRUNCATE_EXISTING) && file.getLength() > 0) {
+            try {
+                file.setLength(0);
+            } catch (LibAumsException e) {
+                throw e.asIOException();
+            }
+        }
+        return new UsbFileOutputStream(file);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        UsbFatPath path = toUsbFatPath(dir);
+        UsbFile directory = path.getFileSystem().lookup(path);
+        if (!directory.isDirectory()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        try {
+            return new UsbFatDirectoryStream(path, directory.listFiles(), filter);
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        }
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        checkAttributes(attrs);
+        UsbFatPath path = toUsbFatPath(dir);
+        UsbFatPath parentPath = path.toAbsolutePath().normalize().getParent();
+        if (parentPath == null) {
+            throw new FileAlreadyExistsException(dir.toString());
+        }
+
+        UsbFile parent = lookupDirectory(parentPath);
+        String name = path.normalize().getFileName().toString();
+        try {
+            if (parent.search(name) != null) {
+                throw new FileAlreadyExistsException(dir.toString());
+            }
+            parent.createDirectory(name);
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        } finally {
+            path.getFileSystem().invalidateListedFiles();
+        }
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        UsbFatPath usbPath = toUsbFatPath(path);
+        UsbFile file = usbPath.getFileSystem().lookup(usbPath);
+        try {
+            if (file.isRoot()) {
+                throw new IOException("the root directory cannot be deleted");
+            }
+            if (file.isDirectory() && file.list().length > 0) {
+                throw new DirectoryNotEmptyException(path.toString());
+            }
+            file.delete();
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        } finally {
+            usbPath.getFileSystem().invalidateListedFiles();
+        }
+    }
+
+    /**
+     * Copies a file. The target is allocated in one piece before the data is
+     * transferred in chunks of the preferred size of the file.
+     */
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        UsbFatPath sourcePath = toUsbFatPath(source);
+        UsbFatPath targetPath = toUsbFatPath(target);
+        UsbFile sourceFile = sourcePath.getFileSystem().lookup(sourcePath);
+        if (isSameFile(source, target)) {
+            return;
+        }
+
+        prepareTarget(targetPath, options);
+        if (sourceFile.isDirectory()) {
+            createDirectory(targetPath);
+            return;
+        }
+
+        Set<OpenOption> set = new HashSet<>();
+        set.add(StandardOpenOption.WRITE);
+        set.add(StandardOpenOption.CREATE_NEW);
+        UsbFile targetFile = open(targetPath, set);
+
+        try (UsbFileChannel in = new UsbFileChannel(sourceFile);
+                UsbFileChannel out = new UsbFileChannel(targetFile, set)) {
+            long length = sourceFile.getLength();
+            try {
+                targetFile.preallocate(length);
+            } catch (LibAumsException e) {
+                throw e.asIOException();
+            }
+
+            long position = 0;
+            while (position < length) {
+                out.position(position);
+                long transferred = in.transferTo(position, length - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Moves or renames a file or directory within the file system. Only the
+     * directory entry is moved, the data stays where it is.
+     */
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        UsbFatPath sourcePath = toUsbFatPath(source);
+        UsbFatPath targetPath = toUsbFatPath(target);
+        UsbFatFileSystem fileSystem = sourcePath.getFileSystem();
+        UsbFile file = fileSystem.lookup(sourcePath);
+        if (file.isRoot()) {
+            throw new IOException("the root directory cannot be moved");
+        }
+
+        String name = targetPath.normalize().getFileName().toString();
+        if (isSameFile(source, target)) {
+            // a rename which only changes the case
+            if (!file.getName().equals(name)) {
+                try {
+                    file.setName(name);
+                } catch (LibAumsException e) {
+                    throw e.asIOException();
+                } finally {
+                    fileSystem.invalidateListedFiles();
+                }
+            }
+            return;
+        }
+
+        prepareTarget(targetPath, options);
+        UsbFile parent = lookupDirectory(targetPath.toAbsolutePath().normalize().getParent());
+        try {
+            if (!isSameFile(sourcePath.toAbsolutePath().normalize().getParent(),
+                    targetPath.toAbsolutePath().normalize().getParent())) {
+                file.moveTo(parent);
+            }
+            if (!file.getName().equals(name)) {
+                file.setName(name);
+            }
+        } catch (LibAumsException e) {
+            throw e.asIOException();
+        } finally {
+            fileSystem.invalidateListedFiles();
+        }
+    }
+
+    /**
+     * Paths are the same file if they only differ in case, because FAT32
+     * looks names up case insensitive.
+     */
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        if (!(path instanceof UsbFatPath) || !(path2 instanceof UsbFatPath)) {
+            return false;
+        }
+        UsbFatPath usbPath = (UsbFatPath) path;
+        UsbFatPath usbPath2 = (UsbFatPath) path2;
+        return usbPath.getFileSystem() == usbPath2.getFileSystem()
+                && usbPath.getFileKey().equals(usbPath2.getFileKey());
+    }
+
+    @Override
+    public boolean isHidden(Path path) throws IOException {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        UsbFatPath usbPath = toUsbFatPath(path);
+        usbPath.getFileSystem().lookup(usbPath);
+        return usbPath.getFileSystem().getFileStore();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        UsbFatPath usbPath = toUsbFatPath(path);
+        usbPath.getFileSystem().lookup(usbPath);
+        for (AccessMode mode : modes) {
+            if (mode == AccessMode.EXECUTE) {
+                throw new UnsupportedOperationException("FAT32 has no execute permission");
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type,
+            LinkOption... options) {
+        if (type != BasicFileAttributeView.class && type != UsbFatFileAttributeView.class) {
+            return null;
+        }
+        return (V) new UsbFatFileAttributeView(toUsbFatPath(path));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type,
+            LinkOption... options) throws IOException {
+        if (type != BasicFileAttributes.class && type != UsbFatFileAttributes.class) {
+            throw new UnsupportedOperationException("unsupported attributes: " + type.getName());
+        }
+        return (A) new UsbFatFileAttributeView(toUsbFatPath(path)).readAttributes();
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+            throws IOException {
+        String names = attributes;
+        int index = attributes.indexOf(':');
+        if (index >= 0) {
+            if (!attributes.substring(0, index).equals(UsbFatFileAttributeView.NAME)) {
+                throw new UnsupportedOperationException("unsupported view: " + attributes);
+            }
+            names = attributes.substring(index + 1);
+        }
+
+        BasicFileAttributes attrs = readAttributes(path, BasicFileAttributes.class);
+        Map<String, Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", attrs.lastModifiedTime());
+        all.put("lastAccessTime", attrs.lastAccessTime());
+        all.put("creationTime", attrs.creationTime());
+        all.put("size", attrs.size());
+        all.put("isRegularFile", attrs.isRegularFile());
+        all.put("isDirectory", attrs.isDirectory());
+        all.put("isSymbolicLink", attrs.isSymbolicLink());
+        all.put("isOther", attrs.isOther());
+        all.put("fileKey", attrs.fileKey());
+
+        List<String> requested = Arrays.asList(names.split(","));
+        if (requested.contains("*")) {
+            return all;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String name : requested) {
+            if (!all.containsKey(name)) {
+                throw new IllegalArgumentException("unknown attribute: " + name);
+            }
+            result.put(name, all.get(name));
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options)
+            throws IOException {
+        throw new UnsupportedOperationException("setting attributes is not supported");
+    }
+
+    /**
+     * Looks the file up, creating it if the options allow it.
+     */
+    private UsbFile open(UsbFatPath path, Set<? extends OpenOption> options) throws IOException {
+        UsbFatFileSystem fileSystem = path.getFileSystem();
+        boolean create = options.contains(StandardOpenOption.CREATE)
+                || options.contains(StandardOpenOption.CREATE_NEW);
+        boolean write = options.contains(StandardOpenOption.WRITE)
+                || options.contains(StandardOpenOption.APPEND);
+
+        UsbFile file;
+        try {
+            file = fileSystem.lookup(path);
+        } catch (NoSuchFileException e) {
+            if (!(create && write)) {
+                throw e;
+            }
+
+            UsbFatPath parentPath = path.toAbsolutePath().normalize().getParent();
+            if (parentPath == null) {
+                throw e;
+            }
+            try {
+                return lookupDirectory(parentPath).createFile(path.normalize().getFileName().toString());
+            } catch (LibAumsException e2) {
+                throw e2.asIOException();
+            } finally {
+                fileSystem.invalidateListedFiles();
+            }
+        }
+
+        if (write && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        if (file.isDirectory()) {
+            throw new IOException(path + " is a directory");
+        }
+        return file;
+    }
+
+    private UsbFile lookupDirectory(UsbFatPath path) throws IOException {
+        UsbFile directory = path.getFileSystem().lookup(path);
+        if (!directory.isDirectory()) {
+            throw new NotDirectoryException(path.toString());
+        }
+        return directory;
+    }
+
+    /**
+     * Deletes an existing target if {@link StandardCopyOption#REPLACE_EXISTING}
+     * is given, fails otherwise.
+     */
+    private void prepareTarget(UsbFatPath target, CopyOption... options) throws IOException {
+        try {
+            target.getFileSystem().lookup(target);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        delete(target);
+    }
+
+    private static void checkAttributes(FileAttribute<?>... attrs) {
+        if (attrs.length > 0) {
+            throw new UnsupportedOperationException("initial attributes are not supported: "
+                    + attrs[0].name());
+        }
+    }
+
+    private static UsbFatPath toUsbFatPath(Path path) {
+        if (!(path instanceof UsbFatPath)) {
+            throw new ProviderMismatchException();
+        }
+        return (UsbFatPath) path;
+    }
+
+    private static String getName(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not '" + SCHEME + "'");
+        }
+        if (uri.getAuthority() == null) {
+            throw new IllegalArgumentException("URI has no authority: " + uri);
+        }
+        return uri.getAuthority();
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * (C) Copyright 2024 Andy Rozman <andy.rozman@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.mjdev.libaums.fs.nio;
+
+import com.github.mjdev.libaums.fs.UsbFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Path of a {@link UsbFatFileSystem}. The separator is "/" and paths are
+ * compared case sensitive, but they are looked up case insensitive like
+ * {@link UsbFile#search(String)} does, so two paths which only differ in case
+ * are the same file. The working directory of relative paths is the root
+ * directory.
+ * <p>
+ * Paths returned by a directory stream keep the {@link UsbFile} they were
+ * listed from, so reading their attributes or opening them needs no lookup
+ * in the directories, until the file system is changed through the
+ * provider. This handle is not part of the identity of the path.
+ */
+public class UsbFatPath implements Path {
+
+    private static final String[] NO_NAMES = new String[0];
+
+    private final UsbFatFileSystem fileSystem;
+    private final boolean absolute;
+    private final String[] names;
+    /**
+     * The file this path was listed from, null if it has to be looked up.
+     */
+    private UsbFile file;
+    /**
+     * Generation of the file system when the file was listed, the file is
+     * only used as long as nothing was changed since.
+     */
+    private long generation;
+
+    /* package */ UsbFatPath(UsbFatFileSystem fileSystem, String path) {
+        this.fileSystem = fileSystem;
+        this.absolute = path.startsWith(UsbFile.separator);
+
+        List<String> list = new ArrayList<>();
+        for (String name : path.split(UsbFile.separator)) {
+            if (!name.isEmpty()) {
+                list.add(name);
+            }
+        }
+        this.names = list.toArray(NO_NAMES);
+    }
+
+    private UsbFatPath(UsbFatFileSystem fileSystem, boolean absolute, String[] names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    /**
+     * Creates the path of a child listed from a directory.
+     */
+    /* package */ UsbFatPath resolveListed(UsbFile child, long generation) {
+        String[] childNames = Arrays.copyOf(names, names.length + 1);
+        childNames[names.length] = child.getName();
+        UsbFatPath result = new UsbFatPath(fileSystem, absolute, childNames);
+        result.file = child;
+        result.generation = generation;
+        return result;
+    }
+
+    /**
+     * @param generation The current generation of the file system.
+     * @return The file this path was listed from, null if there is none or
+     *         the file system was changed since.
+     */
+    /* package */ UsbFile getListedFile(long generation) {
+        return this.generation == generation ? file : null;
+    }
+
+    /**
+     * @return The normalized absolute path in lower case, which identifies
+     *         the file because FAT32 looks names up case insensitive.
+     */
+    /* package */ String getFileKey() {
+        return toAbsolutePath().normalize().toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return The path without root and separator at the beginning, as
+     *         {@link UsbFile#search(String)} needs it.
+     */
+    /* package */ String getSearchPath() {
+        return String.join(UsbFile.separator, names);
+    }
+
+    @Override
+    public UsbFatFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? new UsbFatPath(fileSystem, true, NO_NAMES) : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        return names.length == 0 ? null : new UsbFatPath(fileSystem, false,
+                new String[] { names[names.length - 1] });
+    }
+
+    @Override
+    public UsbFatPath getParent() {
+        if (names.length == 0 || (names.length == 1 && !absolute)) {
+            return null;
+        }
+        return new UsbFatPath(fileSystem, absolute, Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        if (index < 0 || index >= names.length) {
+            throw new IllegalArgumentException("invalid index " + index);
+        }
+        return new UsbFatPath(fileSystem, false, new String[] { names[index] });
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("invalid range " + beginIndex + " - " + endIndex);
+        }
+        return new UsbFatPath(fileSystem, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof UsbFatPath)) {
+            return false;
+        }
+
+        UsbFatPath path = (UsbFatPath) other;
+        if (path.fileSystem != fileSystem || path.absolute != absolute
+                || path.names.length > names.length) {
+            return false;
+        }
+        for (int i = 0; i < path.names.length; i++) {
+            if (!names[i].equals(path.names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(fileSystem.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof UsbFatPath)) {
+            return false;
+        }
+
+        UsbFatPath path = (UsbFatPath) other;
+        if (path.absolute) {
+            return equals(path);
+        }
+        if (path.fileSystem != fileSystem || path.names.length > names.length) {
+            return false;
+        }
+        int offset = names.length - path.names.length;
+        for (int i = 0; i < path.names.length; i++) {
+            if (!names[offset + i].equals(path.names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(fileSystem.getPath(other));
+    }
+
+    @Override
+    public UsbFatPath normalize() {
+        List<String> list = new ArrayList<>();
+        for (String name : names) {
+            if (name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                if (!list.isEmpty() && !list.get(list.size() - 1).equals("..")) {
+                    list.remove(list.size() - 1);
+                    continue;
+                }
+                if (absolute) {
+                    // there is nothing above the root
+                    continue;
+                }
+            }
+            list.add(name);
+        }
+        return new UsbFatPath(fileSystem, absolute, list.toArray(NO_NAMES));
+    }
+
+    @Override
+    public UsbFatPath resolve(Path other) {
+        UsbFatPath path = checkPath(other);
+        if (path.absolute) {
+            return path;
+        }
+        if (path.names.length == 0) {
+            return this;
+        }
+
+        String[] result = Arrays.copyOf(names, names.length + path.names.length);
+        System.arraycopy(path.names, 0, result, names.length, path.names.length);
+        return new UsbFatPath(fileSystem, absolute, result);
+    }
+
+    @Override
+    public UsbFatPath resolve(String other) {
+        return resolve(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        Path parent = getParent();
+        return parent == null ? checkPath(other) : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(fileSystem.getPath(other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        UsbFatPath path = checkPath(other);
+        if (path.absolute != absolute) {
+            throw new IllegalArgumentException("only paths of the same type can be relativized");
+        }
+
+        int common = 0;
+        while (common < names.length && common < path.names.length
+                && names[common].equals(path.names[common])) {
+            common++;
+        }
+
+        List<String> list = new ArrayList<>();
+        for (int i = common; i < names.length; i++) {
+            list.add("..");
+        }
+        list.addAll(Arrays.asList(path.names).subList(common, path.names.length));
+        return new UsbFatPath(fileSystem, false, list.toArray(NO_NAMES));
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(UsbFatFileSystemProvider.SCHEME, fileSystem.getName(),
+                    toAbsolutePath().toString(), null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public UsbFatPath toAbsolutePath() {
+        return absolute ? this : new UsbFatPath(fileSystem, true, names);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        UsbFatPath result = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(result);
+        return result;
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException("not a file of the default file system");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events,
+            WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("watching is not supported");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException("watching is not supported");
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> list = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            list.add(getName(i));
+        }
+        return list.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(checkPath(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof UsbFatPath)) {
+            return false;
+        }
+
+        UsbFatPath path = (UsbFatPath) other;
+        return path.fileSystem == fileSystem && path.absolute == absolute
+                && Arrays.equals(path.names, names);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(names) * 31 + (absolute ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return (absolute ? UsbFile.separator : "") + getSearchPath();
+    }
+
+    private UsbFatPath checkPath(Path other) {
+        if (!(other instanceof UsbFatPath) || ((UsbFatPath) other).fileSystem != fileSystem) {
+            throw new ProviderMismatchException();
+        }
+        return (UsbFatPath) other;
+    }
+}
@@ -149,7 +149,9 @@ public class Partition implements BlockDeviceDriver {
 			tmp.clear();
 			tmp.position((int) (offset % blockSize));
 			int remaining = Math.min(tmp.remaining(), src.remaining());
-			tmp.put(src.array(), src.position(), remaining);
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + remaining);
+			tmp.put(part);
 			src.position(src.position() + remaining);
 			tmp.clear();
 			blockDevice.write(devOffset, tmp);
@@ -161,8 +163,33 @@ public class Partition implements BlockDeviceDriver {
 			blockDevice.write(devOffset, src);
 	}
 
+	@Override
+	public void flush() throws LibAumsException {
+		blockDevice.flush();
+	}
+
+	@Override
+	public void flush(long offset, long length) throws LibAumsException {
+		blockDevice.flush(offset / blockSize + logicalBlockAddress, length + offset % blockSize);
+	}
+
 	@Override
 	public int getBlockSize() {
 		return blockDevice.getBlockSize();
 	}
+
+	@Override
+	public int getMaxTransferLength() {
+		return blockDevice.getMaxTransferLength();
+	}
+
+	@Override
+	public int getOptimalTransferLength() {
+		return blockDevice.getOptimalTransferLength();
+	}
+
+	@Override
+	public int getTransferGranularity() {
+		return blockDevice.getTransferGranularity();
+	}
 }
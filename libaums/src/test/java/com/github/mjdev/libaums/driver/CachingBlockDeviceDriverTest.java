@@ -0,0 +1,204 @@
+package com.github.mjdev.libaums.driver;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachingBlockDeviceDriverTest {
+
+	private static final int BLOCK_SIZE = 512;
+	private static final int BLOCKS = 256;
+
+	@Test
+	public void repeatedReadsAreServedFromCache() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		CachingBlockDeviceDriver cache = new CachingBlockDeviceDriver(device, BLOCKS, 4 * 4096);
+
+		ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+		cache.read(9, buffer);
+		buffer.clear();
+		cache.read(9, buffer);
+
+		Assert.assertEquals(1, device.reads);
+		Assert.assertEquals(1, cache.getMissCount());
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(9 * BLOCK_SIZE % 256, buffer.get(0) & 0xff);
+	}
+
+	@Test
+	public void readSpanningPagesUsesOneRequest() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		CachingBlockDeviceDriver cache = new CachingBlockDeviceDriver(device, BLOCKS, 4 * 4096);
+
+		ByteBuffer buffer = ByteBuffer.allocate(3 * 4096);
+		cache.read(4, buffer);
+
+		Assert.assertEquals(1, device.reads);
+		Assert.assertEquals(4, cache.getMissCount());
+		Assert.assertEquals(0, buffer.remaining());
+		for (int i = 0; i < buffer.capacity(); i++) {
+			Assert.assertEquals((4 * BLOCK_SIZE + i) % 256, buffer.get(i) & 0xff);
+		}
+	}
+
+	@Test
+	public void writesUpdateCachedPages() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		CachingBlockDeviceDriver cache = new CachingBlockDeviceDriver(device, BLOCKS, 4 * 4096);
+
+		ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+		cache.read(1, buffer);
+
+		ByteBuffer data = ByteBuffer.allocate(BLOCK_SIZE);
+		data.put(0, (byte) 0x42);
+		cache.write(1, data);
+		Assert.assertEquals(0, data.remaining());
+		Assert.assertEquals(0x42, device.data[BLOCK_SIZE]);
+
+		buffer.clear();
+		cache.read(1, buffer);
+		Assert.assertEquals(0x42, buffer.get(0));
+		Assert.assertEquals(1, device.reads);
+	}
+
+	@Test
+	public void leastRecentlyUsedPageIsEvicted() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		CachingBlockDeviceDriver cache = new CachingBlockDeviceDriver(device, BLOCKS, 2 * 4096);
+
+		ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+		for (long block : new long[] { 0, 8, 0, 16, 0, 8 }) {
+			buffer.clear();
+			cache.read(block, buffer);
+		}
+
+		Assert.assertEquals(2, cache.getCachedPageCount());
+		Assert.assertEquals(2, cache.getHitCount());
+		Assert.assertEquals(4, cache.getMissCount());
+	}
+
+	@Test
+	public void writeBackMergesDirtyPagesOnFlush() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		CachingBlockDeviceDriver cache = new CachingBlockDeviceDriver(device, BLOCKS, 8 * 4096);
+		cache.setWriteBack(true);
+
+		for (long block : new long[] { 16, 0, 8 }) {
+			ByteBuffer data = ByteBuffer.allocate(4096);
+			data.put(0, (byte) 0x42);
+			cache.write(block, data);
+		}
+
+		Assert.assertEquals(0, device.writes);
+		Assert.assertEquals(0, device.reads);
+		Assert.assertEquals(3, cache.getDirtyPageCount());
+
+		cache.flush();
+		Assert.assertEquals(1, device.writes);
+		Assert.assertEquals(0, cache.getDirtyPageCount());
+		Assert.assertEquals(0x42, device.data[8 * BLOCK_SIZE]);
+		Assert.assertEquals(0, device.data[8 * BLOCK_SIZE + 1]);
+	}
+
+	@Test
+	public void partialFlushWritesOnlyTheRange() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		CachingBlockDeviceDriver cache = new CachingBlockDeviceDriver(device, BLOCKS, 8 * 4096);
+		cache.setWriteBack(true);
+
+		for (long block : new long[] { 0, 9 }) {
+			ByteBuffer data = ByteBuffer.allocate(BLOCK_SIZE);
+			data.put(0, (byte) 0x42);
+			cache.write(block, data);
+		}
+
+		cache.flush(9, BLOCK_SIZE);
+		Assert.assertEquals(1, device.writes);
+		Assert.assertEquals(1, cache.getDirtyPageCount());
+		Assert.assertEquals(0x42, device.data[9 * BLOCK_SIZE]);
+		Assert.assertEquals(0, device.data[0]);
+
+		cache.flush(9, BLOCK_SIZE);
+		Assert.assertEquals(1, device.writes);
+	}
+
+	@Test
+	public void bypassedReadSeesDirtyPages() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		CachingBlockDeviceDriver cache = new CachingBlockDeviceDriver(device, BLOCKS, 8 * 4096);
+		cache.setWriteBack(true);
+
+		ByteBuffer data = ByteBuffer.allocate(BLOCK_SIZE);
+		data.put(0, (byte) 0x42);
+		cache.write(3, data);
+
+		ByteBuffer buffer = ByteBuffer.allocate(CachingBlockDeviceDriver.MAX_CACHED_REQUEST + 2 * BLOCK_SIZE);
+		buffer.position(BLOCK_SIZE);
+		cache.read(0, buffer);
+
+		Assert.assertEquals(0, device.writes);
+		Assert.assertEquals(0x42, buffer.get(4 * BLOCK_SIZE));
+		Assert.assertEquals(2 * BLOCK_SIZE % 256, buffer.get(3 * BLOCK_SIZE) & 0xff);
+	}
+
+	/**
+	 * Block device in memory, every byte holds its offset modulo 256.
+	 */
+	private static class MemoryDevice implements BlockDeviceDriver {
+
+		byte[] data = new byte[BLOCKS * BLOCK_SIZE];
+		int reads;
+		int writes;
+
+		MemoryDevice() {
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) i;
+			}
+		}
+
+		@Override
+		public void init() {
+		}
+
+		@Override
+		public void read(long deviceOffset, ByteBuffer buffer) {
+			reads++;
+			buffer.put(data, (int) deviceOffset * BLOCK_SIZE, buffer.remaining());
+		}
+
+		@Override
+		public void write(long deviceOffset, ByteBuffer buffer) {
+			writes++;
+			buffer.get(data, (int) deviceOffset * BLOCK_SIZE, buffer.remaining());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void flush(long deviceOffset, long length) {
+		}
+
+		@Override
+		public int getBlockSize() {
+			return BLOCK_SIZE;
+		}
+
+		@Override
+		public int getMaxTransferLength() {
+			return 128 * 1024;
+		}
+
+		@Override
+		public int getOptimalTransferLength() {
+			return 128 * 1024;
+		}
+
+		@Override
+		public int getTransferGranularity() {
+			return BLOCK_SIZE;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.github.mjdev.libaums.driver.scsi.commands;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Scsi16CommandsTest {
+
+	private static final int CBW_SIZE = 31;
+	/**
+	 * Offset of the command block (CDB) in the command block wrapper.
+	 */
+	private static final int CDB = 15;
+
+	@Test
+	public void read16Layout() {
+		ScsiRead16 read = new ScsiRead16(0x0102030405060708L, 4 * 512, 512);
+		read.setdCbwTag(7);
+		ByteBuffer buffer = serialize(read);
+
+		assertWrapper(buffer, 7, 4 * 512, (byte) 0x80);
+		Assert.assertEquals((byte) 0x88, buffer.get(CDB));
+		Assert.assertEquals(0, buffer.get(CDB + 1));
+		for (int i = 0; i < 8; i++) {
+			Assert.assertEquals(i + 1, buffer.get(CDB + 2 + i));
+		}
+		Assert.assertEquals(4, buffer.order(ByteOrder.BIG_ENDIAN).getInt(CDB + 10));
+		Assert.assertEquals(0, buffer.get(CDB + 14));
+		Assert.assertEquals(0, buffer.get(CDB + 15));
+	}
+
+	@Test
+	public void write16Layout() {
+		ScsiWrite16 write = new ScsiWrite16(0x123456789AL, 0x20000 * 512, 512);
+		write.setdCbwTag(-1);
+		ByteBuffer buffer = serialize(write);
+
+		assertWrapper(buffer, -1, 0x20000 * 512, (byte) 0);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		Assert.assertEquals((byte) 0x8a, buffer.get(CDB));
+		Assert.assertEquals(0, buffer.get(CDB + 1));
+		Assert.assertEquals(0x123456789AL, buffer.getLong(CDB + 2));
+		Assert.assertEquals(0x20000, buffer.getInt(CDB + 10));
+		Assert.assertEquals(0, buffer.get(CDB + 14));
+		Assert.assertEquals(0, buffer.get(CDB + 15));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void read16NeedsWholeBlocks() {
+		new ScsiRead16(0, 1000, 512);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void write16NeedsPositiveAddress() {
+		new ScsiWrite16(-1, 512, 512);
+	}
+
+	@Test
+	public void readCapacity16Layout() {
+		ScsiReadCapacity16 readCapacity = new ScsiReadCapacity16();
+		readCapacity.setdCbwTag(3);
+		ByteBuffer buffer = serialize(readCapacity);
+
+		assertWrapper(buffer, 3, 0x20, (byte) 0x80);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		Assert.assertEquals((byte) 0x9e, buffer.get(CDB));
+		Assert.assertEquals(0x10, buffer.get(CDB + 1));
+		Assert.assertEquals(0, buffer.getLong(CDB + 2));
+		Assert.assertEquals(0x20, buffer.getInt(CDB + 10));
+	}
+
+	@Test
+	public void readCapacity16Response() {
+		ByteBuffer buffer = ByteBuffer.allocate(0x20);
+		buffer.put(new byte[] { 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0x10, 0 });
+		buffer.clear();
+		// the response is big endian, independent of the buffer order
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		ScsiReadCapacity16Response response = ScsiReadCapacity16Response.read(buffer);
+
+		Assert.assertEquals(0x100000000L, response.getLogicalBlockAddress());
+		Assert.assertEquals(4096, response.getBlockLength());
+	}
+
+	private static ByteBuffer serialize(CommandBlockWrapper command) {
+		ByteBuffer buffer = ByteBuffer.allocate(CBW_SIZE);
+		command.serialize(buffer);
+		Assert.assertEquals(CBW_SIZE, buffer.position());
+		return buffer;
+	}
+
+	private static void assertWrapper(ByteBuffer buffer, int tag, int transferLength, byte flags) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		Assert.assertEquals(0x43425355, buffer.getInt(0));
+		Assert.assertEquals(tag, buffer.getInt(4));
+		Assert.assertEquals(transferLength, buffer.getInt(8));
+		Assert.assertEquals(flags, buffer.get(12));
+		Assert.assertEquals(0, buffer.get(13));
+		Assert.assertEquals(16, buffer.get(14));
+	}
+}
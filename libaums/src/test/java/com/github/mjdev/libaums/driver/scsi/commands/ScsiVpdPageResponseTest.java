@@ -0,0 +1,98 @@
+package com.github.mjdev.libaums.driver.scsi.commands;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScsiVpdPageResponseTest {
+
+	@Test
+	public void supportedPages() {
+		ScsiVpdPageResponse response = read(0x00, 0x00, 0x00, 0x03, 0x00, 0x80, 0xb0);
+
+		Assert.assertEquals(ScsiVpdPageResponse.SUPPORTED_PAGES, response.getPageCode());
+		Assert.assertEquals(3, response.getPageLength());
+		Assert.assertTrue(response.isPageSupported(ScsiVpdPageResponse.BLOCK_LIMITS));
+		Assert.assertTrue(response.isPageSupported((byte) 0x80));
+		Assert.assertFalse(response.isPageSupported(ScsiVpdPageResponse.BLOCK_DEVICE_CHARACTERISTICS));
+	}
+
+	@Test
+	public void supportedPagesLongerThanBuffer() {
+		// the page announces 4 codes, but only 2 were transferred
+		ScsiVpdPageResponse response = read(0x00, 0x00, 0x00, 0x04, 0x00, 0xb0);
+
+		Assert.assertEquals(4, response.getPageLength());
+		Assert.assertTrue(response.isPageSupported(ScsiVpdPageResponse.BLOCK_LIMITS));
+		Assert.assertFalse(response.isPageSupported(ScsiVpdPageResponse.BLOCK_DEVICE_CHARACTERISTICS));
+	}
+
+	@Test
+	public void headerOnly() {
+		ScsiVpdPageResponse response = read(0x00, 0xb0, 0x00, 0x3c);
+
+		Assert.assertEquals(ScsiVpdPageResponse.BLOCK_LIMITS, response.getPageCode());
+		Assert.assertEquals(0x3c, response.getPageLength());
+		Assert.assertEquals(0, response.getOptimalTransferLengthGranularity());
+		Assert.assertEquals(0, response.getMaximumTransferLength());
+		Assert.assertEquals(0, response.getOptimalTransferLength());
+	}
+
+	@Test
+	public void blockLimits() {
+		ScsiVpdPageResponse response = read(0x00, 0xb0, 0x00, 0x3c, 0x00, 0x00, 0x00, 0x08,
+				0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x80);
+
+		Assert.assertEquals(8, response.getOptimalTransferLengthGranularity());
+		Assert.assertEquals(256, response.getMaximumTransferLength());
+		Assert.assertEquals(128, response.getOptimalTransferLength());
+	}
+
+	@Test
+	public void shortBlockLimits() {
+		// page of an older device, which ends after the maximum transfer length
+		ScsiVpdPageResponse response = read(0x00, 0xb0, 0x00, 0x08, 0x00, 0x00, 0x00, 0x08,
+				0xff, 0xff, 0xff, 0xff, 0x00, 0x00, 0x00, 0x80);
+
+		Assert.assertEquals(8, response.getOptimalTransferLengthGranularity());
+		Assert.assertEquals(0xffffffffL, response.getMaximumTransferLength());
+		// beyond the page length
+		Assert.assertEquals(0, response.getOptimalTransferLength());
+	}
+
+	@Test
+	public void blockDeviceCharacteristics() {
+		ScsiVpdPageResponse response = read(0x00, 0xb1, 0x00, 0x3c, 0x00, 0x01, 0x00, 0x23);
+
+		Assert.assertEquals(ScsiVpdPageResponse.NON_ROTATING_MEDIUM, response.getMediumRotationRate());
+		Assert.assertEquals(3, response.getNominalFormFactor());
+
+		response = read(0x00, 0xb1, 0x00, 0x02, 0x00, 0x01);
+		Assert.assertEquals(0, response.getMediumRotationRate());
+		Assert.assertEquals(0, response.getNominalFormFactor());
+	}
+
+	@Test
+	public void pageAtBufferPosition() {
+		ByteBuffer buffer = ByteBuffer.allocate(10);
+		buffer.put(new byte[] { 0x55, 0x55, 0x00, 0x00, 0x00, 0x02, 0x00, (byte) 0xb1 });
+		buffer.flip();
+		buffer.position(2);
+
+		ScsiVpdPageResponse response = ScsiVpdPageResponse.read(buffer);
+
+		Assert.assertEquals(ScsiVpdPageResponse.SUPPORTED_PAGES, response.getPageCode());
+		Assert.assertTrue(response.isPageSupported(ScsiVpdPageResponse.BLOCK_DEVICE_CHARACTERISTICS));
+		Assert.assertFalse(response.isPageSupported((byte) 0x55));
+	}
+
+	private static ScsiVpdPageResponse read(int... bytes) {
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+		for (int b : bytes) {
+			buffer.put((byte) b);
+		}
+		buffer.flip();
+		return ScsiVpdPageResponse.read(buffer);
+	}
+}
@@ -0,0 +1,72 @@
+package com.github.mjdev.libaums.fs.fat32;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClusterExtentListTest {
+
+	@Test
+	public void contiguousClustersShareOneExtent() {
+		ClusterExtentList list = new ClusterExtentList();
+		for (long cluster = 100; cluster < 1100; cluster++) {
+			list.add(cluster);
+		}
+
+		Assert.assertEquals(1000, list.size());
+		Assert.assertEquals(1, list.getExtentCount());
+		Assert.assertEquals(100, list.get(0));
+		Assert.assertEquals(599, list.get(499));
+		Assert.assertEquals(1099, list.getLastCluster());
+		Assert.assertEquals(500, list.getContiguousClusters(500));
+	}
+
+	@Test
+	public void fragmentedChain() {
+		ClusterExtentList list = new ClusterExtentList();
+		long[] clusters = { 5, 6, 7, 20, 3, 4, 50, 51, 52, 53, 9 };
+		for (long cluster : clusters) {
+			list.add(cluster);
+		}
+
+		Assert.assertEquals(clusters.length, list.size());
+		Assert.assertEquals(5, list.getExtentCount());
+		for (int i = 0; i < clusters.length; i++) {
+			Assert.assertEquals(clusters[i], list.get(i));
+		}
+		Assert.assertEquals(3, list.getContiguousClusters(0));
+		Assert.assertEquals(1, list.getContiguousClusters(3));
+		Assert.assertEquals(3, list.getContiguousClusters(7));
+		Assert.assertEquals(1, list.getContiguousClusters(10));
+	}
+
+	@Test
+	public void truncateAndAppend() {
+		ClusterExtentList list = new ClusterExtentList();
+		long[] clusters = { 5, 6, 7, 20, 21, 30 };
+		for (long cluster : clusters) {
+			list.add(cluster);
+		}
+
+		list.truncate(4);
+		Assert.assertEquals(4, list.size());
+		Assert.assertEquals(2, list.getExtentCount());
+		Assert.assertEquals(20, list.getLastCluster());
+
+		list.add(21);
+		Assert.assertEquals(2, list.getExtentCount());
+		Assert.assertEquals(21, list.getLastCluster());
+
+		list.truncate(0);
+		Assert.assertEquals(0, list.size());
+		Assert.assertEquals(0, list.getExtentCount());
+		list.add(40);
+		Assert.assertEquals(40, list.get(0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void getOutOfRange() {
+		ClusterExtentList list = new ClusterExtentList();
+		list.add(2);
+		list.get(1);
+	}
+}
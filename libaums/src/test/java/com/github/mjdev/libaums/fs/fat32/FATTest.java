@@ -0,0 +1,207 @@
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.atech.library.usb.libaums.data.LibAumsException;
+import com.github.mjdev.libaums.driver.BlockDeviceDriver;
+
+public class FATTest {
+
+	private static final int BYTES_PER_SECTOR = 512;
+	private static final int RESERVED_SECTORS = 2;
+	private static final int SECTORS_PER_FAT = 2;
+	private static final int CLUSTERS = 100;
+	private static final int FAT_OFFSET = RESERVED_SECTORS * BYTES_PER_SECTOR;
+	private static final int FAT_SIZE = SECTORS_PER_FAT * BYTES_PER_SECTOR;
+
+	@Test
+	public void failedWriteLeavesFatUsable() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		FAT fat = createFat(device);
+
+		device.failWrites = true;
+		ClusterExtentList chain = new ClusterExtentList();
+		try {
+			fat.alloc(chain, 3);
+			Assert.fail("write must fail");
+		} catch (LibAumsException e) {
+			// expected
+		}
+		Assert.assertEquals(0, chain.size());
+
+		device.failWrites = false;
+		Assert.assertEquals(1, fat.getChain(2).size());
+		fat.alloc(chain, 3);
+
+		Assert.assertEquals(3, chain.size());
+		Assert.assertEquals(3, fat.getChain(chain.get(0)).size());
+		for (int copy = 0; copy < 2; copy++) {
+			Assert.assertEquals(chain.get(1), device.getEntry(copy, chain.get(0)));
+			Assert.assertEquals(0x0FFFFFF8, device.getEntry(copy, chain.get(2)) & 0x0FFFFFF8);
+		}
+	}
+
+	@Test
+	public void freeClusterSearchWrapsAround() throws Exception {
+		MemoryDevice device = new MemoryDevice();
+		device.useAllClustersExcept(10);
+		device.setLastAllocatedClusterHint(50);
+		FAT fat = createFat(device);
+
+		ClusterExtentList chain = new ClusterExtentList();
+		fat.alloc(chain, 1);
+		Assert.assertEquals(10, chain.get(0));
+
+		try {
+			fat.alloc(chain, 1);
+			Assert.fail("no cluster must be left");
+		} catch (LibAumsException e) {
+			// expected
+		}
+		Assert.assertEquals(1, chain.size());
+	}
+
+	@Test
+	public void reservedEntryBitsAreIgnored() throws Exception {
+		for (boolean freeClusterMap : new boolean[] { false, true }) {
+			MemoryDevice device = new MemoryDevice();
+			device.useAllClustersExcept(20);
+			// free, but with the reserved upper bits set
+			device.setEntry(0, 20, 0xF0000000);
+			// chain 30 -> 31 with reserved bits in both entries
+			device.setEntry(0, 30, 0xF000001F);
+			device.setEntry(0, 31, 0xFFFFFFFF);
+			FAT fat = createFat(device);
+			if (freeClusterMap) {
+				fat.buildFreeClusterMap(false);
+				Assert.assertEquals(1, fat.getFreeClusterCount());
+			}
+
+			Assert.assertEquals(2, fat.getChain(30).size());
+			ClusterExtentList chain = new ClusterExtentList();
+			fat.alloc(chain, 1);
+			Assert.assertEquals(20, chain.get(0));
+		}
+	}
+
+	private static FAT createFat(MemoryDevice device) throws LibAumsException {
+		ByteBuffer buffer = ByteBuffer.allocate(BYTES_PER_SECTOR);
+		device.read(0, buffer);
+		buffer.clear();
+		Fat32BootSector bootSector = Fat32BootSector.read(buffer);
+		FsInfoStructure fsInfo = FsInfoStructure.read(device, BYTES_PER_SECTOR);
+		return new FAT(device, bootSector, fsInfo);
+	}
+
+	/**
+	 * Block device in memory holding an empty FAT32 file system with two FATs
+	 * and only the root directory cluster in use, addressed in bytes like a
+	 * partition.
+	 */
+	private static class MemoryDevice implements BlockDeviceDriver {
+
+		ByteBuffer data;
+		boolean failWrites;
+
+		MemoryDevice() {
+			int sectors = RESERVED_SECTORS + 2 * SECTORS_PER_FAT + CLUSTERS;
+			data = ByteBuffer.allocate(sectors * BYTES_PER_SECTOR);
+			data.order(ByteOrder.LITTLE_ENDIAN);
+
+			data.putShort(11, (short) BYTES_PER_SECTOR);
+			data.put(13, (byte) 1);
+			data.putShort(14, (short) RESERVED_SECTORS);
+			data.put(16, (byte) 2);
+			data.putInt(32, sectors);
+			data.putInt(36, SECTORS_PER_FAT);
+			data.putInt(44, 2);
+			data.putShort(48, (short) 1);
+
+			data.putInt(BYTES_PER_SECTOR, 0x41615252);
+			data.putInt(BYTES_PER_SECTOR + 484, 0x61417272);
+			data.putInt(BYTES_PER_SECTOR + 488, CLUSTERS - 1);
+			data.putInt(BYTES_PER_SECTOR + 492, 2);
+			data.putInt(BYTES_PER_SECTOR + 508, 0xAA550000);
+
+			for (int copy = 0; copy < 2; copy++) {
+				setEntry(copy, 0, 0x0FFFFFF8);
+				setEntry(copy, 1, 0x0FFFFFFF);
+				setEntry(copy, 2, 0x0FFFFFFF);
+			}
+		}
+
+		void useAllClustersExcept(long freeCluster) {
+			for (int cluster = 3; cluster < FreeClusterMap.FIRST_CLUSTER + CLUSTERS; cluster++) {
+				for (int copy = 0; copy < 2; copy++) {
+					setEntry(copy, cluster, cluster == freeCluster ? 0 : 0x0FFFFFFF);
+				}
+			}
+		}
+
+		void setLastAllocatedClusterHint(int cluster) {
+			data.putInt(BYTES_PER_SECTOR + 492, cluster);
+		}
+
+		long getEntry(int copy, long cluster) {
+			return data.getInt((int) (FAT_OFFSET + copy * FAT_SIZE + cluster * 4)) & 0xffffffffL;
+		}
+
+		void setEntry(int copy, long cluster, int value) {
+			data.putInt((int) (FAT_OFFSET + copy * FAT_SIZE + cluster * 4), value);
+		}
+
+		@Override
+		public void init() {
+		}
+
+		@Override
+		public void read(long deviceOffset, ByteBuffer buffer) {
+			ByteBuffer source = data.duplicate();
+			source.position((int) deviceOffset);
+			source.limit((int) deviceOffset + buffer.remaining());
+			buffer.put(source);
+		}
+
+		@Override
+		public void write(long deviceOffset, ByteBuffer buffer) throws LibAumsException {
+			if (failWrites) {
+				throw LibAumsException.createWithIOException("write failed");
+			}
+			ByteBuffer target = data.duplicate();
+			target.position((int) deviceOffset);
+			target.put(buffer);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void flush(long deviceOffset, long length) {
+		}
+
+		@Override
+		public int getBlockSize() {
+			return BYTES_PER_SECTOR;
+		}
+
+		@Override
+		public int getMaxTransferLength() {
+			return 128 * 1024;
+		}
+
+		@Override
+		public int getOptimalTransferLength() {
+			return 128 * 1024;
+		}
+
+		@Override
+		public int getTransferGranularity() {
+			return BYTES_PER_SECTOR;
+		}
+	}
+}
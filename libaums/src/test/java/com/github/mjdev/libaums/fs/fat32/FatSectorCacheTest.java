@@ -0,0 +1,185 @@
+package com.github.mjdev.libaums.fs.fat32;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.mjdev.libaums.driver.BlockDeviceDriver;
+
+public class FatSectorCacheTest {
+
+	private static final int BYTES_PER_SECTOR = 512;
+	private static final int ENTRIES_PER_SECTOR = BYTES_PER_SECTOR / 4;
+	private static final int FAT_OFFSET = 2 * BYTES_PER_SECTOR;
+
+	@Test
+	public void dirtyRunsAreWrittenToEveryFat() throws Exception {
+		int sectorsPerFat = 8;
+		long[] fatOffsets = fatOffsets(2, sectorsPerFat);
+		MemoryDevice device = new MemoryDevice(FAT_OFFSET + 2 * sectorsPerFat * BYTES_PER_SECTOR);
+		FatSectorCache cache = new FatSectorCache(device, fatOffsets, BYTES_PER_SECTOR, sectorsPerFat);
+
+		cache.setEntry(5, 6);
+		cache.setEntry(ENTRIES_PER_SECTOR + 1, 0x0FFFFFFF);
+		cache.setEntry(3 * ENTRIES_PER_SECTOR, 42);
+		Assert.assertEquals(3, cache.getDirtySectorCount());
+		Assert.assertEquals(0, device.writeOffsets.size());
+
+		cache.flush();
+
+		// sectors 0 and 1 as one run, sector 3 as another, for both FATs
+		Assert.assertEquals(4, device.writeOffsets.size());
+		Assert.assertEquals(fatOffsets[0], (long) device.writeOffsets.get(0));
+		Assert.assertEquals(fatOffsets[1], (long) device.writeOffsets.get(1));
+		Assert.assertEquals(fatOffsets[0] + 3 * BYTES_PER_SECTOR, (long) device.writeOffsets.get(2));
+		Assert.assertEquals(fatOffsets[1] + 3 * BYTES_PER_SECTOR, (long) device.writeOffsets.get(3));
+		Assert.assertEquals(2 * BYTES_PER_SECTOR, (int) device.writeLengths.get(0));
+		Assert.assertEquals(BYTES_PER_SECTOR, (int) device.writeLengths.get(3));
+
+		for (long fatOffset : fatOffsets) {
+			Assert.assertEquals(6, device.getEntry(fatOffset, 5));
+			Assert.assertEquals(0x0FFFFFFF, device.getEntry(fatOffset, ENTRIES_PER_SECTOR + 1));
+			Assert.assertEquals(42, device.getEntry(fatOffset, 3 * ENTRIES_PER_SECTOR));
+		}
+		Assert.assertEquals(0, cache.getDirtySectorCount());
+
+		cache.flush();
+		Assert.assertEquals(4, device.writeOffsets.size());
+	}
+
+	@Test
+	public void longRunsAreSplit() throws Exception {
+		int sectorsPerFat = 200;
+		long[] fatOffsets = fatOffsets(2, sectorsPerFat);
+		MemoryDevice device = new MemoryDevice(FAT_OFFSET + 2 * sectorsPerFat * BYTES_PER_SECTOR);
+		FatSectorCache cache = new FatSectorCache(device, fatOffsets, BYTES_PER_SECTOR, sectorsPerFat);
+
+		for (int sector = 0; sector < sectorsPerFat; sector++) {
+			cache.setEntry((long) sector * ENTRIES_PER_SECTOR, sector + 1);
+		}
+		cache.flush();
+
+		Assert.assertEquals(4, device.writeOffsets.size());
+		Assert.assertEquals(128 * BYTES_PER_SECTOR, (int) device.writeLengths.get(0));
+		Assert.assertEquals(72 * BYTES_PER_SECTOR, (int) device.writeLengths.get(2));
+		for (long fatOffset : fatOffsets) {
+			for (int sector = 0; sector < sectorsPerFat; sector++) {
+				Assert.assertEquals(sector + 1, device.getEntry(fatOffset, sector * ENTRIES_PER_SECTOR));
+			}
+		}
+	}
+
+	@Test
+	public void sectorsAreLoadedFromFirstFat() throws Exception {
+		int sectorsPerFat = 8;
+		long[] fatOffsets = fatOffsets(2, sectorsPerFat);
+		MemoryDevice device = new MemoryDevice(FAT_OFFSET + 2 * sectorsPerFat * BYTES_PER_SECTOR);
+		device.setEntry(fatOffsets[0], 7, 8);
+		device.setEntry(fatOffsets[1], 7, 99);
+		FatSectorCache cache = new FatSectorCache(device, fatOffsets, BYTES_PER_SECTOR, sectorsPerFat);
+
+		Assert.assertEquals(8, cache.getEntry(7));
+		cache.setEntry(7, 9);
+		Assert.assertEquals(9, cache.getEntry(7));
+		Assert.assertEquals(1, device.reads);
+
+		try {
+			cache.clear();
+			Assert.fail("dirty sectors must not be dropped");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		cache.flush();
+		cache.clear();
+		Assert.assertEquals(9, cache.getEntry(7));
+		Assert.assertEquals(9, device.getEntry(fatOffsets[1], 7));
+		Assert.assertEquals(2, device.reads);
+	}
+
+	private static long[] fatOffsets(int fatCount, int sectorsPerFat) {
+		long[] offsets = new long[fatCount];
+		for (int i = 0; i < fatCount; i++) {
+			offsets[i] = FAT_OFFSET + (long) i * sectorsPerFat * BYTES_PER_SECTOR;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Block device in memory, addressed in bytes like a partition.
+	 */
+	private static class MemoryDevice implements BlockDeviceDriver {
+
+		ByteBuffer data;
+		List<Long> writeOffsets = new ArrayList<>();
+		List<Integer> writeLengths = new ArrayList<>();
+		int reads;
+
+		MemoryDevice(int size) {
+			data = ByteBuffer.allocate(size);
+			data.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		int getEntry(long fatOffset, int cluster) {
+			return data.getInt((int) fatOffset + cluster * 4);
+		}
+
+		void setEntry(long fatOffset, int cluster, int value) {
+			data.putInt((int) fatOffset + cluster * 4, value);
+		}
+
+		@Override
+		public void init() {
+		}
+
+		@Override
+		public void read(long deviceOffset, ByteBuffer buffer) {
+			reads++;
+			ByteBuffer source = data.duplicate();
+			source.position((int) deviceOffset);
+			source.limit((int) deviceOffset + buffer.remaining());
+			buffer.put(source);
+		}
+
+		@Override
+		public void write(long deviceOffset, ByteBuffer buffer) {
+			writeOffsets.add(deviceOffset);
+			writeLengths.add(buffer.remaining());
+			ByteBuffer target = data.duplicate();
+			target.position((int) deviceOffset);
+			target.put(buffer);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void flush(long deviceOffset, long length) {
+		}
+
+		@Override
+		public int getBlockSize() {
+			return BYTES_PER_SECTOR;
+		}
+
+		@Override
+		public int getMaxTransferLength() {
+			return 128 * 1024;
+		}
+
+		@Override
+		public int getOptimalTransferLength() {
+			return 128 * 1024;
+		}
+
+		@Override
+		public int getTransferGranularity() {
+			return BYTES_PER_SECTOR;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.github.mjdev.libaums.fs.fat32;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FreeClusterMapTest {
+
+	private static final int CLUSTERS = 100;
+	private static final int END_CLUSTER = FreeClusterMap.FIRST_CLUSTER + CLUSTERS;
+
+	@Test
+	public void setKeepsFreeCount() {
+		FreeClusterMap map = new FreeClusterMap(CLUSTERS);
+		map.set(10, true);
+		map.set(10, true);
+		map.set(11, true);
+		map.set(11, false);
+		map.set(1, true);
+		map.set(END_CLUSTER, true);
+
+		Assert.assertEquals(1, map.getFreeClusterCount());
+		Assert.assertTrue(map.isFree(10));
+		Assert.assertFalse(map.isFree(11));
+		Assert.assertFalse(map.isFree(1));
+		Assert.assertFalse(map.isFree(END_CLUSTER));
+	}
+
+	@Test
+	public void findFreeRunStartsAtGivenCluster() {
+		FreeClusterMap map = mapWithFreeRange(10, 15);
+		setFree(map, 50, 60);
+
+		Assert.assertEquals(10, map.findFreeRun(5, 0));
+		Assert.assertEquals(50, map.findFreeRun(5, 20));
+		Assert.assertEquals(50, map.findFreeRun(6, 0));
+	}
+
+	@Test
+	public void findFreeRunWrapsAround() {
+		FreeClusterMap map = mapWithFreeRange(10, 15);
+
+		Assert.assertEquals(10, map.findFreeRun(5, 60));
+		Assert.assertEquals(10, map.findFreeRun(5, END_CLUSTER + 10));
+		Assert.assertEquals(-1, map.findFreeRun(6, 60));
+	}
+
+	@Test
+	public void findFreeRunCrossingStartCluster() {
+		FreeClusterMap map = mapWithFreeRange(40, 50);
+
+		// only 5 clusters behind 45, but the run starts before it
+		Assert.assertEquals(40, map.findFreeRun(8, 45));
+		Assert.assertEquals(-1, map.findFreeRun(11, 45));
+	}
+
+	@Test
+	public void findFreeRunAtEndOfFileSystem() {
+		FreeClusterMap map = mapWithFreeRange(END_CLUSTER - 7, END_CLUSTER);
+
+		Assert.assertEquals(END_CLUSTER - 7, map.findFreeRun(7, 90));
+		Assert.assertEquals(END_CLUSTER - 7, map.findFreeRun(7, END_CLUSTER - 3));
+		Assert.assertEquals(-1, map.findFreeRun(8, 0));
+	}
+
+	@Test
+	public void nextFreeWrapsAround() {
+		FreeClusterMap map = mapWithFreeRange(5, 6);
+		map.set(80, true);
+
+		Assert.assertEquals(80, map.nextFree(80));
+		Assert.assertEquals(5, map.nextFree(81));
+		Assert.assertEquals(5, map.nextFree(END_CLUSTER + 10));
+		Assert.assertEquals(5, map.nextFree(0));
+	}
+
+	@Test
+	public void nextFreeWithoutFreeClusters() {
+		FreeClusterMap map = new FreeClusterMap(CLUSTERS);
+
+		Assert.assertEquals(-1, map.nextFree(50));
+		Assert.assertEquals(-1, map.findFreeRun(1, 50));
+	}
+
+	private static FreeClusterMap mapWithFreeRange(int from, int to) {
+		FreeClusterMap map = new FreeClusterMap(CLUSTERS);
+		setFree(map, from, to);
+		return map;
+	}
+
+	private static void setFree(FreeClusterMap map, int from, int to) {
+		for (int cluster = from; cluster < to; cluster++) {
+			map.set(cluster, true);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.github.mjdev.libaums.fs.nio;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UsbFatPathTest {
+
+	private UsbFatFileSystemProvider provider = new UsbFatFileSystemProvider();
+	private UsbFatFileSystem fs = new UsbFatFileSystem(provider, "test", null);
+
+	@Test
+	public void parsesNames() {
+		UsbFatPath path = fs.getPath("/DATA//logs/", "a.txt");
+
+		Assert.assertTrue(path.isAbsolute());
+		Assert.assertEquals(3, path.getNameCount());
+		Assert.assertEquals("/DATA/logs/a.txt", path.toString());
+		Assert.assertEquals("a.txt", path.getFileName().toString());
+		Assert.assertEquals("/DATA/logs", path.getParent().toString());
+		Assert.assertEquals("/", path.getRoot().toString());
+		Assert.assertEquals("logs/a.txt", path.subpath(1, 3).toString());
+		Assert.assertNull(fs.getPath("a.txt").getParent());
+		Assert.assertNull(fs.getPath("/").getFileName());
+	}
+
+	@Test
+	public void normalize() {
+		Assert.assertEquals("/a/c", fs.getPath("/a/./b/../c").normalize().toString());
+		Assert.assertEquals("/c", fs.getPath("/../../c").normalize().toString());
+		Assert.assertEquals("../c", fs.getPath("a/../../c").normalize().toString());
+		Assert.assertEquals("../../c", fs.getPath("../../c").normalize().toString());
+		Assert.assertEquals("", fs.getPath("a/..").normalize().toString());
+	}
+
+	@Test
+	public void resolve() {
+		UsbFatPath dir = fs.getPath("/DATA");
+
+		Assert.assertEquals("/DATA/logs/a.txt", dir.resolve("logs/a.txt").toString());
+		Assert.assertEquals("/other", dir.resolve("/other").toString());
+		Assert.assertSame(dir, dir.resolve(""));
+		Assert.assertEquals("/DATA/b.txt", fs.getPath("/DATA/a.txt").resolveSibling("b.txt").toString());
+		Assert.assertEquals("b.txt", fs.getPath("a.txt").resolveSibling("b.txt").toString());
+	}
+
+	@Test
+	public void relativize() {
+		Path a = fs.getPath("/a/b/c");
+		Path b = fs.getPath("/a/d");
+
+		Assert.assertEquals("../../d", a.relativize(b).toString());
+		Assert.assertEquals("b/c", b.getParent().relativize(a).toString());
+		Assert.assertEquals("", a.relativize(a).toString());
+		Assert.assertEquals(b, a.resolve(a.relativize(b)).normalize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void relativizeMixedPaths() {
+		fs.getPath("/a").relativize(fs.getPath("b"));
+	}
+
+	@Test
+	public void startsAndEndsWith() {
+		Path path = fs.getPath("/a/b/c");
+
+		Assert.assertTrue(path.startsWith("/a/b"));
+		Assert.assertFalse(path.startsWith("a/b"));
+		Assert.assertFalse(path.startsWith("/a/bc"));
+		Assert.assertTrue(path.endsWith("b/c"));
+		Assert.assertTrue(path.endsWith("/a/b/c"));
+		Assert.assertFalse(path.endsWith("/b/c"));
+	}
+
+	@Test
+	public void sameFileIgnoresCase() throws Exception {
+		UsbFatPath lower = fs.getPath("/data/a.txt");
+		UsbFatPath upper = fs.getPath("/DATA/./A.TXT");
+
+		Assert.assertNotEquals(lower, upper);
+		Assert.assertTrue(provider.isSameFile(lower, upper));
+		Assert.assertEquals(lower.getFileKey(), upper.getFileKey());
+		Assert.assertFalse(provider.isSameFile(lower, fs.getPath("/data/b.txt")));
+	}
+
+	@Test
+	public void globToRegex() {
+		Assert.assertEquals("[^/]*\\.txt", UsbFatFileSystem.globToRegex("*.txt"));
+		Assert.assertEquals(".*/[^/]", UsbFatFileSystem.globToRegex("**/?"));
+		Assert.assertEquals("(?:a|b)[^x]", UsbFatFileSystem.globToRegex("{a,b}[!x]"));
+		Assert.assertEquals("\\Q*\\E", UsbFatFileSystem.globToRegex("\\*"));
+		Pattern.compile(UsbFatFileSystem.globToRegex("a-b_c d+e(f)"));
+	}
+
+	@Test
+	public void globMatcher() {
+		PathMatcher txt = fs.getPathMatcher("glob:*.txt");
+		Assert.assertTrue(txt.matches(fs.getPath("a.txt")));
+		Assert.assertFalse(txt.matches(fs.getPath("/DATA/a.txt")));
+		Assert.assertFalse(txt.matches(fs.getPath("a.txt.bak")));
+
+		PathMatcher deep = fs.getPathMatcher("glob:/DATA/**.{log,txt}");
+		Assert.assertTrue(deep.matches(fs.getPath("/DATA/x/y/a.log")));
+		Assert.assertTrue(deep.matches(fs.getPath("/DATA/a.txt")));
+		Assert.assertFalse(deep.matches(fs.getPath("/DATA/a.bin")));
+
+		PathMatcher chars = fs.getPathMatcher("glob:log[0-9]?.txt");
+		Assert.assertTrue(chars.matches(fs.getPath("log1a.txt")));
+		Assert.assertFalse(chars.matches(fs.getPath("logab.txt")));
+
+		Assert.assertTrue(fs.getPathMatcher("regex:.*\\.TXT").matches(fs.getPath("/A.TXT")));
+	}
+}